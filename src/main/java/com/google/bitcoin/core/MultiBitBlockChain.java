@@ -57,4 +57,22 @@ public class MultiBitBlockChain extends BlockChain {
             super.setChainHead(chainHead);
         }
     }
+
+    /**
+     * Rewind the chainhead to a checkpoint, keeping the block store open so that
+     * the connected peers can deliver the blocks after it again.
+     * (Used for blockchain replay).
+     * @param checkpoint
+     * @throws BlockStoreException
+     */
+    public void rewindChainHead(StoredBlock checkpoint) throws BlockStoreException {
+        lock.lock();
+        try {
+            blockStore.put(checkpoint);
+            blockStore.setChainHead(checkpoint);
+            super.setChainHead(checkpoint);
+        } finally {
+            lock.unlock();
+        }
+    }
 }
@@ -78,6 +78,11 @@ public class BitcoinController extends AbstractController<CoreController> implem
      */
     private final PeerEventListener peerEventListener;
 
+    /**
+     * Batches the block downloaded events.
+     */
+    private final BlockDownloadedNotifier blockDownloadedNotifier;
+
     /**
      * The data model backing the views.
      */
@@ -93,6 +98,7 @@ public class BitcoinController extends AbstractController<CoreController> implem
         this.fileHandler = new FileHandler(this);
         this.eventHandler = new EventHandler(this);
         this.peerEventListener = new BitcoinPeerEventListener(this);
+        this.blockDownloadedNotifier = new BlockDownloadedNotifier(this);
         
         this.addEventHandler(this.getEventHandler());
     }
@@ -164,33 +170,75 @@ public class BitcoinController extends AbstractController<CoreController> implem
 
     /**
      * Method called by downloadListener whenever a block is downloaded.
+     * The views and wallets are told in batches, on another thread.
      */
     public void fireBlockDownloaded() {
-        //log.debug("Fire blockdownloaded");
+        blockDownloadedNotifier.blockDownloaded();
+    }
+
+    /**
+     * Tell the views and wallets that blocks have been downloaded.
+     */
+    void notifyBlocksDownloaded(int numberOfBlocks, int fromHeight, int toHeight) {
+        //log.debug("Fire blocksDownloaded " + numberOfBlocks + " " + fromHeight + " - " + toHeight);
         for (ViewSystem viewSystem : super.getViewSystem()) {
-            viewSystem.blockDownloaded();
+            viewSystem.blocksDownloaded(numberOfBlocks, fromHeight, toHeight);
         }
         
         // Mark all the wallets as dirty as their lastBlockSeenHeight will need changing.
+        // This is saved lazily and journalled rather than needing the whole wallet to be written.
         if (getModel() != null) {
             List<WalletData> perWalletModelDataList = getModel().getPerWalletModelDataList();
             if (perWalletModelDataList != null) {
                 for (WalletData loopPerWalletModelData : perWalletModelDataList) {
-                    if (loopPerWalletModelData.getWalletInfo() != null) {
-                        synchronized(loopPerWalletModelData.getWalletInfo()) {
-                            loopPerWalletModelData.setDirty(true);
-                        }
-                    } else {
-                        loopPerWalletModelData.setDirty(true);                        
-                    }
+                    loopPerWalletModelData.markLastBlockSeenChanged();
                 }
             }
         }
     }
 
+    /**
+     * @return The height of the best chain, or -1 if there is no chain yet
+     */
+    int getChainHeight() {
+        if (multiBitService == null || multiBitService.getChain() == null) {
+            return -1;
+        }
+        return multiBitService.getChain().getBestChainHeight();
+    }
+
+    /**
+     * Find the WalletData for a wallet object.
+     * 
+     * @return The WalletData, or null if the wallet is not open
+     */
+    private WalletData findPerWalletModelData(Wallet wallet) {
+        if (wallet == null || getModel() == null || getModel().getPerWalletModelDataList() == null) {
+            return null;
+        }
+        final int walletIdentityHashCode = System.identityHashCode(wallet);
+        for (WalletData loopPerWalletModelData : getModel().getPerWalletModelDataList()) {
+            if (System.identityHashCode(loopPerWalletModelData.getWallet()) == walletIdentityHashCode) {
+                return loopPerWalletModelData;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Record that a transaction in a wallet has changed so that it is journalled on the next save.
+     */
+    private void markTransactionChanged(Wallet wallet, Transaction transaction) {
+        WalletData perWalletModelData = findPerWalletModelData(wallet);
+        if (perWalletModelData != null && transaction != null) {
+            perWalletModelData.markTransactionChanged(transaction.getHash());
+        }
+    }
+
     @Override
     public void onCoinsReceived(Wallet wallet, Transaction transaction, BigInteger prevBalance, BigInteger newBalance) {
         //log.debug("onCoinsReceived called");
+        markTransactionChanged(wallet, transaction);
         for (ViewSystem viewSystem : super.getViewSystem()) {
             viewSystem.onCoinsReceived(wallet, transaction, prevBalance, newBalance);
         }
@@ -199,6 +247,7 @@ public class BitcoinController extends AbstractController<CoreController> implem
     @Override
     public void onCoinsSent(Wallet wallet, Transaction transaction, BigInteger prevBalance, BigInteger newBalance) {
         //log.debug("onCoinsSent called");
+        markTransactionChanged(wallet, transaction);
         for (ViewSystem viewSystem : super.getViewSystem()) {
             viewSystem.onCoinsSent(wallet, transaction, prevBalance, newBalance);
         }
@@ -210,13 +259,12 @@ public class BitcoinController extends AbstractController<CoreController> implem
             return;
         }
         // log.debug("onWalletChanged called");
-        final int walletIdentityHashCode = System.identityHashCode(wallet);
-        for (WalletData loopPerWalletModelData : getModel().getPerWalletModelDataList()) {
-            // Find the wallet object and mark as dirty.
-            if (System.identityHashCode(loopPerWalletModelData.getWallet()) == walletIdentityHashCode) {
-                loopPerWalletModelData.setDirty(true);
-                break;
-            }
+        // Find the wallet object and mark as dirty.
+        // The individual transactions and keys that changed are recorded by the other listener methods
+        // so on its own this is treated like a new block.
+        WalletData perWalletModelData = findPerWalletModelData(wallet);
+        if (perWalletModelData != null) {
+            perWalletModelData.markLastBlockSeenChanged();
         }
 
         fireDataChangedUpdateLater();
@@ -225,6 +273,16 @@ public class BitcoinController extends AbstractController<CoreController> implem
     @Override
     public void onTransactionConfidenceChanged(Wallet wallet, Transaction transaction) {
         //log.debug("onTransactionConfidenceChanged called");
+        if (transaction != null && transaction.getConfidence().getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING
+                && transaction.getConfidence().getDepthInBlocks() > 1) {
+            // Only the depth has changed, which happens to every confirmed transaction on every block.
+            WalletData perWalletModelData = findPerWalletModelData(wallet);
+            if (perWalletModelData != null) {
+                perWalletModelData.markLastBlockSeenChanged();
+            }
+        } else {
+            markTransactionChanged(wallet, transaction);
+        }
         for (ViewSystem viewSystem : super.getViewSystem()) {
             viewSystem.onTransactionConfidenceChanged(wallet, transaction);
         }
@@ -233,12 +291,23 @@ public class BitcoinController extends AbstractController<CoreController> implem
     @Override
     public void onKeysAdded(Wallet wallet, List<ECKey> keys) {
         log.debug("Keys added : " + keys.toString());
+
+        // Keys are never journalled so the whole wallet must be written.
+        WalletData perWalletModelData = findPerWalletModelData(wallet);
+        if (perWalletModelData != null) {
+            perWalletModelData.setDirty(true);
+        }
     }
 
   @Override
   public void onScriptsAdded(Wallet wallet, List<Script> scripts) {
     log.debug("Scripts added : " + scripts.toString());
 
+    WalletData perWalletModelData = findPerWalletModelData(wallet);
+    if (perWalletModelData != null) {
+      perWalletModelData.setDirty(true);
+    }
+
   }
 
   @Override
@@ -248,6 +317,12 @@ public class BitcoinController extends AbstractController<CoreController> implem
         for (WalletData loopPerWalletModelData : perWalletModelDataList) {
             if (loopPerWalletModelData.getWallet().equals(wallet)) {
                 loopPerWalletModelData.setDirty(true);
+                loopPerWalletModelData.getWalletTableDataCache().markRebuildRequired();
+                loopPerWalletModelData.getAssetBalanceLedger().markRebuildRequired();
+                loopPerWalletModelData.getAssetChangeSummaryCache().markRebuildRequired();
+                if (multiBitService != null) {
+                    multiBitService.getAssetValidationScheduler().requestCheck(loopPerWalletModelData);
+                }
                 log.debug("Marking wallet '" + loopPerWalletModelData.getWalletFilename() + "' as dirty.");
             }
         }
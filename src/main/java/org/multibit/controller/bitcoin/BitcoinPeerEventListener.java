@@ -95,14 +95,18 @@ public class BitcoinPeerEventListener implements PeerEventListener {
   public void onTransaction(Peer peer, Transaction transaction) {
     // Loop through all the wallets, seeing if the transaction is relevant and adding them as pending if so.
     if (transaction != null) {
+      boolean isRelevant = false;
       try {
-        java.util.List<WalletData> perWalletModelDataList = bitcoinController.getModel().getPerWalletModelDataList();
+        // Only check the wallets the transaction touches.
+        List<WalletData> perWalletModelDataList = bitcoinController.getModel().getWalletRelevanceIndex()
+                .getWalletsForTransaction(transaction, bitcoinController.getModel().getPerWalletModelDataList());
 
         if (perWalletModelDataList != null) {
           for (WalletData perWalletModelData : perWalletModelDataList) {
             Wallet loopWallet = perWalletModelData.getWallet();
             if (loopWallet != null) {
               if (loopWallet.isTransactionRelevant(transaction)) {
+                isRelevant = true;
                 if (!(transaction.isTimeLocked()
                         && transaction.getConfidence().getSource() != TransactionConfidence.Source.SELF)
                         && loopWallet.isTransactionRisky(transaction, null)) {
@@ -112,10 +116,10 @@ public class BitcoinPeerEventListener implements PeerEventListener {
                     // The perWalletModelData is marked as dirty.
                     if (perWalletModelData.getWalletInfo() != null) {
                       synchronized (perWalletModelData.getWalletInfo()) {
-                        perWalletModelData.setDirty(true);
+                        perWalletModelData.markTransactionChanged(transaction.getHash());
                       }
                     } else {
-                      perWalletModelData.setDirty(true);
+                      perWalletModelData.markTransactionChanged(transaction.getHash());
                     }
                     loopWallet.receivePending(transaction, null);
                   }
@@ -129,6 +133,11 @@ public class BitcoinPeerEventListener implements PeerEventListener {
       } catch (VerificationException e) {
         log.error(e.getMessage(), e);
       }
+
+      // Irrelevant transactions are bloom filter false positives.
+      if (bitcoinController.getMultiBitService() != null) {
+        bitcoinController.getMultiBitService().getBloomFilterManager().transactionReceived(isRelevant);
+      }
     }
   }
 
@@ -0,0 +1,118 @@
+/*
+ * SparkBit
+ *
+ * Copyright 2011-2014 multibit.org
+ * Copyright 2014 Coin Sciences Ltd
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.controller.bitcoin;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Batches block downloaded events so that the views and wallets are told
+ * about downloaded blocks at most once every MINIMUM_NOTIFICATION_INTERVAL.
+ *
+ * Recording a block only touches atomics so the peer threads that report
+ * blocks never wait on the views or on wallet monitors. The notification is
+ * made on the notifier's own thread.
+ */
+class BlockDownloadedNotifier {
+
+    private static final Logger log = LoggerFactory.getLogger(BlockDownloadedNotifier.class);
+
+    public static final int MINIMUM_NOTIFICATION_INTERVAL = 250; // ms
+
+    private final BitcoinController bitcoinController;
+
+    private final ScheduledExecutorService executorService;
+
+    /**
+     * The number of blocks downloaded since the last notification.
+     */
+    private final AtomicInteger numberOfBlocks = new AtomicInteger(0);
+
+    private final AtomicBoolean isNotificationScheduled = new AtomicBoolean(false);
+
+    private volatile long lastNotificationTime = 0;
+
+    /**
+     * The chain height at the last notification. Notifier thread only.
+     */
+    private int lastNotifiedHeight = -1;
+
+    private final Runnable notification = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                notifyBlocksDownloaded();
+            } catch (RuntimeException e) {
+                log.error(e.getClass().getCanonicalName() + " " + e.getMessage(), e);
+            }
+        }
+    };
+
+    BlockDownloadedNotifier(BitcoinController bitcoinController) {
+        this.bitcoinController = bitcoinController;
+        executorService = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "BlockDownloadedNotifier");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Record that a block has been downloaded (or the download has moved on).
+     * Called from peer threads.
+     */
+    void blockDownloaded() {
+        numberOfBlocks.incrementAndGet();
+        if (isNotificationScheduled.compareAndSet(false, true)) {
+            long delay = Math.max(0, lastNotificationTime + MINIMUM_NOTIFICATION_INTERVAL - System.currentTimeMillis());
+            try {
+                executorService.schedule(notification, delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException ree) {
+                isNotificationScheduled.set(false);
+            }
+        }
+    }
+
+    private void notifyBlocksDownloaded() {
+        // Blocks downloaded from here on schedule the next notification.
+        isNotificationScheduled.set(false);
+        int blocks = numberOfBlocks.getAndSet(0);
+        if (blocks == 0) {
+            return;
+        }
+        lastNotificationTime = System.currentTimeMillis();
+
+        int toHeight = bitcoinController.getChainHeight();
+        int fromHeight = (lastNotifiedHeight < 0 || lastNotifiedHeight >= toHeight) ? toHeight : lastNotifiedHeight + 1;
+        lastNotifiedHeight = toHeight;
+
+        bitcoinController.notifyBlocksDownloaded(blocks, fromHeight, toHeight);
+    }
+}
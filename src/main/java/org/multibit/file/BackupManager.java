@@ -75,6 +75,7 @@ public enum BackupManager {
     public static final String ROLLING_WALLET_BACKUP_DIRECTORY_NAME = "rolling-backup";
     public static final String ENCRYPTED_WALLET_BACKUP_DIRECTORY_NAME = "wallet-backup";
     public static final String UNENCRYPTED_WALLET_BACKUP_DIRECTORY_NAME = "wallet-unenc-backup";
+    public static final String JOURNAL_DIRECTORY_NAME = "journal";
 
     public static final int MAXIMUM_NUMBER_OF_BACKUPS = 60; // Chosen so that you will have about weekly backups for a year, fortnightly over two years.
     public static final int NUMBER_OF_FIRST_WALLETS_TO_ALWAYS_KEEP = 2; 
@@ -144,7 +145,7 @@ public enum BackupManager {
             try {
                 String encryptedFilename = loopFile.getAbsolutePath() + "." + FILE_ENCRYPTED_WALLET_SUFFIX;
                 copyFileAndEncrypt(loopFile, new File(encryptedFilename), passwordToUse);
-                FileHandler.secureDelete(loopFile);
+                Shredder.INSTANCE.shredLater(loopFile);
             } catch (IOException ioe) {
                 log.error(ioe.getClass().getName() + " " + ioe.getMessage());
             } catch (IllegalArgumentException iae) {
@@ -299,14 +300,14 @@ public enum BackupManager {
                 // Secure delete the chosen backup wallet and its info file if present.
                 log.debug("To save space, secure deleting backup wallet '"
                         + backupWallets.get(walletBackupToDeleteIndex).getAbsolutePath() + "'.");
-                FileHandler.secureDelete(backupWallets.get(walletBackupToDeleteIndex));
+                Shredder.INSTANCE.shredLater(backupWallets.get(walletBackupToDeleteIndex));
 
                 String walletInfoBackupFilename = backupWallets.get(walletBackupToDeleteIndex).getAbsolutePath()
                         .replaceAll(BitcoinModel.WALLET_FILE_EXTENSION + "$", INFO_FILE_SUFFIX_STRING);
                 File walletInfoBackup = new File(walletInfoBackupFilename);
                 if (walletInfoBackup.exists()) {
                     log.debug("To save space, secure deleting backup info file '" + walletInfoBackup.getAbsolutePath() + "'.");
-                    FileHandler.secureDelete(walletInfoBackup);
+                    Shredder.INSTANCE.shredLater(walletInfoBackup);
                 }
             } catch (IOException ioe) {
                 log.error(ioe.getClass().getName() + " " + ioe.getMessage());
@@ -442,6 +443,9 @@ public enum BackupManager {
         String encryptedWalletBackupDirectoryName = topLevelBackupDirectoryName + File.separator
                 + ENCRYPTED_WALLET_BACKUP_DIRECTORY_NAME;
         createDirectoryIfNecessary(encryptedWalletBackupDirectoryName);
+
+        String journalDirectoryName = topLevelBackupDirectoryName + File.separator + JOURNAL_DIRECTORY_NAME;
+        createDirectoryIfNecessary(journalDirectoryName);
     }
  
     /**
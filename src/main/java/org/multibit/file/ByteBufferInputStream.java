@@ -0,0 +1,70 @@
+/*
+ * SparkBit
+ *
+ * Copyright 2011-2014 multibit.org
+ * Copyright 2014 Coin Sciences Ltd
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.file;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An InputStream reading straight from a ByteBuffer (e.g. a mapped file)
+ * without copying it first. The buffer's position is advanced as it is read.
+ */
+class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+        return buffer.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+        if (length == 0) {
+            return 0;
+        }
+        if (!buffer.hasRemaining()) {
+            return -1;
+        }
+        int lengthToRead = Math.min(length, buffer.remaining());
+        buffer.get(bytes, offset, lengthToRead);
+        return lengthToRead;
+    }
+
+    @Override
+    public long skip(long n) {
+        if (n <= 0) {
+            return 0;
+        }
+        int lengthToSkip = (int) Math.min(n, buffer.remaining());
+        buffer.position(buffer.position() + lengthToSkip);
+        return lengthToSkip;
+    }
+
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+}
@@ -20,6 +20,7 @@ package org.multibit.file;
 
 import com.google.bitcoin.core.BlockChain;
 import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.Sha256Hash;
 import com.google.bitcoin.core.Wallet;
 import com.google.bitcoin.crypto.KeyCrypterException;
 import org.sparkbit.ApplicationDataDirectoryLocator;
@@ -41,8 +42,18 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * Class consolidating the File IO in MultiBit for wallets and wallet infos.
@@ -61,29 +72,23 @@ public class FileHandler {
     
     private static final int MAX_FILE_SIZE = 1024 * 1024 * 1024; // Dont read files greater than 1 gigabyte.
 
+    private static final String TEMPORARY_WALLET_FILE_SUFFIX = ".tmp";
+
+    /**
+     * Written, with the length of the temporary wallet file, once the temporary
+     * wallet file is complete and on disk.
+     */
+    private static final String TEMPORARY_WALLET_COMPLETE_SUFFIX = ".complete";
+
+    private static final boolean MAP_WALLET_FILES = !System.getProperty("os.name", "unknown").startsWith("Win");
+
     private MultiBitWalletProtobufSerializer walletProtobufSerializer;
-    
-    // Nonsense bytes to fill up deleted files - these have no meaning.
-    private static byte[] NONSENSE_BYTES = new byte[] { (byte) 0xF0, (byte) 0xA6, (byte) 0x55, (byte) 0xAA, (byte) 0x33,
-            (byte) 0x77, (byte) 0x33, (byte) 0x37, (byte) 0x12, (byte) 0x34, (byte) 0x56, (byte) 0x78, (byte) 0xC2, (byte) 0xB3,
-            (byte) 0xA4, (byte) 0x9A, (byte) 0x30, (byte) 0x7F, (byte) 0xE5, (byte) 0x5A, (byte) 0x23, (byte) 0x47, (byte) 0x13,
-            (byte) 0x17, (byte) 0x15, (byte) 0x32, (byte) 0x5C, (byte) 0x77, (byte) 0xC9, (byte) 0x73, (byte) 0x04, (byte) 0x2D,
-            (byte) 0x40, (byte) 0x0F, (byte) 0xA5, (byte) 0xA6, (byte) 0x43, (byte) 0x77, (byte) 0x33, (byte) 0x3B, (byte) 0x62,
-            (byte) 0x34, (byte) 0xB6, (byte) 0x72, (byte) 0x32, (byte) 0xB3, (byte) 0xA4, (byte) 0x4B, (byte) 0x80, (byte) 0x7F,
-            (byte) 0xC5, (byte) 0x43, (byte) 0x23, (byte) 0x47, (byte) 0x13, (byte) 0xB7, (byte) 0xA5, (byte) 0x32, (byte) 0xDC,
-            (byte) 0x79, (byte) 0x19, (byte) 0xB1, (byte) 0x03, (byte) 0x9D };
-
-    private static int BULKING_UP_FACTOR = 16;
-    private static byte[] SECURE_DELETE_FILL_BYTES = new byte[NONSENSE_BYTES.length * BULKING_UP_FACTOR];
-
-    static {
-        // Make some SECURE_DELETE_FILL_BYTES bytes = x BULKING_UP_FACTOR the
-        // NONSENSE just to save write time.
-        for (int i = 0; i < BULKING_UP_FACTOR; i++) {
-            System.arraycopy(NONSENSE_BYTES, 0, SECURE_DELETE_FILL_BYTES, NONSENSE_BYTES.length * i, NONSENSE_BYTES.length);
-        }
-    }
 
+    /**
+     * Wallets being read by preloadWallets, keyed by absolute filename.
+     */
+    private final ConcurrentHashMap<String, Future<PreloadedWallet>> preloadedWallets = new ConcurrentHashMap<String, Future<PreloadedWallet>>();
+    
     public FileHandler(BitcoinController bitcoinController) {
         this.bitcoinController = bitcoinController;
         this.controller = this.bitcoinController;
@@ -108,14 +113,27 @@ public class FileHandler {
 
         String walletFilenameToUseInModel = walletFile.getAbsolutePath();
 
+        PreloadedWallet preloadedWallet = takePreloadedWallet(walletFile);
+
+        recoverInterruptedSave(walletFile);
+        shredLeftovers(walletFile);
+
         try {
+            // Read the wallet file once, unless it was read ahead.
+            ByteBuffer walletBytes = null;
+            if (preloadedWallet == null) {
+                walletBytes = readWalletFile(walletFile);
+            }
+
             // See if the wallet is serialized or protobuf.
             WalletInfoData walletInfo;
 
-            if (isWalletSerialised(walletFile)) {
+            if (walletBytes != null && isWalletSerialised(walletBytes)) {
                 // Serialised wallets are no longer supported.
                 throw new WalletLoadException("Could not load wallet '" + walletFilenameToUseInModel
                         + "'. Serialized wallets are no longer supported.");
+            } else if (preloadedWallet != null) {
+                walletInfo = preloadedWallet.walletInfo;
             } else {
                 walletInfo = new WalletInfoData(walletFilenameToUseInModel, null, MultiBitWalletVersion.PROTOBUF_ENCRYPTED);
             }
@@ -130,13 +148,16 @@ public class FileHandler {
             Wallet wallet = null;
 
             // Try the main wallet first unless it is obviously broken.
-            if (!useBackupWallets) {
-                FileInputStream fileInputStream = new FileInputStream(walletFile);
-                InputStream stream = null;
-
+            if (!useBackupWallets && preloadedWallet != null) {
+                // The main wallet was read ahead.
+                wallet = preloadedWallet.wallet;
+                walletWasLoadedSuccessfully = true;
+            } else if (!useBackupWallets) {
                 try {
-                    stream = new BufferedInputStream(fileInputStream);
-                    wallet = Wallet.loadFromFileStream(stream);
+                    if (walletBytes == null) {
+                        throw new IOException("Could not read wallet '" + walletFilenameToUseInModel + "'");
+                    }
+                    wallet = Wallet.loadFromFileStream(new ByteBufferInputStream(walletBytes));
                     walletWasLoadedSuccessfully = true;
                 } catch (WalletVersionException wve) {
                     // We want this exception to propagate out.
@@ -146,11 +167,6 @@ public class FileHandler {
                     String description = e.getClass().getCanonicalName() + " " + e.getMessage();
                     log.error(description);
                     errorMessages.add(description);
-                } finally {
-                    if (stream != null) {
-                        stream.close();
-                    }
-                    fileInputStream.close();
                 }
             }
             
@@ -165,12 +181,12 @@ public class FileHandler {
                  while (!walletWasLoadedSuccessfully && iterator.hasNext()) {
                     String walletToTry = iterator.next();
 
-                    FileInputStream fileInputStream = new FileInputStream(new File(walletToTry));
-                    InputStream stream = null;
-
                     try {
-                        stream = new BufferedInputStream(fileInputStream);
-                        wallet = Wallet.loadFromFileStream(stream);
+                        ByteBuffer backupWalletBytes = readWalletFile(new File(walletToTry));
+                        if (backupWalletBytes == null) {
+                            throw new IOException("Could not read wallet '" + walletToTry + "'");
+                        }
+                        wallet = Wallet.loadFromFileStream(new ByteBufferInputStream(backupWalletBytes));
                         walletWasLoadedSuccessfully = true;
                         
                         // Mention to user that backup is being used.
@@ -182,11 +198,6 @@ public class FileHandler {
                         String description = e.getClass().getCanonicalName() + " " + e.getMessage();
                         log.error(description);
                         errorMessages.add(description);
-                    } finally {
-                        if (stream != null) {
-                            stream.close();
-                        }
-                        fileInputStream.close();
                     }
                 }
             }
@@ -205,8 +216,10 @@ public class FileHandler {
                     }
                     
                     // Check that only receiving addresses that appear in a key
-                    // appear in the wallet info.
-                    walletInfo.checkAllReceivingAddressesAppearInWallet(wallet);
+                    // appear in the wallet info (already done if the wallet was read ahead).
+                    if (preloadedWallet == null || wallet != preloadedWallet.wallet) {
+                        walletInfo.checkAllReceivingAddressesAppearInWallet(wallet);
+                    }
                     
                     // Make sure the version type in the info file matches what was actually loaded.
                     // (A backup with a different encryption type might have been used).
@@ -220,10 +233,22 @@ public class FileHandler {
                 // Add the new wallet into the model.
                 wallet.setNetworkParameters(bitcoinController.getModel().getNetworkParameters());
 
+                // Replay any changes journalled since the wallet file was written.
+                // A journal never applies to a backup.
+                WalletJournal walletJournal = new WalletJournal(walletFile);
+                int numberOfJournalRecordsReplayed = 0;
+                if (useBackupWallets) {
+                    walletJournal.delete();
+                } else {
+                    numberOfJournalRecordsReplayed = walletJournal.replay(wallet, walletFile, bitcoinController.getModel()
+                            .getNetworkParameters());
+                }
+
                 perWalletModelData = bitcoinController.getModel().addWallet(this.bitcoinController, wallet,
                         walletFilenameToUseInModel);
 
                 perWalletModelData.setWalletInfo(walletInfo);
+                perWalletModelData.setWalletJournal(walletJournal);
 
                 // If the backup files were used save them immediately and don't
                 // delete any rolling backups.
@@ -239,6 +264,11 @@ public class FileHandler {
                 synchronized (walletInfo) {
                     rememberFileSizesAndLastModified(new File(walletFilenameToUseInModel), walletInfo);
                     perWalletModelData.setDirty(false);
+
+                    // Fold the replayed journal into the wallet file on the next save.
+                    if (numberOfJournalRecordsReplayed > 0) {
+                        perWalletModelData.setDirty(true);
+                    }
                 }
             } else {
                 // No wallet was loaded successfully.
@@ -272,28 +302,143 @@ public class FileHandler {
         }
     }
 
-    private boolean isWalletSerialised(File walletFile) {
-        boolean isWalletSerialised = false;
-        InputStream stream = null;
+    /**
+     * Read wallets and their wallet infos on the executorService ahead of them
+     * being loaded with loadFromFile. Wallets are still added to the model by
+     * loadFromFile, in the order it is called.
+     * 
+     * @param walletFilenames
+     * @param executorService
+     */
+    public void preloadWallets(Collection<String> walletFilenames, ExecutorService executorService) {
+        for (String walletFilename : walletFilenames) {
+            if (walletFilename == null || "".equals(walletFilename)) {
+                continue;
+            }
+            final File walletFile = new File(walletFilename);
+            if (walletFile.isDirectory()) {
+                continue;
+            }
+            Future<PreloadedWallet> preloadedWallet = executorService.submit(new Callable<PreloadedWallet>() {
+                @Override
+                public PreloadedWallet call() throws Exception {
+                    return preloadWallet(walletFile);
+                }
+            });
+            preloadedWallets.put(walletFile.getAbsolutePath(), preloadedWallet);
+        }
+    }
+
+    private PreloadedWallet preloadWallet(File walletFile) throws Exception {
+        long startTime = System.currentTimeMillis();
+
+        recoverInterruptedSave(walletFile);
+        ByteBuffer walletBytes = readWalletFile(walletFile);
+        if (walletBytes == null || isWalletSerialised(walletBytes)) {
+            // Left for loadFromFile to deal with.
+            return null;
+        }
+
+        WalletInfoData walletInfo = new WalletInfoData(walletFile.getAbsolutePath(), null, MultiBitWalletVersion.PROTOBUF_ENCRYPTED);
+        Wallet wallet = Wallet.loadFromFileStream(new ByteBufferInputStream(walletBytes));
+        walletInfo.checkAllReceivingAddressesAppearInWallet(wallet);
+
+        log.debug("Read wallet '" + walletFile.getAbsolutePath() + "' in " + (System.currentTimeMillis() - startTime) + " ms");
+        return new PreloadedWallet(wallet, walletInfo);
+    }
+
+    /**
+     * Wait for and take a wallet read by preloadWallets.
+     * 
+     * @param walletFile
+     * @return The wallet read, or null if it was not read ahead or could not be read
+     */
+    private PreloadedWallet takePreloadedWallet(File walletFile) {
+        Future<PreloadedWallet> preloadedWallet = preloadedWallets.remove(walletFile.getAbsolutePath());
+        if (preloadedWallet == null) {
+            return null;
+        }
         try {
-            // Determine what kind of wallet stream this is: Java Serialization
-            // or protobuf format.
-            stream = new BufferedInputStream(new FileInputStream(walletFile));
-            isWalletSerialised = stream.read() == 0xac && stream.read() == 0xed;
-        } catch (FileNotFoundException e) {
-            log.error(e.getClass().getCanonicalName() + " " + e.getMessage());
+            return preloadedWallet.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // Read it again in loadFromFile, which reports the error or uses the backups.
+            log.debug("Could not read ahead wallet '" + walletFile.getAbsolutePath() + "'. "
+                    + e.getCause().getClass().getCanonicalName() + " " + e.getCause().getMessage());
+        }
+        return null;
+    }
+
+    private static class PreloadedWallet {
+        final Wallet wallet;
+        final WalletInfoData walletInfo;
+
+        PreloadedWallet(Wallet wallet, WalletInfoData walletInfo) {
+            this.wallet = wallet;
+            this.walletInfo = walletInfo;
+        }
+    }
+
+    /**
+     * Read a whole wallet file with a single open. Elsewhere the file is memory
+     * mapped so the parser reads straight from the page cache. On Windows it is
+     * read into memory instead, as a mapped file cannot be renamed (which saving
+     * does) until the mapping is garbage collected.
+     * 
+     * @param walletFile
+     * @return The wallet bytes, or null if the file is missing, empty or cannot be read
+     */
+    static ByteBuffer readWalletFile(File walletFile) {
+        return readWalletFile(walletFile, MAP_WALLET_FILES);
+    }
+
+    /**
+     * @param mapWalletFile
+     *            map the file rather than read it into a heap buffer
+     */
+    static ByteBuffer readWalletFile(File walletFile, boolean mapWalletFile) {
+        if (!walletFile.exists() || walletFile.length() == 0) {
+            return null;
+        }
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(walletFile.toPath(), StandardOpenOption.READ);
+            long size = channel.size();
+            if (size == 0 || size > MAX_FILE_SIZE) {
+                log.error("Wallet '" + walletFile.getAbsolutePath() + "' has an unexpected size of " + size + " bytes");
+                return null;
+            }
+            if (mapWalletFile) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            ByteBuffer walletBytes = ByteBuffer.allocate((int) size);
+            while (walletBytes.hasRemaining()) {
+                if (channel.read(walletBytes) == -1) {
+                    throw new EOFException("EOF reached while reading '" + walletFile.getAbsolutePath() + "'");
+                }
+            }
+            walletBytes.flip();
+            return walletBytes;
         } catch (IOException e) {
             log.error(e.getClass().getCanonicalName() + " " + e.getMessage());
+            return null;
         } finally {
-            if (stream != null) {
+            if (channel != null) {
                 try {
-                    stream.close();
+                    channel.close();
                 } catch (IOException e) {
                     log.error(e.getClass().getCanonicalName() + " " + e.getMessage());
                 }
             }
         }
-        return isWalletSerialised;
+    }
+
+    private static boolean isWalletSerialised(ByteBuffer walletBytes) {
+        // Determine what kind of wallet stream this is: Java Serialization
+        // or protobuf format.
+        return walletBytes.remaining() >= 2 && (walletBytes.get(walletBytes.position()) & 0xff) == 0xac
+                && (walletBytes.get(walletBytes.position() + 1) & 0xff) == 0xed;
     }
 
     /**
@@ -322,7 +467,14 @@ public class FileHandler {
                     if (!filesHaveChanged || forceWrite) {
                         // Normal write of data.
                         String walletInfoFilename = WalletInfoData.createWalletInfoFilename(perWalletModelData.getWalletFilename());
-                        saveWalletAndWalletInfo(perWalletModelData, perWalletModelData.getWalletFilename(), walletInfoFilename);
+                        boolean wasJournalled = false;
+                        if (!forceWrite) {
+                            wasJournalled = saveToWalletJournal(perWalletModelData, walletFile, walletInfoFilename);
+                        }
+                        if (!wasJournalled) {
+                            saveWalletAndWalletInfo(perWalletModelData, perWalletModelData.getWalletFilename(), walletInfoFilename);
+                            resetWalletJournal(perWalletModelData, walletFile);
+                        }
 
                         rememberFileSizesAndLastModified(walletFile, walletInfo);
 
@@ -338,6 +490,75 @@ public class FileHandler {
         return;
     }
     
+    /**
+     * Append the changes to the wallet since the last save to its journal and write
+     * the wallet info. The wallet file itself is not written.
+     * 
+     * @param perWalletModelData
+     * @param walletFile
+     * @param walletInfoFilename
+     * @return true if the changes were journalled, false if the wallet needs to be written in full
+     */
+    private boolean saveToWalletJournal(WalletData perWalletModelData, File walletFile, String walletInfoFilename) {
+        WalletJournal walletJournal = perWalletModelData.getWalletJournal();
+        WalletInfoData walletInfo = perWalletModelData.getWalletInfo();
+        if (walletJournal == null || walletInfo == null || perWalletModelData.getWallet() == null
+                || perWalletModelData.isSnapshotRequired()) {
+            return false;
+        }
+        if (!(MultiBitWalletVersion.PROTOBUF == walletInfo.getWalletVersion()
+                || MultiBitWalletVersion.PROTOBUF_ENCRYPTED == walletInfo.getWalletVersion())) {
+            return false;
+        }
+        if (!walletJournal.isValidFor(walletFile) || walletJournal.needsCompaction(walletFile)) {
+            return false;
+        }
+
+        List<Sha256Hash> changedTransactionHashes = perWalletModelData.takeChangedTransactionHashes();
+        try {
+            int numberOfRecords = walletJournal.append(perWalletModelData.getWallet(), changedTransactionHashes);
+            if (numberOfRecords < 0) {
+                perWalletModelData.restoreChangedTransactionHashes(changedTransactionHashes);
+                return false;
+            }
+            log.debug("Journalled " + numberOfRecords + " records for wallet '" + walletFile.getAbsolutePath() + "'");
+        } catch (IOException ioe) {
+            log.error("Could not write to the journal for wallet '" + walletFile.getAbsolutePath() + "'. "
+                    + ioe.getClass().getCanonicalName() + " " + ioe.getMessage());
+            perWalletModelData.restoreChangedTransactionHashes(changedTransactionHashes);
+            return false;
+        }
+
+        walletInfo.writeToFile(walletInfoFilename, walletInfo.getWalletVersion());
+        return true;
+    }
+
+    /**
+     * Start a fresh journal after the wallet file has been written in full.
+     * 
+     * @param perWalletModelData
+     * @param walletFile
+     */
+    private void resetWalletJournal(WalletData perWalletModelData, File walletFile) {
+        perWalletModelData.setSnapshotRequired(false);
+        // Everything that had changed is now in the wallet file.
+        perWalletModelData.takeChangedTransactionHashes();
+
+        WalletJournal walletJournal = perWalletModelData.getWalletJournal();
+        if (walletJournal == null) {
+            walletJournal = new WalletJournal(walletFile);
+            perWalletModelData.setWalletJournal(walletJournal);
+        }
+        try {
+            walletJournal.reset(walletFile);
+        } catch (IOException ioe) {
+            // The next save will write the wallet file in full again.
+            log.error("Could not reset the journal for wallet '" + walletFile.getAbsolutePath() + "'. "
+                    + ioe.getClass().getCanonicalName() + " " + ioe.getMessage());
+            walletJournal.delete();
+        }
+    }
+
     /**
      * Simply save the wallet and wallet info files.
      * Used for backup writes.
@@ -425,11 +646,16 @@ public class FileHandler {
     }
 
     /**
-     * To protect the wallet data, the write is in steps: 1) Create a backup
-     * file called <wallet file name>-<yyyymmddhhmmss>.wallet and copy the
-     * original wallet to that 2) Write the new wallet to the walletFilename 3)
-     * Delete the old backup file 4) Make the backup file in step 1) the new
-     * backup file
+     * To protect the wallet data, the write is in steps: 1) Write the new wallet
+     * to <wallet file name>.tmp and force it to disk 2) Write the commit marker
+     * <wallet file name>.tmp.complete holding its length 3) Rename the original
+     * wallet to a backup file called <wallet file name>-<yyyymmddhhmmss>.wallet
+     * 4) Rename the temporary file to the walletFilename, force the directory
+     * and delete the commit marker 5) Delete the old backup file 6) Make the
+     * backup file in step 3) the new backup file
+     * 
+     * At every point there is a complete wallet on disk - the original, the
+     * rolling backup or the committed temporary file (see recoverInterruptedSave).
      * 
      **/
     private void saveWalletAndWalletInfo(WalletData perWalletModelData, String walletFilename, String walletInfoFilename) {
@@ -460,10 +686,9 @@ public class FileHandler {
                 if (null != oldBackupFilename && !"".equals(oldBackupFilename)) {
                     oldBackupFile = new File(oldBackupFilename);
                 }
-                if (walletInfo != null && (MultiBitWalletVersion.PROTOBUF == walletInfo.getWalletVersion()
-                        || MultiBitWalletVersion.PROTOBUF_ENCRYPTED == walletInfo.getWalletVersion())) {
-                    newBackupFilename = copyExistingWalletToBackupAndDeleteOriginal(walletFile);
-                }
+                File temporaryWalletFile = createTemporaryWalletFile(walletFile);
+                // A marker left by a failed save must not vouch for this one.
+                deleteCommitMarker(temporaryWalletFile);
 
                 log.debug("Saving wallet file '" + walletFile.getAbsolutePath() + "' ...");
                 if (walletInfo != null && MultiBitWalletVersion.SERIALIZED == walletInfo.getWalletVersion()) {
@@ -487,10 +712,12 @@ public class FileHandler {
                     }
 
                     if (MultiBitWalletVersion.PROTOBUF == walletInfo.getWalletVersion()) {
+                        fileOutputStream = new FileOutputStream(temporaryWalletFile);
+
                         // Save as a Wallet message.
-                        perWalletModelData.getWallet().saveToFile(walletFile);
+                        perWalletModelData.getWallet().saveToFileStream(fileOutputStream);
                     } else if (MultiBitWalletVersion.PROTOBUF_ENCRYPTED == walletInfo.getWalletVersion()) {
-                        fileOutputStream = new FileOutputStream(walletFile);
+                        fileOutputStream = new FileOutputStream(temporaryWalletFile);
 
                         // Save as a Wallet message with a mandatory extension
                         // to prevent loading by older versions of multibit.
@@ -500,6 +727,21 @@ public class FileHandler {
                                 + "'. Its wallet version is '" + walletInfo.getWalletVersion().toString()
                                 + "' but this version of MultiBit does not understand that format.");
                     }
+
+                    // The new wallet must be on disk before the original is moved out of the way.
+                    fileOutputStream.flush();
+                    fileOutputStream.getChannel().force(true);
+                    fileOutputStream.close();
+                    fileOutputStream = null;
+                    writeCommitMarker(temporaryWalletFile);
+
+                    newBackupFilename = moveExistingWalletToBackup(walletFile);
+                    moveFile(temporaryWalletFile, walletFile);
+                    forceDirectory(walletFile.getAbsoluteFile().getParentFile());
+                    if (newBackupFilename != null) {
+                        forceDirectory(new File(newBackupFilename).getAbsoluteFile().getParentFile());
+                    }
+                    deleteCommitMarker(temporaryWalletFile);
                 }
                 log.debug("... done saving wallet file. Wallet file size is " + walletFile.length() + " bytes.");
 
@@ -522,7 +764,7 @@ public class FileHandler {
                         }
                     }
                     if (!userHasOpenedBackupFile) {
-                        secureDelete(oldBackupFile);
+                        Shredder.INSTANCE.shredLater(oldBackupFile);
                     }
                 }
             }
@@ -530,11 +772,12 @@ public class FileHandler {
             throw new WalletSaveException("Cannot save wallet '" + perWalletModelData.getWalletFilename(), ioe);
         } finally {
             if (fileOutputStream != null) {
+                // The write failed part way through so the temporary file is incomplete.
                 try {
-                    fileOutputStream.flush();
                     fileOutputStream.close();
+                    Shredder.INSTANCE.shredLater(createTemporaryWalletFile(walletFile));
                 } catch (IOException e) {
-                    throw new WalletSaveException("Cannot save wallet '" + perWalletModelData.getWalletFilename(), e);
+                    log.error(e.getClass().getCanonicalName() + " " + e.getMessage());
                 }
             }
         }
@@ -587,29 +830,183 @@ public class FileHandler {
     }
 
     /**
-     * Copy an existing wallet to a backup file and delete the original.
+     * Rename an existing wallet to a backup file.
      * Used in rolling backups
      * 
      * @param walletFile
      * @return
      * @throws IOException
      */
-    private String copyExistingWalletToBackupAndDeleteOriginal(File walletFile) throws IOException {
+    private String moveExistingWalletToBackup(File walletFile) throws IOException {
         String newWalletBackupFilename = BackupManager.INSTANCE.createBackupFilename(walletFile, BackupManager.ROLLING_WALLET_BACKUP_DIRECTORY_NAME, false, false, BitcoinModel.WALLET_FILE_EXTENSION);
         File newWalletBackupFile = new File(newWalletBackupFilename);
-        if (walletFile != null && walletFile.exists()) {
-            FileHandler.copyFile(walletFile, newWalletBackupFile);
-            if (walletFile.length() != newWalletBackupFile.length()) {
-                throw new IOException("Failed to copy the existing wallet from '" + walletFile.getAbsolutePath() + "' to '"
-                        + newWalletBackupFilename + "'");
+        if (walletFile != null && walletFile.exists()
+                && !walletFile.getAbsolutePath().equals(newWalletBackupFile.getAbsolutePath())) {
+            moveFile(walletFile, newWalletBackupFile);
+        }
+
+        return newWalletBackupFilename;
+    }
+
+    /**
+     * The file a wallet is written to before it is renamed over the wallet file.
+     * It is in the same directory as the wallet so that the rename is atomic.
+     * 
+     * @param walletFile
+     * @return
+     */
+    static File createTemporaryWalletFile(File walletFile) {
+        return new File(walletFile.getAbsolutePath() + TEMPORARY_WALLET_FILE_SUFFIX);
+    }
+
+    static File createCommitMarkerFile(File temporaryWalletFile) {
+        return new File(temporaryWalletFile.getAbsolutePath() + TEMPORARY_WALLET_COMPLETE_SUFFIX);
+    }
+
+    /**
+     * Record that the temporary wallet file is complete and on disk.
+     * 
+     * @param temporaryWalletFile
+     * @throws IOException
+     */
+    private static void writeCommitMarker(File temporaryWalletFile) throws IOException {
+        FileOutputStream markerOutputStream = new FileOutputStream(createCommitMarkerFile(temporaryWalletFile));
+        try {
+            markerOutputStream.write(Long.toString(temporaryWalletFile.length()).getBytes("UTF-8"));
+            markerOutputStream.flush();
+            markerOutputStream.getChannel().force(true);
+        } finally {
+            markerOutputStream.close();
+        }
+    }
+
+    private static void deleteCommitMarker(File temporaryWalletFile) {
+        File markerFile = createCommitMarkerFile(temporaryWalletFile);
+        if (markerFile.exists() && !markerFile.delete()) {
+            log.debug("Could not delete '" + markerFile.getAbsolutePath() + "'");
+        }
+    }
+
+    /**
+     * @return true if the commit marker of the temporary wallet file exists and
+     *         holds its length
+     */
+    private static boolean isCommitted(File temporaryWalletFile) {
+        File markerFile = createCommitMarkerFile(temporaryWalletFile);
+        if (!markerFile.exists()) {
+            return false;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(markerFile), "UTF-8"));
+            String line = reader.readLine();
+            return line != null && temporaryWalletFile.length() > 0
+                    && Long.parseLong(line.trim()) == temporaryWalletFile.length();
+        } catch (IOException ioe) {
+            log.error(ioe.getClass().getCanonicalName() + " " + ioe.getMessage());
+        } catch (NumberFormatException nfe) {
+            log.debug("Ignoring commit marker '" + markerFile.getAbsolutePath() + "'. " + nfe.getMessage());
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ioe) {
+                    log.error(ioe.getClass().getCanonicalName() + " " + ioe.getMessage());
+                }
             }
+        }
+        return false;
+    }
 
-            if (!walletFile.getAbsolutePath().equals(newWalletBackupFile.getAbsolutePath())) {
-                secureDelete(walletFile);
+    /**
+     * Force the renames in a directory to disk. Not all platforms can open a
+     * directory (e.g. Windows) in which case the renames are left to the
+     * file system.
+     * 
+     * @param directory
+     */
+    static void forceDirectory(File directory) {
+        if (directory == null) {
+            return;
+        }
+        FileChannel directoryChannel = null;
+        try {
+            directoryChannel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+            directoryChannel.force(true);
+        } catch (IOException ioe) {
+            log.debug("Cannot force directory '" + directory.getAbsolutePath() + "'. " + ioe.getMessage());
+        } finally {
+            if (directoryChannel != null) {
+                try {
+                    directoryChannel.close();
+                } catch (IOException ioe) {
+                    log.error(ioe.getClass().getCanonicalName() + " " + ioe.getMessage());
+                }
             }
         }
+    }
 
-        return newWalletBackupFilename;
+    /**
+     * Finish or discard a wallet save that was interrupted (e.g. power loss).
+     * If the wallet file is missing and the temporary file has its commit
+     * marker, the original was already renamed to the rolling backup and the
+     * temporary file is complete, so it becomes the wallet. Otherwise the
+     * temporary file may be incomplete (e.g. the first save of a new wallet)
+     * and is deleted.
+     * 
+     * @param walletFile
+     */
+    private void recoverInterruptedSave(File walletFile) {
+        File temporaryWalletFile = createTemporaryWalletFile(walletFile);
+        if (!temporaryWalletFile.exists()) {
+            deleteCommitMarker(temporaryWalletFile);
+            return;
+        }
+        try {
+            if (!walletFile.exists() && isCommitted(temporaryWalletFile)) {
+                log.info("Completing interrupted save of wallet '" + walletFile.getAbsolutePath() + "'");
+                moveFile(temporaryWalletFile, walletFile);
+                forceDirectory(walletFile.getAbsoluteFile().getParentFile());
+            } else {
+                Shredder.INSTANCE.shredLater(temporaryWalletFile);
+            }
+            deleteCommitMarker(temporaryWalletFile);
+        } catch (IOException ioe) {
+            log.error(ioe.getClass().getCanonicalName() + " " + ioe.getMessage());
+        }
+    }
+
+    /**
+     * Finish shredding any files a previous run did not get to, next to the
+     * wallet and in its backup directories.
+     * 
+     * @param walletFile
+     */
+    private void shredLeftovers(File walletFile) {
+        Shredder.INSTANCE.shredLeftovers(walletFile.getAbsoluteFile().getParentFile());
+        File[] backupDirectories = new File(BackupManager.INSTANCE.calculateTopLevelBackupDirectoryName(walletFile)).listFiles();
+        if (backupDirectories != null) {
+            for (File backupDirectory : backupDirectories) {
+                Shredder.INSTANCE.shredLeftovers(backupDirectory);
+            }
+        }
+    }
+
+    /**
+     * Rename a file, replacing the destination. The rename is atomic where the
+     * file system supports it.
+     * 
+     * @param sourceFile
+     * @param destinationFile
+     * @throws IOException
+     */
+    static void moveFile(File sourceFile, File destinationFile) throws IOException {
+        try {
+            Files.move(sourceFile.toPath(), destinationFile.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException amnse) {
+            Files.move(sourceFile.toPath(), destinationFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
     }
 
     /**
@@ -637,6 +1034,9 @@ public class FileHandler {
             try {
                 FileHandler.secureDelete(walletInfoFile);
                 FileHandler.secureDelete(walletFile);
+                if (perWalletModelData.getWalletJournal() != null) {
+                    perWalletModelData.getWalletJournal().delete();
+                }
                 walletInfo.setDeleted(true);
             } catch (IOException ioe) {
                 log.error(ioe.getClass().getCanonicalName() + " " + ioe.getMessage());
@@ -1049,43 +1449,14 @@ public class FileHandler {
     /**
      * Delete a file with an overwrite of all of the data.
      * 
-     * Set bit patterns are used rather than random numbers to avoid a
-     * futex_wait_queue_me error on Linux systems (related to /dev/random usage)
+     * The file is gone when this returns. Use Shredder.INSTANCE.shredLater
+     * where that is not needed.
      * 
      * @param file
      * @throws IOException
      */
     public static void secureDelete(File file) throws IOException {
-        log.debug("Start of secureDelete");
-
-        RandomAccessFile raf = null;
-        if (file != null && file.exists()) {
-            try {
-                // Prep for file delete as this can be fiddly on windows.
-                // Make sure it is writable and any references to it are garbage
-                // collected and finalized.
-                file.setWritable(true);
-                System.gc();
-
-                long length = file.length();
-                raf = new RandomAccessFile(file, "rws");
-                raf.seek(0);
-                raf.getFilePointer();
-                int pos = 0;
-                while (pos < length) {
-                    raf.write(SECURE_DELETE_FILL_BYTES);
-                    pos += SECURE_DELETE_FILL_BYTES.length;
-                }
-            } finally {
-                if (raf != null) {
-                    raf.close();
-                    raf = null;
-                }
-            }
-            boolean deleteSuccess = file.delete();
-            log.debug("Result of delete of file '" + file.getAbsolutePath() + "' was " + deleteSuccess);
-        }
-        log.debug("End of secureDelete");
+        Shredder.INSTANCE.shredNow(file);
     }
 
     public static byte[] read(File file) throws IOException {
@@ -0,0 +1,291 @@
+/*
+ * SparkBit
+ *
+ * Copyright 2011-2014 multibit.org
+ * Copyright 2014 Coin Sciences Ltd
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Class to overwrite and delete files that held wallet data.
+ *
+ * Files are overwritten in large chunks with a single force to disk at the end.
+ * Files that do not need to be gone before the caller continues (old rolling
+ * backups, thinned backups) are renamed out of the way and shredded on a
+ * background thread. The queue is drained on shutdown.
+ */
+public enum Shredder {
+    INSTANCE;
+
+    private static final Logger log = LoggerFactory.getLogger(Shredder.class);
+
+    /**
+     * Suffix of files waiting to be shredded.
+     */
+    public static final String SHRED_FILE_SUFFIX = ".shred";
+
+    private static final int CHUNK_SIZE = 1024 * 1024; // 1 MB
+
+    // Nonsense bytes to fill up deleted files - these have no meaning.
+    // Set bit patterns are used rather than random numbers to avoid a
+    // futex_wait_queue_me error on Linux systems (related to /dev/random usage)
+    private static final byte[] NONSENSE_BYTES = new byte[] { (byte) 0xF0, (byte) 0xA6, (byte) 0x55, (byte) 0xAA, (byte) 0x33,
+            (byte) 0x77, (byte) 0x33, (byte) 0x37, (byte) 0x12, (byte) 0x34, (byte) 0x56, (byte) 0x78, (byte) 0xC2, (byte) 0xB3,
+            (byte) 0xA4, (byte) 0x9A, (byte) 0x30, (byte) 0x7F, (byte) 0xE5, (byte) 0x5A, (byte) 0x23, (byte) 0x47, (byte) 0x13,
+            (byte) 0x17, (byte) 0x15, (byte) 0x32, (byte) 0x5C, (byte) 0x77, (byte) 0xC9, (byte) 0x73, (byte) 0x04, (byte) 0x2D,
+            (byte) 0x40, (byte) 0x0F, (byte) 0xA5, (byte) 0xA6, (byte) 0x43, (byte) 0x77, (byte) 0x33, (byte) 0x3B, (byte) 0x62,
+            (byte) 0x34, (byte) 0xB6, (byte) 0x72, (byte) 0x32, (byte) 0xB3, (byte) 0xA4, (byte) 0x4B, (byte) 0x80, (byte) 0x7F,
+            (byte) 0xC5, (byte) 0x43, (byte) 0x23, (byte) 0x47, (byte) 0x13, (byte) 0xB7, (byte) 0xA5, (byte) 0x32, (byte) 0xDC,
+            (byte) 0x79, (byte) 0x19, (byte) 0xB1, (byte) 0x03, (byte) 0x9D };
+
+    /**
+     * The fill pattern, shared by all shreds. It is never written to after it is
+     * built so duplicates of it can be used from any thread.
+     */
+    private static final ByteBuffer FILL_BUFFER = createFillBuffer();
+
+    private final ExecutorService executorService;
+
+    /**
+     * Absolute paths of files queued for shredding.
+     */
+    private final Set<String> queuedFilenames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final AtomicInteger queueDepth = new AtomicInteger(0);
+    private final AtomicLong bytesShredded = new AtomicLong(0);
+    private final AtomicLong nanosShredding = new AtomicLong(0);
+    private final AtomicLong renameCounter = new AtomicLong(0);
+
+    private Shredder() {
+        executorService = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Shredder");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    private static ByteBuffer createFillBuffer() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(CHUNK_SIZE);
+        while (buffer.hasRemaining()) {
+            buffer.put(NONSENSE_BYTES, 0, Math.min(NONSENSE_BYTES.length, buffer.remaining()));
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Overwrite and delete a file before returning.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void shredNow(File file) throws IOException {
+        if (file == null || !file.exists()) {
+            return;
+        }
+        long startTime = System.nanoTime();
+        long length = overwrite(file);
+        boolean deleteSuccess = file.delete();
+
+        long timeTaken = System.nanoTime() - startTime;
+        bytesShredded.addAndGet(length);
+        nanosShredding.addAndGet(timeTaken);
+        log.debug("Result of shred of file '" + file.getAbsolutePath() + "' (" + length + " bytes, "
+                + TimeUnit.NANOSECONDS.toMillis(timeTaken) + " ms) was " + deleteSuccess);
+    }
+
+    /**
+     * Overwrite and delete a file in the background. The file is first renamed
+     * so that its name can be reused straight away. If it cannot be renamed it
+     * is shredded before returning.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void shredLater(File file) throws IOException {
+        if (file == null || !file.exists()) {
+            return;
+        }
+
+        File fileToShred = file;
+        if (!file.getName().endsWith(SHRED_FILE_SUFFIX)) {
+            fileToShred = new File(file.getAbsolutePath() + "." + System.currentTimeMillis() + "-"
+                    + renameCounter.incrementAndGet() + SHRED_FILE_SUFFIX);
+            try {
+                FileHandler.moveFile(file, fileToShred);
+            } catch (IOException ioe) {
+                log.debug("Could not rename '" + file.getAbsolutePath() + "' for shredding. "
+                        + ioe.getClass().getCanonicalName() + " " + ioe.getMessage());
+                shredNow(file);
+                return;
+            }
+        }
+
+        final File finalFileToShred = fileToShred;
+        if (!queuedFilenames.add(finalFileToShred.getAbsolutePath())) {
+            // Already queued.
+            return;
+        }
+        queueDepth.incrementAndGet();
+        try {
+            executorService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        shredNow(finalFileToShred);
+                    } catch (IOException ioe) {
+                        log.error(ioe.getClass().getCanonicalName() + " " + ioe.getMessage());
+                    } finally {
+                        queuedFilenames.remove(finalFileToShred.getAbsolutePath());
+                        queueDepth.decrementAndGet();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            // Shutting down - do it on this thread instead.
+            queuedFilenames.remove(finalFileToShred.getAbsolutePath());
+            queueDepth.decrementAndGet();
+            shredNow(finalFileToShred);
+        }
+    }
+
+    /**
+     * Queue any files left waiting to be shredded by a previous run (e.g. after
+     * a power loss) in the specified directory.
+     *
+     * @param directory
+     */
+    public void shredLeftovers(File directory) {
+        if (directory == null || !directory.isDirectory()) {
+            return;
+        }
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isFile() && file.getName().endsWith(SHRED_FILE_SUFFIX)) {
+                try {
+                    shredLater(file);
+                } catch (IOException ioe) {
+                    log.error(ioe.getClass().getCanonicalName() + " " + ioe.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop accepting background shreds and wait for the queued ones to finish.
+     *
+     * @param timeoutMillis
+     * @return true if the queue was drained
+     */
+    public boolean drain(long timeoutMillis) {
+        executorService.shutdown();
+        try {
+            boolean drained = executorService.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+            log.debug("Shredder drained = " + drained + ", queue depth = " + queueDepth.get() + ", "
+                    + bytesShredded.get() + " bytes shredded at " + getBytesShreddedPerSecond() + " bytes/s");
+            return drained;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * @return the number of files waiting to be shredded in the background
+     */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /**
+     * @return the total number of bytes overwritten
+     */
+    public long getBytesShredded() {
+        return bytesShredded.get();
+    }
+
+    /**
+     * @return the average shredding rate, in bytes per second of time spent shredding
+     */
+    public long getBytesShreddedPerSecond() {
+        long nanos = nanosShredding.get();
+        if (nanos <= 0) {
+            return 0;
+        }
+        return (long) (bytesShredded.get() * (double) TimeUnit.SECONDS.toNanos(1) / nanos);
+    }
+
+    /**
+     * Overwrite the whole of a file with the fill pattern and force it to disk.
+     *
+     * @param file
+     * @return the number of bytes overwritten
+     * @throws IOException
+     */
+    private long overwrite(File file) throws IOException {
+        // Prep for file delete as this can be fiddly on windows.
+        file.setWritable(true);
+
+        FileChannel channel = null;
+        long length = 0;
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+            length = channel.size();
+            ByteBuffer chunk = FILL_BUFFER.duplicate();
+            long position = 0;
+            while (position < length) {
+                chunk.clear();
+                if (length - position < chunk.capacity()) {
+                    chunk.limit((int) (length - position));
+                }
+                while (chunk.hasRemaining()) {
+                    position += channel.write(chunk, position);
+                }
+            }
+            channel.force(false);
+        } finally {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+        return length;
+    }
+}
@@ -0,0 +1,446 @@
+/*
+ * SparkBit
+ *
+ * Copyright 2011-2014 multibit.org
+ * Copyright 2014 Coin Sciences Ltd
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.file;
+
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.ProtocolException;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionConfidence;
+import com.google.bitcoin.core.TransactionConfidence.ConfidenceType;
+import com.google.bitcoin.core.VerificationException;
+import com.google.bitcoin.core.Wallet;
+import org.multibit.model.bitcoin.BitcoinModel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the changes made to a wallet since its wallet file was last written.
+ *
+ * The wallet file is the snapshot. Between snapshots, saves append the transactions that
+ * changed and the last block seen to the journal so that a save costs O(changes) rather than
+ * O(wallet size). When the journal grows past a threshold (or something that cannot be journalled
+ * changes, such as the keys) the wallet is written in full and the journal is reset.
+ *
+ * Private keys are never written to the journal.
+ *
+ * The journal lives in <wallet>-data/journal/<wallet>.journal. Its header records the size and
+ * last modified time of the snapshot it applies to so a journal left over from an older snapshot
+ * is never replayed.
+ */
+public class WalletJournal {
+    private static final Logger log = LoggerFactory.getLogger(WalletJournal.class);
+
+    public static final String JOURNAL_FILE_EXTENSION = "journal";
+
+    /**
+     * The journal is compacted into the wallet file when it is bigger than this.
+     */
+    public static final long MINIMUM_COMPACTION_SIZE = 256 * 1024; // bytes
+
+    /**
+     * The journal is also compacted when it is bigger than this fraction of the wallet file.
+     */
+    public static final int COMPACTION_FRACTION_OF_WALLET = 4;
+
+    private static final byte[] MAGIC_BYTES = new byte[] { (byte) 0x73, (byte) 0x62, (byte) 0x6A, (byte) 0x72, (byte) 0x6E, (byte) 0x6C }; // sbjrnl in ASCII
+    private static final byte JOURNAL_VERSION = (byte) 0x01;
+
+    private static final byte RECORD_TRANSACTION = (byte) 0x01;
+    private static final byte RECORD_LAST_BLOCK_SEEN = (byte) 0x02;
+
+    private static final int MAXIMUM_RECORD_SIZE = 1024 * 1024; // Dont read records greater than 1 megabyte.
+
+    private final File journalFile;
+
+    /**
+     * The snapshot identity recorded in the journal header.
+     */
+    private long snapshotSize = -1;
+    private long snapshotLastModified = -1;
+
+    /**
+     * What has already been written to the journal since the last snapshot - used to skip
+     * transactions whose only change is their depth (which is recalculated from the last block seen).
+     */
+    private final Map<Sha256Hash, Integer> journalledTransactionStates;
+    private int journalledLastBlockSeenHeight = -1;
+
+    public WalletJournal(File walletFile) {
+        this.journalFile = new File(createJournalFilename(walletFile));
+        this.journalledTransactionStates = new HashMap<Sha256Hash, Integer>();
+    }
+
+    /**
+     * Create the journal filename for a wallet i.e. <wallet>-data/journal/<wallet>.journal
+     */
+    public static String createJournalFilename(File walletFile) {
+        String topLevelBackupDirectoryName = BackupManager.INSTANCE.calculateTopLevelBackupDirectoryName(walletFile);
+        String walletFilenameShort = walletFile.getName();
+        String walletSuffixSearchText = "." + BitcoinModel.WALLET_FILE_EXTENSION;
+        if (walletFilenameShort.endsWith(walletSuffixSearchText)) {
+            walletFilenameShort = walletFilenameShort.substring(0, walletFilenameShort.length() - walletSuffixSearchText.length());
+        }
+        return topLevelBackupDirectoryName + File.separator + BackupManager.JOURNAL_DIRECTORY_NAME + File.separator
+                + walletFilenameShort + "." + JOURNAL_FILE_EXTENSION;
+    }
+
+    public File getJournalFile() {
+        return journalFile;
+    }
+
+    /**
+     * @return true if the journal header matches the wallet file i.e. the journal applies to it.
+     */
+    public synchronized boolean isValidFor(File walletFile) {
+        return walletFile != null && walletFile.exists() && journalFile.exists() && snapshotSize == walletFile.length()
+                && snapshotLastModified == walletFile.lastModified();
+    }
+
+    /**
+     * @return true if the journal is big enough that it should be folded into the wallet file.
+     */
+    public synchronized boolean needsCompaction(File walletFile) {
+        long threshold = Math.max(MINIMUM_COMPACTION_SIZE, walletFile.length() / COMPACTION_FRACTION_OF_WALLET);
+        return journalFile.length() > threshold;
+    }
+
+    /**
+     * @return true if there is anything in the journal beyond its header.
+     */
+    public synchronized boolean hasEntries() {
+        return journalFile.exists() && journalFile.length() > MAGIC_BYTES.length + 1 + 16;
+    }
+
+    /**
+     * Start a new, empty journal for the wallet file that has just been written.
+     */
+    public synchronized void reset(File walletFile) throws IOException {
+        journalledTransactionStates.clear();
+        journalledLastBlockSeenHeight = -1;
+
+        File journalDirectory = journalFile.getParentFile();
+        if (journalDirectory != null && !journalDirectory.exists()) {
+            journalDirectory.mkdirs();
+        }
+
+        snapshotSize = walletFile.length();
+        snapshotLastModified = walletFile.lastModified();
+
+        FileOutputStream fileOutputStream = new FileOutputStream(journalFile, false);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOutputStream));
+            out.write(MAGIC_BYTES);
+            out.writeByte(JOURNAL_VERSION);
+            out.writeLong(snapshotSize);
+            out.writeLong(snapshotLastModified);
+            out.flush();
+            fileOutputStream.getChannel().force(false);
+        } finally {
+            fileOutputStream.close();
+        }
+    }
+
+    /**
+     * Delete the journal e.g. when the wallet has been written in full or deleted.
+     */
+    public synchronized void delete() {
+        journalledTransactionStates.clear();
+        journalledLastBlockSeenHeight = -1;
+        snapshotSize = -1;
+        snapshotLastModified = -1;
+        if (journalFile.exists()) {
+            boolean deleteSuccess = journalFile.delete();
+            log.debug("Result of delete of journal '" + journalFile.getAbsolutePath() + "' was " + deleteSuccess);
+        }
+    }
+
+    /**
+     * Append the changed transactions and the last block seen to the journal and force them to disk.
+     *
+     * @param wallet The wallet the changes were made to
+     * @param changedTransactionHashes The hashes of the transactions that have changed
+     * @return The number of records written, or -1 if a change cannot be journalled (the wallet must be written in full)
+     */
+    public synchronized int append(Wallet wallet, Collection<Sha256Hash> changedTransactionHashes) throws IOException {
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(records);
+        Map<Sha256Hash, Integer> newStates = new HashMap<Sha256Hash, Integer>();
+        int numberOfRecords = 0;
+
+        for (Sha256Hash hash : changedTransactionHashes) {
+            Transaction transaction = wallet.getTransaction(hash);
+            if (transaction == null) {
+                // Removed from the wallet - the journal only records additions and updates.
+                return -1;
+            }
+            int state = calculateTransactionState(transaction);
+            Integer previousState = journalledTransactionStates.get(hash);
+            if (previousState != null && previousState.intValue() == state) {
+                continue;
+            }
+            writeRecord(out, RECORD_TRANSACTION, createTransactionPayload(transaction));
+            newStates.put(hash, state);
+            numberOfRecords++;
+        }
+
+        int lastBlockSeenHeight = wallet.getLastBlockSeenHeight();
+        Sha256Hash lastBlockSeenHash = wallet.getLastBlockSeenHash();
+        if (lastBlockSeenHash != null && lastBlockSeenHeight != journalledLastBlockSeenHeight) {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            DataOutputStream payloadOut = new DataOutputStream(payload);
+            payloadOut.write(lastBlockSeenHash.getBytes());
+            payloadOut.writeInt(lastBlockSeenHeight);
+            payloadOut.flush();
+            writeRecord(out, RECORD_LAST_BLOCK_SEEN, payload.toByteArray());
+            numberOfRecords++;
+        }
+        out.flush();
+
+        if (numberOfRecords > 0) {
+            FileOutputStream fileOutputStream = new FileOutputStream(journalFile, true);
+            try {
+                fileOutputStream.write(records.toByteArray());
+                fileOutputStream.flush();
+                fileOutputStream.getChannel().force(false);
+            } finally {
+                fileOutputStream.close();
+            }
+            journalledTransactionStates.putAll(newStates);
+            journalledLastBlockSeenHeight = lastBlockSeenHeight;
+        }
+        return numberOfRecords;
+    }
+
+    /**
+     * Replay the journal onto a wallet freshly loaded from its wallet file.
+     *
+     * Pending transactions are received back into the wallet. Transactions that had been seen in a
+     * block are not reconstructed here - instead the last block seen is held back to before the
+     * block they appeared in, so the usual startup sync downloads them again.
+     *
+     * @return The number of records that were read from the journal
+     */
+    public synchronized int replay(Wallet wallet, File walletFile, NetworkParameters networkParameters) {
+        if (!journalFile.exists()) {
+            return 0;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+            byte[] magicBytes = new byte[MAGIC_BYTES.length];
+            in.readFully(magicBytes);
+            byte version = in.readByte();
+            long headerSnapshotSize = in.readLong();
+            long headerSnapshotLastModified = in.readLong();
+
+            if (!Arrays.equals(MAGIC_BYTES, magicBytes) || version != JOURNAL_VERSION) {
+                log.error("The journal '" + journalFile.getAbsolutePath() + "' is not a valid journal. Ignoring it.");
+                return 0;
+            }
+            if (headerSnapshotSize != walletFile.length() || headerSnapshotLastModified != walletFile.lastModified()) {
+                // The wallet file was written after the journal was started (e.g. a crash before the reset)
+                // so the journal is already in the wallet file.
+                log.debug("The journal '" + journalFile.getAbsolutePath() + "' does not apply to the wallet file. Ignoring it.");
+                return 0;
+            }
+            snapshotSize = headerSnapshotSize;
+            snapshotLastModified = headerSnapshotLastModified;
+
+            // Read the records. Keep the latest record for each transaction.
+            Map<Sha256Hash, byte[]> transactionPayloads = new LinkedHashMap<Sha256Hash, byte[]>();
+            TreeMap<Integer, Sha256Hash> lastBlocksSeen = new TreeMap<Integer, Sha256Hash>();
+            int numberOfRecords = 0;
+            while (true) {
+                byte[] payload;
+                byte recordType;
+                try {
+                    recordType = in.readByte();
+                    int length = in.readInt();
+                    long checksum = in.readLong();
+                    if (length < 0 || length > MAXIMUM_RECORD_SIZE) {
+                        log.error("Corrupt record length in journal '" + journalFile.getAbsolutePath() + "'. Stopping replay.");
+                        break;
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    if (calculateChecksum(recordType, payload) != checksum) {
+                        log.error("Corrupt record in journal '" + journalFile.getAbsolutePath() + "'. Stopping replay.");
+                        break;
+                    }
+                } catch (EOFException eofe) {
+                    // End of the journal or a partially written last record.
+                    break;
+                }
+
+                numberOfRecords++;
+                DataInputStream payloadIn = new DataInputStream(new ByteArrayInputStream(payload));
+                if (recordType == RECORD_TRANSACTION) {
+                    byte[] hashBytes = new byte[32];
+                    payloadIn.readFully(hashBytes);
+                    transactionPayloads.remove(new Sha256Hash(hashBytes));
+                    transactionPayloads.put(new Sha256Hash(hashBytes), payload);
+                } else if (recordType == RECORD_LAST_BLOCK_SEEN) {
+                    byte[] hashBytes = new byte[32];
+                    payloadIn.readFully(hashBytes);
+                    lastBlocksSeen.put(payloadIn.readInt(), new Sha256Hash(hashBytes));
+                }
+            }
+
+            // Apply the transactions, working out how far back the last block seen must be held.
+            int holdLastBlockSeenBelowHeight = Integer.MAX_VALUE;
+            for (byte[] payload : transactionPayloads.values()) {
+                holdLastBlockSeenBelowHeight = Math.min(holdLastBlockSeenBelowHeight,
+                        applyTransactionPayload(wallet, payload, networkParameters));
+            }
+
+            // Move the last block seen on as far as is safe.
+            SortedMap<Integer, Sha256Hash> usableLastBlocksSeen = lastBlocksSeen.headMap(holdLastBlockSeenBelowHeight);
+            if (!usableLastBlocksSeen.isEmpty()) {
+                int height = usableLastBlocksSeen.lastKey();
+                if (height > wallet.getLastBlockSeenHeight()) {
+                    wallet.setLastBlockSeenHash(usableLastBlocksSeen.get(height));
+                    wallet.setLastBlockSeenHeight(height);
+                }
+            }
+
+            log.debug("Replayed " + numberOfRecords + " records from journal '" + journalFile.getAbsolutePath()
+                    + "'. Last block seen height is now " + wallet.getLastBlockSeenHeight());
+            return numberOfRecords;
+        } catch (IOException ioe) {
+            log.error("Could not replay journal '" + journalFile.getAbsolutePath() + "'. " + ioe.getClass().getCanonicalName()
+                    + " " + ioe.getMessage());
+            return 0;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    log.error(e.getClass().getCanonicalName() + " " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Apply a journalled transaction to the wallet.
+     *
+     * @return The height the last block seen must be kept below for the wallet to be consistent.
+     */
+    private int applyTransactionPayload(Wallet wallet, byte[] payload, NetworkParameters networkParameters) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte[] hashBytes = new byte[32];
+        in.readFully(hashBytes);
+        String confidenceTypeName = in.readUTF();
+        int appearedAtChainHeight = in.readInt();
+        long updateTime = in.readLong();
+        byte[] transactionBytes = new byte[in.readInt()];
+        in.readFully(transactionBytes);
+
+        Transaction existingTransaction = wallet.getTransaction(new Sha256Hash(hashBytes));
+
+        if (ConfidenceType.BUILDING.name().equals(confidenceTypeName)) {
+            if (existingTransaction != null && existingTransaction.getConfidence() != null
+                    && existingTransaction.getConfidence().getConfidenceType() == ConfidenceType.BUILDING) {
+                // Already in the wallet file as seen in a block.
+                return Integer.MAX_VALUE;
+            }
+            // Download the block again.
+            return appearedAtChainHeight > 0 ? appearedAtChainHeight : 0;
+        }
+
+        if (ConfidenceType.PENDING.name().equals(confidenceTypeName)) {
+            if (existingTransaction == null) {
+                try {
+                    Transaction transaction = new Transaction(networkParameters, transactionBytes);
+                    if (updateTime != 0) {
+                        transaction.setUpdateTime(new Date(updateTime));
+                    }
+                    wallet.receivePending(transaction, null);
+                } catch (ProtocolException pe) {
+                    log.error("Could not parse journalled transaction. " + pe.getMessage());
+                    return 0;
+                } catch (VerificationException ve) {
+                    log.error("Could not replay journalled transaction. " + ve.getMessage());
+                    return 0;
+                }
+            }
+            return Integer.MAX_VALUE;
+        }
+
+        // Dead or unknown transactions - keep the wallet file's last block seen.
+        return 0;
+    }
+
+    private byte[] createTransactionPayload(Transaction transaction) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(payload);
+
+        TransactionConfidence confidence = transaction.getConfidence();
+        ConfidenceType confidenceType = confidence == null ? ConfidenceType.UNKNOWN : confidence.getConfidenceType();
+        int appearedAtChainHeight = -1;
+        if (confidenceType == ConfidenceType.BUILDING) {
+            appearedAtChainHeight = confidence.getAppearedAtChainHeight();
+        }
+        byte[] transactionBytes = transaction.bitcoinSerialize();
+
+        out.write(transaction.getHash().getBytes());
+        out.writeUTF(confidenceType.name());
+        out.writeInt(appearedAtChainHeight);
+        out.writeLong(transaction.getUpdateTime() == null ? 0 : transaction.getUpdateTime().getTime());
+        out.writeInt(transactionBytes.length);
+        out.write(transactionBytes);
+        out.flush();
+
+        return payload.toByteArray();
+    }
+
+    /**
+     * The parts of a transaction's state that the journal records (deliberately excluding the depth).
+     */
+    private int calculateTransactionState(Transaction transaction) {
+        TransactionConfidence confidence = transaction.getConfidence();
+        ConfidenceType confidenceType = confidence == null ? ConfidenceType.UNKNOWN : confidence.getConfidenceType();
+        int appearedAtChainHeight = -1;
+        if (confidenceType == ConfidenceType.BUILDING) {
+            appearedAtChainHeight = confidence.getAppearedAtChainHeight();
+        }
+        int numberOfBlocks = transaction.getAppearsInHashes() == null ? 0 : transaction.getAppearsInHashes().size();
+        return Arrays.hashCode(new int[] { confidenceType.ordinal(), appearedAtChainHeight, numberOfBlocks });
+    }
+
+    private void writeRecord(DataOutputStream out, byte recordType, byte[] payload) throws IOException {
+        out.writeByte(recordType);
+        out.writeInt(payload.length);
+        out.writeLong(calculateChecksum(recordType, payload));
+        out.write(payload);
+    }
+
+    private long calculateChecksum(byte recordType, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(recordType);
+        crc.update(payload);
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * SparkBit
+ *
+ * Copyright 2011-2014 multibit.org
+ * Copyright 2014 Coin Sciences Ltd
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.file;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.multibit.controller.bitcoin.BitcoinController;
+import org.multibit.message.Message;
+import org.multibit.message.MessageManager;
+import org.multibit.model.bitcoin.WalletData;
+import org.multibit.store.WalletVersionException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Class to save wallets shortly after they change.
+ *
+ * Changes to a wallet are coalesced: a wallet is saved once it has been quiet
+ * for DEBOUNCE_DELAY, but never later than MAXIMUM_SAVE_LATENCY after its first
+ * unsaved change. A wallet whose only change is the last block seen (every block
+ * during a sync) is saved after MAXIMUM_LAST_BLOCK_SEEN_LATENCY - losing that
+ * change only means a few blocks are downloaded again. Different wallets are
+ * saved in parallel.
+ */
+public enum WalletSaveScheduler {
+    INSTANCE;
+
+    private static final Logger log = LoggerFactory.getLogger(WalletSaveScheduler.class);
+
+    public static final int DEBOUNCE_DELAY = 2000; // ms
+    public static final int MAXIMUM_SAVE_LATENCY = 30000; // ms
+    public static final int MAXIMUM_LAST_BLOCK_SEEN_LATENCY = 300000; // ms
+
+    private static final int MAXIMUM_NUMBER_OF_SAVE_THREADS = 4;
+
+    private BitcoinController controller;
+
+    private ScheduledExecutorService timer;
+    private ExecutorService savePool;
+
+    private volatile boolean isShuttingDown = false;
+
+    private final ConcurrentHashMap<WalletData, PendingSave> pendingSaves = new ConcurrentHashMap<WalletData, PendingSave>();
+
+    /**
+     * The unsaved changes to one wallet. Guarded by its own monitor.
+     */
+    private static class PendingSave {
+        long firstChangeTime = 0;
+        long firstFullChangeTime = 0;
+        long lastChangeTime = 0;
+        long checkTime = 0;
+        ScheduledFuture<?> check;
+        boolean isSaving = false;
+
+        boolean hasChanges() {
+            return firstChangeTime != 0;
+        }
+
+        void clearChanges() {
+            firstChangeTime = 0;
+            firstFullChangeTime = 0;
+            lastChangeTime = 0;
+        }
+
+        long calculateSaveTime() {
+            long saveTime = firstChangeTime + MAXIMUM_LAST_BLOCK_SEEN_LATENCY;
+            if (firstFullChangeTime != 0) {
+                saveTime = Math.min(saveTime, Math.min(lastChangeTime + DEBOUNCE_DELAY, firstFullChangeTime + MAXIMUM_SAVE_LATENCY));
+            }
+            return saveTime;
+        }
+    }
+
+    public void initialise(BitcoinController controller) {
+        this.controller = controller;
+        isShuttingDown = false;
+
+        timer = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("WalletSaveScheduler"));
+        int numberOfSaveThreads = Math.max(1, Math.min(MAXIMUM_NUMBER_OF_SAVE_THREADS, Runtime.getRuntime().availableProcessors()));
+        savePool = Executors.newFixedThreadPool(numberOfSaveThreads, new NamedThreadFactory("WalletSave"));
+    }
+
+    /**
+     * Record that a wallet has changed and schedule it to be saved.
+     *
+     * @param perWalletModelData
+     * @param isOnlyLastBlockSeen true if the only change is the last block seen
+     */
+    public void walletChanged(WalletData perWalletModelData, boolean isOnlyLastBlockSeen) {
+        if (perWalletModelData == null || timer == null || isShuttingDown) {
+            return;
+        }
+
+        PendingSave pendingSave = getPendingSave(perWalletModelData);
+        synchronized (pendingSave) {
+            long now = System.currentTimeMillis();
+            if (pendingSave.firstChangeTime == 0) {
+                pendingSave.firstChangeTime = now;
+            }
+            if (!isOnlyLastBlockSeen && pendingSave.firstFullChangeTime == 0) {
+                pendingSave.firstFullChangeTime = now;
+            }
+            pendingSave.lastChangeTime = now;
+
+            scheduleCheck(perWalletModelData, pendingSave, pendingSave.calculateSaveTime());
+        }
+    }
+
+    /**
+     * @param perWalletModelData
+     * @return true if a save of the wallet is scheduled or running
+     */
+    public boolean isSavePending(WalletData perWalletModelData) {
+        PendingSave pendingSave = pendingSaves.get(perWalletModelData);
+        if (pendingSave == null) {
+            return false;
+        }
+        synchronized (pendingSave) {
+            return pendingSave.isSaving || pendingSave.check != null;
+        }
+    }
+
+    /**
+     * Stop scheduling saves and wait for the saves in progress to finish.
+     * Wallets that are still dirty are left for the caller to save.
+     *
+     * @param timeoutMillis
+     */
+    public void shutdown(long timeoutMillis) {
+        isShuttingDown = true;
+        if (timer == null) {
+            return;
+        }
+        timer.shutdownNow();
+        savePool.shutdown();
+        try {
+            if (!savePool.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                log.error("Wallet saves did not finish within " + timeoutMillis + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getNumberOfPendingSaves() {
+        int numberOfPendingSaves = 0;
+        for (WalletData perWalletModelData : pendingSaves.keySet()) {
+            if (isSavePending(perWalletModelData)) {
+                numberOfPendingSaves++;
+            }
+        }
+        return numberOfPendingSaves;
+    }
+
+    private PendingSave getPendingSave(WalletData perWalletModelData) {
+        PendingSave pendingSave = pendingSaves.get(perWalletModelData);
+        if (pendingSave == null) {
+            pendingSave = new PendingSave();
+            PendingSave existingPendingSave = pendingSaves.putIfAbsent(perWalletModelData, pendingSave);
+            if (existingPendingSave != null) {
+                pendingSave = existingPendingSave;
+            }
+        }
+        return pendingSave;
+    }
+
+    /**
+     * Make sure there is a check of the wallet no later than checkTime.
+     * Must be called holding the pendingSave monitor.
+     */
+    private void scheduleCheck(final WalletData perWalletModelData, final PendingSave pendingSave, long checkTime) {
+        if (pendingSave.isSaving) {
+            // The check is scheduled when the save finishes.
+            return;
+        }
+        if (pendingSave.check != null) {
+            if (pendingSave.checkTime <= checkTime) {
+                // The existing check is soon enough - it reschedules if the save is not yet due.
+                return;
+            }
+            pendingSave.check.cancel(false);
+        }
+
+        long delay = Math.max(0, checkTime - System.currentTimeMillis());
+        try {
+            pendingSave.checkTime = checkTime;
+            pendingSave.check = timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    check(perWalletModelData, pendingSave);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ree) {
+            // Shutting down.
+            pendingSave.check = null;
+        }
+    }
+
+    private void check(final WalletData perWalletModelData, final PendingSave pendingSave) {
+        synchronized (pendingSave) {
+            pendingSave.check = null;
+            if (!pendingSave.hasChanges()) {
+                return;
+            }
+            long saveTime = pendingSave.calculateSaveTime();
+            if (saveTime > System.currentTimeMillis()) {
+                scheduleCheck(perWalletModelData, pendingSave, saveTime);
+                return;
+            }
+            // Changes from now on are picked up by the next save.
+            pendingSave.clearChanges();
+            pendingSave.isSaving = true;
+        }
+
+        try {
+            savePool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    save(perWalletModelData, pendingSave);
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            // Shutting down - the wallet is saved on exit.
+            synchronized (pendingSave) {
+                pendingSave.isSaving = false;
+            }
+        }
+    }
+
+    private void save(WalletData perWalletModelData, PendingSave pendingSave) {
+        try {
+            if (perWalletModelData.getWalletInfo() != null && perWalletModelData.getWalletInfo().isDeleted()) {
+                pendingSaves.remove(perWalletModelData);
+                return;
+            }
+            if (perWalletModelData.isDirty() && controller.getFileHandler() != null) {
+                long startTime = System.currentTimeMillis();
+                controller.getFileHandler().savePerWalletModelData(perWalletModelData, false);
+                log.debug("Saved wallet '" + perWalletModelData.getWalletFilename() + "' in "
+                        + (System.currentTimeMillis() - startTime) + " ms");
+            }
+        } catch (WalletSaveException wse) {
+            reportSaveFailure(perWalletModelData, wse);
+        } catch (WalletVersionException wve) {
+            reportSaveFailure(perWalletModelData, wve);
+        } finally {
+            synchronized (pendingSave) {
+                pendingSave.isSaving = false;
+                if (!isShuttingDown) {
+                    if (pendingSave.hasChanges()) {
+                        scheduleCheck(perWalletModelData, pendingSave, pendingSave.calculateSaveTime());
+                    } else if (perWalletModelData.isDirty()) {
+                        // Not saved (the save failed or the files were changed by another process) -
+                        // try again later rather than straight away.
+                        long now = System.currentTimeMillis();
+                        pendingSave.firstChangeTime = now;
+                        pendingSave.firstFullChangeTime = now;
+                        pendingSave.lastChangeTime = now;
+                        scheduleCheck(perWalletModelData, pendingSave, now + MAXIMUM_SAVE_LATENCY);
+                    }
+                }
+            }
+        }
+    }
+
+    private void reportSaveFailure(WalletData perWalletModelData, Exception e) {
+        String message = controller.getLocaliser().getString("createNewWalletAction.walletCouldNotBeCreated",
+                new Object[] { perWalletModelData.getWalletFilename(), e.getMessage() });
+        log.error(message);
+        MessageManager.INSTANCE.addMessage(new Message(message));
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger threadCount = new AtomicInteger(0);
+
+        NamedThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, name + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
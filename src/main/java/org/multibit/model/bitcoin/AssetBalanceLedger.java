@@ -0,0 +1,390 @@
+/*
+ * SparkBit
+ *
+ * Copyright 2011-2014 multibit.org
+ * Copyright 2014 Coin Sciences Ltd
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.model.bitcoin;
+
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionConfidence;
+import com.google.bitcoin.core.Wallet;
+
+/**
+ * The CoinSpark asset balances of one wallet, for display.
+ *
+ * The totals start from the CoinSpark balance database and are then kept up
+ * to date with the net quantity of each asset every changed transaction moves
+ * into the wallet (getAssetsSentToMe less getAssetsSentFromMe). The asset
+ * tables read the totals from here rather than from the balance database for
+ * every cell, and see a new transaction without waiting for a recalculation.
+ *
+ * A changed transaction only changes the totals by its delta. The balance
+ * database is only recalculated (calculateBalances) after a rebuild, e.g. on
+ * a reorganisation, every UPDATING_RECALCULATION_INTERVAL while a balance is
+ * being updated or a changed transaction has an asset quantity the database
+ * does not know yet, and otherwise every CONSISTENCY_CHECK_INTERVAL as a
+ * consistency check. After each recalculation the totals are checked against
+ * the database and the database wins.
+ */
+public class AssetBalanceLedger {
+
+    private static final Logger log = LoggerFactory.getLogger(AssetBalanceLedger.class);
+
+    /**
+     * How often the balances are recalculated when nothing has changed.
+     */
+    public static final long CONSISTENCY_CHECK_INTERVAL = 10 * 60 * 1000; // ms
+
+    /**
+     * How often the balances are recalculated while the balance database is
+     * waiting on the tracking servers.
+     */
+    public static final long UPDATING_RECALCULATION_INTERVAL = 15 * 1000; // ms
+
+    /**
+     * How long a transaction's unknown quantity is waited for. After that the
+     * quantity is taken to be zero and left to the consistency check.
+     */
+    public static final long UNKNOWN_QUANTITY_WAIT = CONSISTENCY_CHECK_INTERVAL;
+
+    /**
+     * The net quantity of each asset each transaction moves into the wallet.
+     */
+    private final Map<Sha256Hash, Map<Integer, BigInteger>> deltas = new HashMap<Sha256Hash, Map<Integer, BigInteger>>();
+
+    private final Map<Integer, BigInteger> totals = new HashMap<Integer, BigInteger>();
+
+    /**
+     * Balances as last read from the balance database, for the spendable
+     * quantity and whether the balance is being updated.
+     */
+    private final Map<Integer, Wallet.CoinSpark.AssetBalance> balances = new HashMap<Integer, Wallet.CoinSpark.AssetBalance>();
+
+    private final TransactionChangeTracker changes = new TransactionChangeTracker();
+
+    /**
+     * Transactions applied since the last recalculation - the balance database
+     * may not have known all their quantities when they were applied.
+     */
+    private final Set<Sha256Hash> recentTransactionHashes = new HashSet<Sha256Hash>();
+
+    /**
+     * Transactions with an asset quantity the balance database did not know
+     * when they were last applied, and when that was first seen.
+     */
+    private final Map<Sha256Hash, Long> unknownQuantityTimes = new HashMap<Sha256Hash, Long>();
+
+    private volatile boolean recalculationRequired = true;
+
+    private volatile long lastRecalculationTime = 0;
+
+    /**
+     * Record that a transaction has changed. Its delta is applied when the
+     * balances are next read - the balance database is not recalculated.
+     */
+    public void markTransactionChanged(Sha256Hash transactionHash) {
+        changes.markTransactionChanged(transactionHash);
+    }
+
+    /**
+     * Record that the balances need reading from the balance database again,
+     * e.g. after a reorganisation.
+     */
+    public void markRebuildRequired() {
+        changes.markRebuildRequired();
+        recalculationRequired = true;
+    }
+
+    /**
+     * @return The quantity of the asset in the wallet, including unconfirmed
+     *         transactions
+     */
+    public synchronized BigInteger getTotal(Wallet wallet, int assetID) {
+        update(wallet);
+        BigInteger total = totals.get(assetID);
+        return total == null ? BigInteger.ZERO : total;
+    }
+
+    public synchronized BigInteger getSpendable(Wallet wallet, int assetID) {
+        update(wallet);
+        Wallet.CoinSpark.AssetBalance assetBalance = getBalance(wallet, assetID);
+        return assetBalance == null ? BigInteger.ZERO : assetBalance.spendable;
+    }
+
+    /**
+     * @return true if the balance database is still working out the balance
+     */
+    public synchronized boolean isUpdatingNow(Wallet wallet, int assetID) {
+        update(wallet);
+        Wallet.CoinSpark.AssetBalance assetBalance = getBalance(wallet, assetID);
+        return assetBalance != null && assetBalance.updatingNow;
+    }
+
+    /**
+     * @return When calculateBalances should next be run on the wallet
+     */
+    public synchronized long getNextRecalculationTime() {
+        if (recalculationRequired || changes.isRebuildRequired()) {
+            return 0;
+        }
+        // A changed transaction not yet applied may not have its quantities either.
+        if (changes.hasChangedTransactions() || !getWaitingTransactionHashes().isEmpty()) {
+            return lastRecalculationTime + UPDATING_RECALCULATION_INTERVAL;
+        }
+        for (Wallet.CoinSpark.AssetBalance assetBalance : balances.values()) {
+            if (assetBalance.updatingNow) {
+                return lastRecalculationTime + UPDATING_RECALCULATION_INTERVAL;
+            }
+        }
+        return lastRecalculationTime + CONSISTENCY_CHECK_INTERVAL;
+    }
+
+    public boolean isRecalculationDue(long now) {
+        return getNextRecalculationTime() <= now;
+    }
+
+    /**
+     * Called after wallet.CS.calculateBalances() - bring the totals into line
+     * with the balance database.
+     */
+    public synchronized void balancesRecalculated(Wallet wallet) {
+        recalculationRequired = false;
+        lastRecalculationTime = System.currentTimeMillis();
+        if (changes.takeRebuildRequired()) {
+            rebuild(wallet);
+            return;
+        }
+
+        applyChangedTransactions(wallet);
+        // The quantities of recent transactions may have been filled in by the recalculation.
+        for (Sha256Hash transactionHash : recentTransactionHashes) {
+            applyTransaction(wallet, transactionHash);
+        }
+
+        balances.clear();
+        boolean isUpdating = false;
+        int numberOfCorrections = 0;
+        int[] assetIDs = wallet.CS.getAssetIDs();
+        if (assetIDs != null) {
+            for (int assetID : assetIDs) {
+                Wallet.CoinSpark.AssetBalance assetBalance = wallet.CS.getAssetBalance(assetID);
+                if (assetBalance == null) {
+                    continue;
+                }
+                balances.put(assetID, assetBalance);
+                if (assetBalance.updatingNow) {
+                    isUpdating = true;
+                } else if (!assetBalance.total.equals(totals.get(assetID) == null ? BigInteger.ZERO : totals.get(assetID))) {
+                    totals.put(assetID, assetBalance.total);
+                    numberOfCorrections++;
+                }
+            }
+        }
+        if (!isUpdating) {
+            recentTransactionHashes.retainAll(getWaitingTransactionHashes());
+        }
+        if (numberOfCorrections > 0) {
+            log.debug("Corrected " + numberOfCorrections + " asset totals from the balance database");
+        }
+    }
+
+    private void update(Wallet wallet) {
+        if (changes.takeRebuildRequired()) {
+            rebuild(wallet);
+        } else {
+            applyChangedTransactions(wallet);
+        }
+    }
+
+    /**
+     * Work out the deltas of every transaction and take the totals from the
+     * balance database.
+     */
+    private void rebuild(Wallet wallet) {
+        recentTransactionHashes.clear();
+        unknownQuantityTimes.clear();
+        deltas.clear();
+        totals.clear();
+        balances.clear();
+        if (wallet == null) {
+            return;
+        }
+
+        for (Transaction transaction : wallet.getTransactions(false)) {
+            Map<Integer, BigInteger> delta = getDelta(wallet, transaction);
+            if (!delta.isEmpty()) {
+                deltas.put(transaction.getHash(), delta);
+            }
+        }
+        int[] assetIDs = wallet.CS.getAssetIDs();
+        if (assetIDs != null) {
+            for (int assetID : assetIDs) {
+                Wallet.CoinSpark.AssetBalance assetBalance = wallet.CS.getAssetBalance(assetID);
+                if (assetBalance != null) {
+                    balances.put(assetID, assetBalance);
+                    totals.put(assetID, assetBalance.total);
+                }
+            }
+        }
+    }
+
+    private void applyChangedTransactions(Wallet wallet) {
+        if (wallet == null) {
+            return;
+        }
+        for (Sha256Hash transactionHash : changes.takeChangedTransactionHashes()) {
+            applyTransaction(wallet, transactionHash);
+            recentTransactionHashes.add(transactionHash);
+        }
+    }
+
+    /**
+     * Replace the delta of the transaction with its current one.
+     */
+    private void applyTransaction(Wallet wallet, Sha256Hash transactionHash) {
+        Transaction transaction = wallet.getTransaction(transactionHash);
+        Map<Integer, BigInteger> oldDelta = deltas.remove(transactionHash);
+        Map<Integer, BigInteger> newDelta = transaction == null ? new HashMap<Integer, BigInteger>() : getDelta(wallet,
+                transaction);
+        if (!newDelta.isEmpty()) {
+            deltas.put(transactionHash, newDelta);
+        }
+        if (transaction != null && hasUnknownQuantity(wallet, transaction)) {
+            if (!unknownQuantityTimes.containsKey(transactionHash)) {
+                unknownQuantityTimes.put(transactionHash, System.currentTimeMillis());
+            }
+        } else {
+            unknownQuantityTimes.remove(transactionHash);
+        }
+        if (oldDelta != null) {
+            for (Map.Entry<Integer, BigInteger> entry : oldDelta.entrySet()) {
+                addToTotal(entry.getKey(), entry.getValue().negate());
+            }
+        }
+        for (Map.Entry<Integer, BigInteger> entry : newDelta.entrySet()) {
+            addToTotal(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * @return The transactions whose unknown quantities are still waited for
+     */
+    private Set<Sha256Hash> getWaitingTransactionHashes() {
+        Set<Sha256Hash> waitingTransactionHashes = new HashSet<Sha256Hash>();
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Sha256Hash, Long> entry : unknownQuantityTimes.entrySet()) {
+            if (entry.getValue() + UNKNOWN_QUANTITY_WAIT > now) {
+                waitingTransactionHashes.add(entry.getKey());
+            }
+        }
+        return waitingTransactionHashes;
+    }
+
+    private void addToTotal(int assetID, BigInteger quantity) {
+        BigInteger total = totals.get(assetID);
+        totals.put(assetID, total == null ? quantity : total.add(quantity));
+        // The spendable quantity has changed too.
+        balances.remove(assetID);
+    }
+
+    private Wallet.CoinSpark.AssetBalance getBalance(Wallet wallet, int assetID) {
+        Wallet.CoinSpark.AssetBalance assetBalance = balances.get(assetID);
+        if (assetBalance == null && wallet != null) {
+            assetBalance = wallet.CS.getAssetBalance(assetID);
+            if (assetBalance != null) {
+                balances.put(assetID, assetBalance);
+            }
+        }
+        return assetBalance;
+    }
+
+    /**
+     * @return The net quantity of each asset the transaction moves into the
+     *         wallet, leaving out bitcoin (asset 0) and zero quantities
+     */
+    static Map<Integer, BigInteger> getDelta(Wallet wallet, Transaction transaction) {
+        Map<Integer, BigInteger> delta = new HashMap<Integer, BigInteger>();
+        if (transaction.getConfidence().getConfidenceType() == TransactionConfidence.ConfidenceType.DEAD) {
+            return delta;
+        }
+        Map<Integer, BigInteger> receiveMap = wallet.CS.getAssetsSentToMe(transaction);
+        if (receiveMap != null) {
+            for (Map.Entry<Integer, BigInteger> entry : receiveMap.entrySet()) {
+                addToDelta(delta, entry.getKey(), entry.getValue());
+            }
+        }
+        Map<Integer, BigInteger> sendMap = wallet.CS.getAssetsSentFromMe(transaction);
+        if (sendMap != null) {
+            for (Map.Entry<Integer, BigInteger> entry : sendMap.entrySet()) {
+                addToDelta(delta, entry.getKey(), entry.getValue() == null ? null : entry.getValue().negate());
+            }
+        }
+        return delta;
+    }
+
+    /**
+     * @return true if the balance database does not know yet how much of an
+     *         asset the transaction moves - a quantity is missing, or zero
+     *         received
+     */
+    static boolean hasUnknownQuantity(Wallet wallet, Transaction transaction) {
+        if (transaction.getConfidence().getConfidenceType() == TransactionConfidence.ConfidenceType.DEAD) {
+            return false;
+        }
+        return hasUnknownQuantity(wallet.CS.getAssetsSentToMe(transaction), wallet.CS.getAssetsSentFromMe(transaction));
+    }
+
+    static boolean hasUnknownQuantity(Map<Integer, BigInteger> receiveMap, Map<Integer, BigInteger> sendMap) {
+        if (receiveMap != null) {
+            for (Map.Entry<Integer, BigInteger> entry : receiveMap.entrySet()) {
+                if (entry.getKey() != null && entry.getKey() != 0
+                        && (entry.getValue() == null || entry.getValue().signum() == 0)) {
+                    return true;
+                }
+            }
+        }
+        if (sendMap != null) {
+            for (Map.Entry<Integer, BigInteger> entry : sendMap.entrySet()) {
+                if (entry.getKey() != null && entry.getKey() != 0 && entry.getValue() == null) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static void addToDelta(Map<Integer, BigInteger> delta, Integer assetID, BigInteger quantity) {
+        if (assetID == null || assetID == 0 || quantity == null) {
+            return;
+        }
+        BigInteger sum = delta.containsKey(assetID) ? delta.get(assetID).add(quantity) : quantity;
+        if (sum.signum() == 0) {
+            delta.remove(assetID);
+        } else {
+            delta.put(assetID, sum);
+        }
+    }
+}
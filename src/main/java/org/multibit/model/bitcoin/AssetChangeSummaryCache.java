@@ -0,0 +1,188 @@
+/*
+ * SparkBit
+ *
+ * Copyright 2011-2014 multibit.org
+ * Copyright 2014 Coin Sciences Ltd
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.model.bitcoin;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.multibit.utils.CSMiscUtils;
+
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionConfidence;
+import com.google.bitcoin.core.Wallet;
+
+/**
+ * The asset columns of the Transactions table for one wallet, keyed by
+ * transaction hash, so that rendering a cell does not look up the asset
+ * quantities and assets and format them each time.
+ *
+ * A summary is worked out again when its transaction changes (including its
+ * confidence), when the wallet is replaced or reorganised, and when an asset
+ * is inserted, updated, deleted or shown or hidden - the assets are shared by
+ * all the transactions, so markAssetsChanged just moves on a version number
+ * the summaries are checked against. When the balances change only the
+ * summaries of transactions whose quantities may not have been known yet
+ * (unconfirmed, or with a quantity the balance database did not know)
+ * are worked out again.
+ */
+public class AssetChangeSummaryCache {
+
+    private static final AtomicLong assetStateVersion = new AtomicLong(0);
+
+    private static final AtomicLong balanceStateVersion = new AtomicLong(0);
+
+    private static class Summary {
+        final long assetStateVersion;
+        final long balanceStateVersion;
+        final boolean isProvisional;
+        String descriptionOfAssetChanges;
+        String formattedAssetDebitCredit;
+
+        Summary(long assetStateVersion, long balanceStateVersion, boolean isProvisional) {
+            this.assetStateVersion = assetStateVersion;
+            this.balanceStateVersion = balanceStateVersion;
+            this.isProvisional = isProvisional;
+        }
+    }
+
+    private final Map<Sha256Hash, Summary> summaries = new HashMap<Sha256Hash, Summary>();
+
+    private final TransactionChangeTracker changes = new TransactionChangeTracker();
+
+    /**
+     * The wallet the summaries are for.
+     */
+    private Wallet wallet;
+
+    /**
+     * Record that an asset has changed in any wallet.
+     */
+    public static void markAssetsChanged() {
+        assetStateVersion.incrementAndGet();
+    }
+
+    /**
+     * Record that the balances have changed in any wallet, which can fill in
+     * the quantities of recent transactions.
+     */
+    public static void markBalancesChanged() {
+        balanceStateVersion.incrementAndGet();
+    }
+
+    /**
+     * @return A number that moves on whenever markAssetsChanged is called
+     */
+    public static long getAssetStateVersion() {
+        return assetStateVersion.get();
+    }
+
+    /**
+     * @return A number that moves on whenever markBalancesChanged is called
+     */
+    public static long getBalanceStateVersion() {
+        return balanceStateVersion.get();
+    }
+
+    public void markTransactionChanged(Sha256Hash transactionHash) {
+        changes.markTransactionChanged(transactionHash);
+    }
+
+    public void markRebuildRequired() {
+        changes.markRebuildRequired();
+    }
+
+    /**
+     * @return CSMiscUtils.getDescriptionOfTransactionAssetChanges for the row
+     */
+    public synchronized String getDescriptionOfAssetChanges(Wallet wallet, WalletTableData row) {
+        if (wallet == null || row == null || row.getTransaction() == null) {
+            return "";
+        }
+        Summary summary = getSummary(wallet, row);
+        if (summary.descriptionOfAssetChanges == null) {
+            summary.descriptionOfAssetChanges = CSMiscUtils.getDescriptionOfTransactionAssetChanges(wallet,
+                    row.getTransaction());
+        }
+        return summary.descriptionOfAssetChanges;
+    }
+
+    /**
+     * @return WalletTableData.getFormattedAssetDebitCredit for the row
+     */
+    public synchronized String getFormattedAssetDebitCredit(Wallet wallet, WalletTableData row) {
+        if (wallet == null || row == null || row.getTransaction() == null) {
+            return "";
+        }
+        Summary summary = getSummary(wallet, row);
+        if (summary.formattedAssetDebitCredit == null) {
+            summary.formattedAssetDebitCredit = row.getFormattedAssetDebitCredit(wallet);
+        }
+        return summary.formattedAssetDebitCredit;
+    }
+
+    /**
+     * @return true if the asset columns of the transaction were worked out
+     *         while its quantities may not have been known, so that they can
+     *         change with the balances
+     */
+    public synchronized boolean isProvisional(Sha256Hash transactionHash) {
+        Summary summary = summaries.get(transactionHash);
+        return summary != null && summary.isProvisional;
+    }
+
+    private Summary getSummary(Wallet wallet, WalletTableData row) {
+        if (wallet != this.wallet) {
+            changes.markRebuildRequired();
+        }
+        if (changes.takeRebuildRequired()) {
+            summaries.clear();
+            this.wallet = wallet;
+        } else {
+            for (Sha256Hash transactionHash : changes.takeChangedTransactionHashes()) {
+                summaries.remove(transactionHash);
+            }
+        }
+
+        Transaction transaction = row.getTransaction();
+        long currentAssetStateVersion = assetStateVersion.get();
+        long currentBalanceStateVersion = balanceStateVersion.get();
+        Summary summary = summaries.get(transaction.getHash());
+        if (summary == null || summary.assetStateVersion != currentAssetStateVersion
+                || (summary.isProvisional && summary.balanceStateVersion != currentBalanceStateVersion)) {
+            summary = new Summary(currentAssetStateVersion, currentBalanceStateVersion, isProvisional(wallet, transaction));
+            summaries.put(transaction.getHash(), summary);
+        }
+        return summary;
+    }
+
+    /**
+     * @return true if the asset quantities of the transaction may not be known
+     *         yet - it is not in the chain, or the balance database does not
+     *         know one of its quantities
+     */
+    private static boolean isProvisional(Wallet wallet, Transaction transaction) {
+        if (transaction.getConfidence() == null
+                || transaction.getConfidence().getConfidenceType() != TransactionConfidence.ConfidenceType.BUILDING) {
+            return true;
+        }
+        return AssetBalanceLedger.hasUnknownQuantity(wallet, transaction);
+    }
+}
@@ -193,6 +193,16 @@ public class BitcoinModel extends AbstractModel<CoreModel> {
      */
     private boolean blinkEnabled = true;
 
+    /**
+     * The times of the blocks wallet transactions appear in.
+     */
+    private final BlockTimeCache blockTimeCache = new BlockTimeCache();
+
+    /**
+     * What each open wallet watches, to route relayed transactions.
+     */
+    private final WalletRelevanceIndex walletRelevanceIndex = new WalletRelevanceIndex();
+
     @SuppressWarnings("deprecation")
     public BitcoinModel(CoreModel coreModel) {
         super(coreModel);
@@ -205,6 +215,14 @@ public class BitcoinModel extends AbstractModel<CoreModel> {
     }
 
 
+    public BlockTimeCache getBlockTimeCache() {
+        return blockTimeCache;
+    }
+
+    public WalletRelevanceIndex getWalletRelevanceIndex() {
+        return walletRelevanceIndex;
+    }
+
     public WalletData getActivePerWalletModelData() {
         return activeWalletModelData;
     }
@@ -441,56 +459,101 @@ public class BitcoinModel extends AbstractModel<CoreModel> {
     }
 
     public ArrayList<WalletTableData> createWalletTableData(final BitcoinController bitcoinController, WalletData perWalletModelData) {
-        ArrayList<WalletTableData> walletData = new ArrayList<WalletTableData>();
-
         if (perWalletModelData == null || perWalletModelData.getWallet() == null) {
-            return walletData;
+            return new ArrayList<WalletTableData>();
         }
-        
-        Set<Transaction> transactions = perWalletModelData.getWallet().getTransactions(false);
 
-        if (transactions != null) {
-            for (Transaction loopTransaction : transactions) {
-                WalletTableData walletDataRow = new WalletTableData(loopTransaction);
-                walletData.add(walletDataRow);
-                walletDataRow.setCredit(loopTransaction.getValueSentToMe(perWalletModelData.getWallet()));
-                try {
-                    walletDataRow.setDebit(loopTransaction.getValueSentFromMe(perWalletModelData.getWallet()));
-                } catch (ScriptException e) {
-                    log.error(e.getMessage(), e);
+        updateWalletTableData(bitcoinController, perWalletModelData);
+        return perWalletModelData.getWalletTableDataCache().getRows();
+    }
 
-                }
-                List<TransactionInput> transactionInputs = loopTransaction.getInputs();
-                List<TransactionOutput> transactionOutputs = loopTransaction.getOutputs();
-                if (transactionInputs != null) {
-                    TransactionInput firstInput = transactionInputs.get(0);
-                    if (firstInput != null) {
-                        walletDataRow.setDescription(createDescription(bitcoinController, perWalletModelData.getWallet(), transactionInputs,
-                                transactionOutputs, walletDataRow.getCredit(), walletDataRow.getDebit()));
+    /**
+     * Bring the cached walletdata records of a wallet up to date. Only the
+     * records of the transactions that have changed are recreated, unless the
+     * cache has been marked for a rebuild or has lost track of the wallet.
+     *
+     * @return The hashes of the transactions whose records were added, replaced
+     *         or removed, or null if every record was recreated
+     */
+    public Set<Sha256Hash> updateWalletTableData(final BitcoinController bitcoinController, WalletData perWalletModelData) {
+        WalletTableDataCache walletTableDataCache = perWalletModelData.getWalletTableDataCache();
+        Wallet wallet = perWalletModelData.getWallet();
+
+        synchronized (walletTableDataCache) {
+            if (wallet == null) {
+                walletTableDataCache.clear();
+                return null;
+            }
+
+            Set<Transaction> transactions = wallet.getTransactions(false);
+
+            if (!walletTableDataCache.takeRebuildRequired()) {
+                Set<Sha256Hash> changedTransactionHashes = new HashSet<Sha256Hash>();
+                for (Sha256Hash transactionHash : walletTableDataCache.takeChangedTransactionHashes()) {
+                    Transaction transaction = wallet.getTransaction(transactionHash);
+                    if (transaction == null || !transactions.contains(transaction)) {
+                        // Gone, or dead.
+                        walletTableDataCache.removeRow(transactionHash);
+                    } else {
+                        walletTableDataCache.putRow(transactionHash, createWalletTableDataRow(bitcoinController, wallet, transaction));
                     }
+                    changedTransactionHashes.add(transactionHash);
+                }
+
+                if (walletTableDataCache.size() == transactions.size()) {
+                    return changedTransactionHashes;
                 }
-                walletDataRow.setDate(createDate(bitcoinController, loopTransaction));
-                walletDataRow.setHeight(workOutHeight(loopTransaction));
+                // Transactions were added or removed without being reported (e.g. a reset) so start again.
+                log.debug("Rebuilding the transactions of wallet '" + perWalletModelData.getWalletFilename() + "'");
             }
+
+            walletTableDataCache.clear();
+            for (Transaction loopTransaction : transactions) {
+                walletTableDataCache.putRow(loopTransaction.getHash(), createWalletTableDataRow(bitcoinController, wallet, loopTransaction));
+            }
+            log.debug("Block time cache size = " + blockTimeCache.size() + ", hit rate = " + blockTimeCache.getHitRate());
+            return null;
         }
+    }
 
-        // Run through all the walletdata to see if both credit and debit are
-        // set (this means change was received).
-        for (WalletTableData walletDataRow : walletData) {
-            if (walletDataRow.getCredit() != null && (walletDataRow.getCredit().compareTo(BigInteger.ZERO) > 0)
-                    && (walletDataRow.getDebit() != null) && walletDataRow.getDebit().compareTo(BigInteger.ZERO) > 0) {
-                BigInteger net = walletDataRow.getCredit().subtract(walletDataRow.getDebit());
-                if (net.compareTo(BigInteger.ZERO) >= 0) {
-                    walletDataRow.setCredit(net);
-                    walletDataRow.setDebit(BigInteger.ZERO);
-                } else {
-                    walletDataRow.setCredit(BigInteger.ZERO);
-                    walletDataRow.setDebit(net.negate());
-                }
+    /**
+     * Convert a transaction into a walletdata record.
+     */
+    private WalletTableData createWalletTableDataRow(final BitcoinController bitcoinController, Wallet wallet, Transaction transaction) {
+        WalletTableData walletDataRow = new WalletTableData(transaction);
+        walletDataRow.setCredit(transaction.getValueSentToMe(wallet));
+        try {
+            walletDataRow.setDebit(transaction.getValueSentFromMe(wallet));
+        } catch (ScriptException e) {
+            log.error(e.getMessage(), e);
+
+        }
+        List<TransactionInput> transactionInputs = transaction.getInputs();
+        List<TransactionOutput> transactionOutputs = transaction.getOutputs();
+        if (transactionInputs != null) {
+            TransactionInput firstInput = transactionInputs.get(0);
+            if (firstInput != null) {
+                walletDataRow.setDescription(createDescription(bitcoinController, wallet, transactionInputs,
+                        transactionOutputs, walletDataRow.getCredit(), walletDataRow.getDebit()));
+            }
+        }
+        walletDataRow.setDate(createDate(bitcoinController, transaction));
+        walletDataRow.setHeight(workOutHeight(transaction));
+
+        // See if both credit and debit are set (this means change was received).
+        if (walletDataRow.getCredit() != null && (walletDataRow.getCredit().compareTo(BigInteger.ZERO) > 0)
+                && (walletDataRow.getDebit() != null) && walletDataRow.getDebit().compareTo(BigInteger.ZERO) > 0) {
+            BigInteger net = walletDataRow.getCredit().subtract(walletDataRow.getDebit());
+            if (net.compareTo(BigInteger.ZERO) >= 0) {
+                walletDataRow.setCredit(net);
+                walletDataRow.setDebit(BigInteger.ZERO);
+            } else {
+                walletDataRow.setCredit(BigInteger.ZERO);
+                walletDataRow.setDebit(net.negate());
             }
         }
 
-        return walletData;
+        return walletDataRow;
     }
 
     /**
@@ -681,18 +744,29 @@ public class BitcoinModel extends AbstractModel<CoreModel> {
                 // just take the first i.e. ignore impact of side chains
                 if (iterator.hasNext()) {
                     Sha256Hash appearsInHash = iterator.next();
-                    StoredBlock appearsInStoredBlock;
-                    try {
-                        if (bitcoinController != null && bitcoinController.getMultiBitService() != null
-                                && bitcoinController.getMultiBitService().getBlockStore() != null) {
-                            appearsInStoredBlock = bitcoinController.getMultiBitService().getBlockStore().get(appearsInHash);
-                            Block appearsInBlock = appearsInStoredBlock.getHeader();
-                            // Set the time of the block to be the time of the
-                            // transaction - TODO get transaction time.
-                            return new Date(appearsInBlock.getTimeSeconds() * 1000);
+                    Long blockTime = blockTimeCache.get(appearsInHash);
+                    if (blockTime == null) {
+                        try {
+                            if (bitcoinController != null && bitcoinController.getMultiBitService() != null
+                                    && bitcoinController.getMultiBitService().getBlockStore() != null) {
+                                StoredBlock appearsInStoredBlock = bitcoinController.getMultiBitService().getBlockStore().get(appearsInHash);
+                                if (appearsInStoredBlock != null) {
+                                    Block appearsInBlock = appearsInStoredBlock.getHeader();
+                                    // Set the time of the block to be the time of the
+                                    // transaction - TODO get transaction time.
+                                    blockTime = appearsInBlock.getTimeSeconds() * 1000;
+                                    blockTimeCache.put(appearsInHash, blockTime);
+                                }
+                            }
+                        } catch (BlockStoreException e) {
+                            e.printStackTrace();
                         }
-                    } catch (BlockStoreException e) {
-                        e.printStackTrace();
+                    }
+                    if (blockTime != null) {
+                        Date date = new Date(blockTime);
+                        // Remember it on the transaction so it never needs looking up again.
+                        transaction.setUpdateTime(date);
+                        return date;
                     }
                 }
             }
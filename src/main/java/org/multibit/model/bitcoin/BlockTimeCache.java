@@ -0,0 +1,112 @@
+/*
+ * SparkBit
+ *
+ * Copyright 2011-2014 multibit.org
+ * Copyright 2014 Coin Sciences Ltd
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.model.bitcoin;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.bitcoin.core.Sha256Hash;
+
+/**
+ * A bounded cache of block times, keyed by block hash, so that transaction
+ * dates do not need a read of the block store. The least recently used
+ * blocks are evicted first.
+ *
+ * Only the blocks a wallet transaction has been dated from are put in, as
+ * they are read from the block store, so the cache is not churned by the
+ * blocks downloaded during a sync.
+ */
+public class BlockTimeCache {
+
+    public static final int DEFAULT_MAXIMUM_SIZE = 10000;
+
+    private final Map<Sha256Hash, Long> blockTimes;
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+
+    public BlockTimeCache() {
+        this(DEFAULT_MAXIMUM_SIZE);
+    }
+
+    public BlockTimeCache(final int maximumSize) {
+        blockTimes = new LinkedHashMap<Sha256Hash, Long>(16, 0.75f, true) {
+            private static final long serialVersionUID = -2938471957203814736L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Long> eldest) {
+                return size() > maximumSize;
+            }
+        };
+    }
+
+    /**
+     * @param blockHash
+     * @return The block time in milliseconds, or null if it is not in the cache
+     */
+    public Long get(Sha256Hash blockHash) {
+        Long blockTime;
+        synchronized (blockTimes) {
+            blockTime = blockTimes.get(blockHash);
+        }
+        if (blockTime == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return blockTime;
+    }
+
+    /**
+     * @param blockHash
+     * @param blockTime The block time in milliseconds
+     */
+    public void put(Sha256Hash blockHash, long blockTime) {
+        if (blockHash == null) {
+            return;
+        }
+        synchronized (blockTimes) {
+            blockTimes.put(blockHash, blockTime);
+        }
+    }
+
+    public int size() {
+        synchronized (blockTimes) {
+            return blockTimes.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return The proportion of lookups found in the cache, between 0 and 1
+     */
+    public double getHitRate() {
+        long hitCount = hits.get();
+        long lookupCount = hitCount + misses.get();
+        return lookupCount == 0 ? 0 : (double) hitCount / lookupCount;
+    }
+}
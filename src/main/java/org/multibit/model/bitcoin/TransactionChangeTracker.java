@@ -0,0 +1,82 @@
+/*
+ * SparkBit
+ *
+ * Copyright 2011-2014 multibit.org
+ * Copyright 2014 Coin Sciences Ltd
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.model.bitcoin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.bitcoin.core.Sha256Hash;
+
+/**
+ * The transactions of a wallet that have changed since a cache of them was
+ * last read, and whether the whole cache needs working out again.
+ *
+ * The changes are recorded from any thread (the wallet's listeners) and taken
+ * by the cache when it is next read, so the work is only done for what is
+ * shown.
+ */
+class TransactionChangeTracker {
+
+    private final Set<Sha256Hash> changedTransactionHashes = Collections.newSetFromMap(new ConcurrentHashMap<Sha256Hash, Boolean>());
+
+    private volatile boolean rebuildRequired = true;
+
+    void markTransactionChanged(Sha256Hash transactionHash) {
+        if (transactionHash != null) {
+            changedTransactionHashes.add(transactionHash);
+        }
+    }
+
+    void markRebuildRequired() {
+        rebuildRequired = true;
+    }
+
+    boolean isRebuildRequired() {
+        return rebuildRequired;
+    }
+
+    boolean hasChangedTransactions() {
+        return !changedTransactionHashes.isEmpty();
+    }
+
+    /**
+     * Take the rebuild flag, clearing it. The changed transactions are cleared
+     * too as a rebuild covers them.
+     */
+    boolean takeRebuildRequired() {
+        if (!rebuildRequired) {
+            return false;
+        }
+        rebuildRequired = false;
+        changedTransactionHashes.clear();
+        return true;
+    }
+
+    /**
+     * Take the hashes of the transactions changed since the last call.
+     */
+    List<Sha256Hash> takeChangedTransactionHashes() {
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>(changedTransactionHashes);
+        changedTransactionHashes.removeAll(hashes);
+        return hashes;
+    }
+}
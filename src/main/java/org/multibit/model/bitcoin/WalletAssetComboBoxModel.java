@@ -68,11 +68,11 @@ public class WalletAssetComboBoxModel extends DefaultComboBoxModel<WalletAssetCo
 	
 	Wallet wallet = this.bitcoinController.getModel().getActiveWallet();
 	if (wallet != null) {
+	    AssetBalanceLedger assetBalanceLedger = this.bitcoinController.getModel().getActivePerWalletModelData().getAssetBalanceLedger();
 	    int[] array_ids = wallet.CS.getAssetIDs();
 	    if (array_ids != null) {
 		for (int i : array_ids) {
-		    Wallet.CoinSpark.AssetBalance assetBalance = wallet.CS.getAssetBalance(i);
-		    BigInteger x = assetBalance.total; //wallet.CS.getUnspentAssetQuantity(i); 
+		    BigInteger x = assetBalanceLedger.getTotal(wallet, i); //wallet.CS.getUnspentAssetQuantity(i); 
 		    if (x.compareTo(BigInteger.ZERO)==1) {
 			CSAsset asset = wallet.CS.getAsset(i);
 			if (asset != null && asset.isVisible()) {
@@ -18,11 +18,18 @@
  */
 package org.multibit.model.bitcoin;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.multibit.file.WalletJournal;
+import org.multibit.file.WalletSaveScheduler;
 import org.multibit.viewsystem.swing.view.walletlist.SingleWalletPanelDownloadListener;
 
+import com.google.bitcoin.core.Sha256Hash;
 import com.google.bitcoin.core.Wallet;
 
 /**
@@ -37,6 +44,15 @@ public class WalletData {
     private String walletFilename;
     private WalletInfoData walletInfo;
     private List<WalletTableData> walletTableDataList;
+
+    /**
+     * The rows of the Transactions table for this wallet.
+     */
+    private final transient WalletTableDataCache walletTableDataCache = new WalletTableDataCache();
+
+    private final transient AssetBalanceLedger assetBalanceLedger = new AssetBalanceLedger();
+
+    private final transient AssetChangeSummaryCache assetChangeSummaryCache = new AssetChangeSummaryCache();
     
     /**
      * The wallet filename used for when a backup is being written to.
@@ -59,6 +75,27 @@ public class WalletData {
      * The WalletData has changed since last been written to disk.
      */
     private transient boolean isDirty;
+
+    /**
+     * The only change since the WalletData was last written to disk is the last block seen.
+     */
+    private transient boolean isOnlyLastBlockSeenDirty;
+
+    /**
+     * The WalletData has a change that cannot be written to the journal (e.g. keys, password)
+     * so the next save must write the whole wallet file.
+     */
+    private transient boolean snapshotRequired;
+
+    /**
+     * The hashes of the transactions that have changed since the last save.
+     */
+    private final transient Set<Sha256Hash> changedTransactionHashes = Collections.newSetFromMap(new ConcurrentHashMap<Sha256Hash, Boolean>());
+
+    /**
+     * The journal of changes since the wallet file was last written.
+     */
+    private transient WalletJournal walletJournal;
     
     /**
      * This wallet is currently busy with an operation that affects the private keys.
@@ -100,6 +137,9 @@ public class WalletData {
 
     public void setWallet(Wallet wallet) {
         this.wallet = wallet;
+        walletTableDataCache.markRebuildRequired();
+        assetBalanceLedger.markRebuildRequired();
+        assetChangeSummaryCache.markRebuildRequired();
     }
 
     public String getWalletFilename() {
@@ -131,6 +171,18 @@ public class WalletData {
         this.walletTableDataList = walletTableDataList;
     }
 
+    public WalletTableDataCache getWalletTableDataCache() {
+        return walletTableDataCache;
+    }
+
+    public AssetBalanceLedger getAssetBalanceLedger() {
+        return assetBalanceLedger;
+    }
+
+    public AssetChangeSummaryCache getAssetChangeSummaryCache() {
+        return assetChangeSummaryCache;
+    }
+
     public String getWalletDescription() {
         if (walletInfo != null) {
             return walletInfo.getProperty(WalletInfoData.DESCRIPTION_PROPERTY);
@@ -168,8 +220,89 @@ public class WalletData {
         return isDirty;
     }
 
+    /**
+     * @return true if the only change since the last save is the last block seen
+     */
+    public boolean isOnlyLastBlockSeenDirty() {
+        return isDirty && isOnlyLastBlockSeenDirty;
+    }
+
+    /**
+     * Mark the WalletData as changed. Marking it dirty means the whole wallet
+     * file is written on the next save - use markTransactionChanged or
+     * markLastBlockSeenChanged for changes that can be journalled.
+     */
     public void setDirty(boolean isDirty) {
-        this.isDirty = isDirty;
+        if (isDirty) {
+            this.isDirty = true;
+            isOnlyLastBlockSeenDirty = false;
+            snapshotRequired = true;
+            WalletSaveScheduler.INSTANCE.walletChanged(this, false);
+        } else {
+            // Transactions that changed during the save are still to be saved.
+            this.isDirty = !changedTransactionHashes.isEmpty();
+            isOnlyLastBlockSeenDirty = false;
+        }
+    }
+
+    /**
+     * Mark a transaction as changed. The change can be written to the wallet journal
+     * and the row of the transaction in the Transactions table is recreated.
+     */
+    public void markTransactionChanged(Sha256Hash transactionHash) {
+        if (transactionHash != null) {
+            changedTransactionHashes.add(transactionHash);
+        }
+        walletTableDataCache.markTransactionChanged(transactionHash);
+        assetBalanceLedger.markTransactionChanged(transactionHash);
+        assetChangeSummaryCache.markTransactionChanged(transactionHash);
+        this.isDirty = true;
+        isOnlyLastBlockSeenDirty = false;
+        WalletSaveScheduler.INSTANCE.walletChanged(this, false);
+    }
+
+    /**
+     * Mark the WalletData as changed where the only change is the last block seen.
+     * This is saved lazily as losing it only means blocks are downloaded again.
+     */
+    public void markLastBlockSeenChanged() {
+        if (!this.isDirty) {
+            this.isDirty = true;
+            isOnlyLastBlockSeenDirty = true;
+        }
+        WalletSaveScheduler.INSTANCE.walletChanged(this, true);
+    }
+
+    /**
+     * Take the hashes of the transactions changed since the last call.
+     */
+    public List<Sha256Hash> takeChangedTransactionHashes() {
+        List<Sha256Hash> hashes = new ArrayList<Sha256Hash>(changedTransactionHashes);
+        changedTransactionHashes.removeAll(hashes);
+        return hashes;
+    }
+
+    /**
+     * Put back transaction hashes taken with takeChangedTransactionHashes that were not saved.
+     */
+    public void restoreChangedTransactionHashes(List<Sha256Hash> hashes) {
+        changedTransactionHashes.addAll(hashes);
+    }
+
+    public boolean isSnapshotRequired() {
+        return snapshotRequired;
+    }
+
+    public void setSnapshotRequired(boolean snapshotRequired) {
+        this.snapshotRequired = snapshotRequired;
+    }
+
+    public WalletJournal getWalletJournal() {
+        return walletJournal;
+    }
+
+    public void setWalletJournal(WalletJournal walletJournal) {
+        this.walletJournal = walletJournal;
     }
 
     public String getWalletBackupFilename() {
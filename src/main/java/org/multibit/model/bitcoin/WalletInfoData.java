@@ -52,8 +52,8 @@ public class WalletInfoData {
      * The actual receiving addresses exposed for this address book (only keys
      * that occur in this wallet).
      */
-    private ArrayList<WalletAddressBookData> receivingAddresses;
-    private ArrayList<WalletAddressBookData> sendingAddresses;
+    private AddressBookList receivingAddresses;
+    private AddressBookList sendingAddresses;
 
     private static final String INFO_FILE_EXTENSION = "info";
     private static final String RECEIVE_ADDRESS_MARKER = "receive";
@@ -91,8 +91,8 @@ public class WalletInfoData {
         this.walletVersion = walletVersion;
         this.wallet = wallet;
 
-        receivingAddresses = new ArrayList<WalletAddressBookData>();
-        sendingAddresses = new ArrayList<WalletAddressBookData>();
+        receivingAddresses = new AddressBookList();
+        sendingAddresses = new AddressBookList();
 
         walletPreferences = new Properties();
 
@@ -146,7 +146,11 @@ public class WalletInfoData {
     }
 
     public void setReceivingAddresses(ArrayList<WalletAddressBookData> receivingAddresses) {
-        this.receivingAddresses = receivingAddresses;
+        if (receivingAddresses instanceof AddressBookList) {
+            this.receivingAddresses = (AddressBookList) receivingAddresses;
+        } else {
+            this.receivingAddresses = new AddressBookList(receivingAddresses);
+        }
     }
 
     /**
@@ -165,13 +169,11 @@ public class WalletInfoData {
 
         if (checkAlreadyPresent) {
             // Check the address is not already in the set.
-            for (WalletAddressBookData addressBookData : receivingAddresses) {
-                if (addressBookData.getAddress().equals(receivingAddress.getAddress())) {
-                    // Just update label.
-                    addressBookData.setLabel(receivingAddress.getLabel());
-                    justUpdateLabel = true;
-                    break;
-                }
+            WalletAddressBookData addressBookData = receivingAddresses.lookup(receivingAddress.getAddress());
+            if (addressBookData != null) {
+                // Just update label.
+                addressBookData.setLabel(receivingAddress.getLabel());
+                justUpdateLabel = true;
             }
         }
 
@@ -198,17 +200,15 @@ public class WalletInfoData {
     public void checkAllReceivingAddressesAppearInWallet(Wallet wallet) {
         List<WalletAddressBookData> toRemove = new ArrayList<WalletAddressBookData>();
         if (wallet != null) {
+            Set<String> addressesOfKeys = new HashSet<String>();
+            for (ECKey key : wallet.getKeys()) {
+                addressesOfKeys.add(key.toAddress(SparkBit.getBitcoinController().getModel().getNetworkParameters()).toString());
+            }
+
             Iterator<WalletAddressBookData> iterator = receivingAddresses.iterator();
             while (iterator.hasNext()) {
-                boolean addressMatchesKey = false;
                 WalletAddressBookData walletAddressBookData = iterator.next();
-                for (ECKey key : wallet.getKeys()) {
-                    if (walletAddressBookData.getAddress().equals(
-                            key.toAddress(SparkBit.getBitcoinController().getModel().getNetworkParameters()).toString())) {
-                        addressMatchesKey = true;
-                        break;
-                    }
-                }
+                boolean addressMatchesKey = addressesOfKeys.contains(walletAddressBookData.getAddress());
                 
                 if (!addressMatchesKey) {
                     // Remove from receivingAddresses and log.
@@ -239,17 +239,8 @@ public class WalletInfoData {
     }
 
     public boolean containsReceivingAddress(String receivingAddress) {
-        boolean toReturn = false;
         // see if the receiving address is on the current list
-        for (WalletAddressBookData addressBookData : receivingAddresses) {
-            if (addressBookData.getAddress().equals(receivingAddress.toString())) {
-                // do nothing
-                toReturn = true;
-                break;
-            }
-        }
-
-        return toReturn;
+        return receivingAddresses.lookup(receivingAddress) != null;
     }
 
     public void addSendingAddress(WalletAddressBookData sendingAddress) {
@@ -259,13 +250,11 @@ public class WalletInfoData {
 
         boolean done = false;
         // Check the address is not already in the arraylist.
-        for (WalletAddressBookData addressBookData : sendingAddresses) {
-            if (addressBookData.getAddress() != null && addressBookData.getAddress().equals(sendingAddress.getAddress())) {
-                // Just update label.
-                addressBookData.setLabel(sendingAddress.getLabel());
-                done = true;
-                break;
-            }
+        WalletAddressBookData addressBookData = sendingAddresses.lookup(sendingAddress.getAddress());
+        if (addressBookData != null) {
+            // Just update label.
+            addressBookData.setLabel(sendingAddress.getLabel());
+            done = true;
         }
 
         if (!done) {
@@ -274,10 +263,9 @@ public class WalletInfoData {
     }
 
     public String lookupLabelForReceivingAddress(String address) {
-        for (WalletAddressBookData addressBookData : receivingAddresses) {
-            if (addressBookData.getAddress().equals(address)) {
-                return addressBookData.getLabel();
-            }
+        WalletAddressBookData addressBookData = receivingAddresses.lookup(address);
+        if (addressBookData != null) {
+            return addressBookData.getLabel();
         }
 
         return "";
@@ -288,24 +276,14 @@ public class WalletInfoData {
     Return this coinspark address, or null if no match.
     */
     public String lookupCoinSparkAddressForSendingAddress(String address) {
-        for (WalletAddressBookData addressBookData : sendingAddresses) {
-	    String s = addressBookData.getAddress();
-	    if (s.startsWith("s")) {
-		String btcAddress = CSMiscUtils.getBitcoinAddressFromCoinSparkAddress(s);
-		if (btcAddress != null && btcAddress.equals(address)) {
-		    return s;		    
-		}
-	    }
-	}
-	return null;
+        return sendingAddresses.lookupCoinSparkAddress(address);
     }
     
     public String lookupLabelForSendingAddress(String address) {
-        for (WalletAddressBookData addressBookData : sendingAddresses) {
-            if (addressBookData.getAddress().equals(address)) {
-                return addressBookData.getLabel();
-            }
-	}
+        WalletAddressBookData addressBookData = sendingAddresses.lookup(address);
+        if (addressBookData != null) {
+            return addressBookData.getLabel();
+        }
 
         return "";
     }
@@ -700,4 +678,178 @@ public class WalletInfoData {
     public void setWalletVersion(MultiBitWalletVersion walletVersion) {
         this.walletVersion = walletVersion;
     }
+
+    /**
+     * A list of address book entries with a hash index by address, so lookups do
+     * not scan the list. The index is kept up to date by add, set and remove, so
+     * a run of adds with duplicate checks stays linear. Other structural changes
+     * (addAll, removeAll, the iterators etc, from the address book views) are
+     * caught by modCount and rebuild the index on the next lookup.
+     * Labels are read from the entries themselves so label edits need no rebuild.
+     */
+    private static class AddressBookList extends ArrayList<WalletAddressBookData> {
+        private static final long serialVersionUID = 4209712650184523917L;
+
+        private transient Map<String, WalletAddressBookData> addressIndex;
+        private transient Map<String, String> coinSparkAddressIndex;
+        private transient int indexedModCount = -1;
+
+        AddressBookList() {
+            super();
+        }
+
+        AddressBookList(Collection<WalletAddressBookData> addressBookData) {
+            super(addressBookData);
+        }
+
+        @Override
+        public synchronized boolean add(WalletAddressBookData element) {
+            boolean isIndexed = isIndexUpToDate();
+            super.add(element);
+            if (isIndexed) {
+                // Appended, so it only becomes the first entry for an address no entry has yet.
+                index(element);
+                indexedModCount = modCount;
+            }
+            return true;
+        }
+
+        @Override
+        public synchronized WalletAddressBookData set(int index, WalletAddressBookData element) {
+            boolean isIndexed = isIndexUpToDate();
+            WalletAddressBookData previousElement = super.set(index, element);
+            if (isIndexed) {
+                unindex(previousElement);
+                reindexAddressOf(element);
+            }
+            return previousElement;
+        }
+
+        @Override
+        public synchronized WalletAddressBookData remove(int index) {
+            boolean isIndexed = isIndexUpToDate();
+            WalletAddressBookData removedElement = super.remove(index);
+            if (isIndexed) {
+                unindex(removedElement);
+                indexedModCount = modCount;
+            }
+            return removedElement;
+        }
+
+        @Override
+        public synchronized boolean remove(Object element) {
+            int index = indexOf(element);
+            if (index < 0) {
+                return false;
+            }
+            remove(index);
+            return true;
+        }
+
+        /**
+         * @param address
+         * @return The first entry for the address, or null if there is none
+         */
+        synchronized WalletAddressBookData lookup(String address) {
+            if (address == null) {
+                return null;
+            }
+            updateIndexes();
+            return addressIndex.get(address);
+        }
+
+        /**
+         * @param bitcoinAddress
+         * @return The first CoinSpark address for the Bitcoin address, or null if there is none
+         */
+        synchronized String lookupCoinSparkAddress(String bitcoinAddress) {
+            if (bitcoinAddress == null) {
+                return null;
+            }
+            updateIndexes();
+            return coinSparkAddressIndex.get(bitcoinAddress);
+        }
+
+        private boolean isIndexUpToDate() {
+            return addressIndex != null && indexedModCount == modCount;
+        }
+
+        private void updateIndexes() {
+            if (isIndexUpToDate()) {
+                return;
+            }
+            addressIndex = new HashMap<String, WalletAddressBookData>(size() * 2);
+            coinSparkAddressIndex = new HashMap<String, String>();
+            for (int i = 0; i < size(); i++) {
+                index(get(i));
+            }
+            indexedModCount = modCount;
+        }
+
+        /**
+         * Index an entry unless an earlier entry has the same address - the
+         * first entry wins, as it did when the list was scanned.
+         */
+        private void index(WalletAddressBookData addressBookData) {
+            String address = addressBookData == null ? null : addressBookData.getAddress();
+            if (address == null) {
+                return;
+            }
+            if (!addressIndex.containsKey(address)) {
+                addressIndex.put(address, addressBookData);
+            }
+            if (address.startsWith("s")) {
+                String btcAddress = CSMiscUtils.getBitcoinAddressFromCoinSparkAddress(address);
+                if (btcAddress != null && !coinSparkAddressIndex.containsKey(btcAddress)) {
+                    coinSparkAddressIndex.put(btcAddress, address);
+                }
+            }
+        }
+
+        /**
+         * Take an entry no longer in the list out of the indexes, promoting the
+         * next entry for the same address if it was the indexed one.
+         */
+        private void unindex(WalletAddressBookData addressBookData) {
+            String address = addressBookData == null ? null : addressBookData.getAddress();
+            if (address == null) {
+                return;
+            }
+            if (addressIndex.get(address) == addressBookData) {
+                reindexAddressOf(addressBookData);
+            }
+            if (address.startsWith("s") && !addressIndex.containsKey(address)) {
+                // No other entry has the CoinSpark address, so find the next one for the Bitcoin address.
+                String btcAddress = CSMiscUtils.getBitcoinAddressFromCoinSparkAddress(address);
+                if (btcAddress != null && address.equals(coinSparkAddressIndex.get(btcAddress))) {
+                    coinSparkAddressIndex.remove(btcAddress);
+                    for (int i = 0; i < size(); i++) {
+                        String loopAddress = get(i) == null ? null : get(i).getAddress();
+                        if (loopAddress != null && loopAddress.startsWith("s")
+                                && btcAddress.equals(CSMiscUtils.getBitcoinAddressFromCoinSparkAddress(loopAddress))) {
+                            coinSparkAddressIndex.put(btcAddress, loopAddress);
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Index the first entry in the list with the address of the given entry.
+         */
+        private void reindexAddressOf(WalletAddressBookData addressBookData) {
+            String address = addressBookData == null ? null : addressBookData.getAddress();
+            if (address == null) {
+                return;
+            }
+            addressIndex.remove(address);
+            for (int i = 0; i < size(); i++) {
+                if (get(i) != null && address.equals(get(i).getAddress())) {
+                    index(get(i));
+                    return;
+                }
+            }
+        }
+    }
 }
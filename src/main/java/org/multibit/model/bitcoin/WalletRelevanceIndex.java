@@ -0,0 +1,331 @@
+/*
+ * SparkBit
+ *
+ * Copyright 2011-2014 multibit.org
+ * Copyright 2014 Coin Sciences Ltd
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.model.bitcoin;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.ScriptException;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionInput;
+import com.google.bitcoin.core.TransactionOutPoint;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.core.Utils;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.script.Script;
+import com.google.bitcoin.wallet.WalletTransaction;
+
+/**
+ * An index, across all the open wallets, of the key hashes (pay to address,
+ * pay to public key and pay to script hash all index by the 20 byte hash) and
+ * the outpoints each wallet watches, so that a transaction relayed by a peer
+ * is only checked against the wallets it touches.
+ *
+ * Entries are a 64 bit digest of the hash or outpoint mapped to a bit mask of
+ * the wallets, in an open addressing table of primitives. A digest shared by
+ * two items only means a wallet is checked needlessly - the wallet itself
+ * still decides whether the transaction is relevant.
+ *
+ * A wallet is reindexed when its number of keys or transactions changes, and
+ * wallets are added and removed as they are opened and closed, all checked
+ * on each lookup. With more than MAXIMUM_NUMBER_OF_WALLETS open every wallet
+ * is checked, as before.
+ */
+public class WalletRelevanceIndex {
+
+    public static final int MAXIMUM_NUMBER_OF_WALLETS = 64;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /**
+     * The wallet in each slot (bit of the masks), or null if the slot is free.
+     */
+    private final WalletData[] slots = new WalletData[MAXIMUM_NUMBER_OF_WALLETS];
+
+    /**
+     * The key and transaction counts of each wallet when last indexed.
+     */
+    private final Map<WalletData, long[]> indexedCounts = new IdentityHashMap<WalletData, long[]>();
+
+    private long[] digests = new long[INITIAL_CAPACITY];
+    private long[] masks = new long[INITIAL_CAPACITY];
+    private int numberOfEntries = 0;
+
+    /**
+     * @return The open wallets the transaction may be relevant to, in the
+     *         order of openWallets
+     */
+    public synchronized List<WalletData> getWalletsForTransaction(Transaction transaction, List<WalletData> openWallets) {
+        if (openWallets == null || openWallets.isEmpty()) {
+            return new ArrayList<WalletData>();
+        }
+        if (!update(openWallets)) {
+            return new ArrayList<WalletData>(openWallets);
+        }
+
+        long mask = 0;
+        for (TransactionInput input : transaction.getInputs()) {
+            if (input.isCoinBase()) {
+                continue;
+            }
+            TransactionOutPoint outpoint = input.getOutpoint();
+            mask |= get(digest(outpoint.getHash(), outpoint.getIndex()));
+            try {
+                // Spends from a pay to address output carry the public key.
+                mask |= get(digest(Utils.sha256hash160(input.getScriptSig().getPubKey())));
+            } catch (ScriptException e) {
+                // Not a pay to address spend - the outpoint identifies it.
+            }
+        }
+        for (TransactionOutput output : transaction.getOutputs()) {
+            byte[] hash = getHash(output);
+            if (hash != null) {
+                mask |= get(digest(hash));
+            }
+        }
+
+        List<WalletData> wallets = new ArrayList<WalletData>();
+        if (mask != 0) {
+            for (WalletData openWallet : openWallets) {
+                for (int i = 0; i < slots.length; i++) {
+                    if (slots[i] == openWallet && (mask & (1L << i)) != 0) {
+                        wallets.add(openWallet);
+                        break;
+                    }
+                }
+            }
+        }
+        return wallets;
+    }
+
+    /**
+     * Bring the index up to date with the open wallets.
+     *
+     * @return false if there are too many wallets to index
+     */
+    private boolean update(List<WalletData> openWallets) {
+        // Free the slots of closed wallets.
+        for (int i = 0; i < slots.length; i++) {
+            if (slots[i] != null && !containsIdentical(openWallets, slots[i])) {
+                indexedCounts.remove(slots[i]);
+                clearSlot(i);
+                slots[i] = null;
+            }
+        }
+
+        for (WalletData openWallet : openWallets) {
+            Wallet wallet = openWallet.getWallet();
+            if (wallet == null) {
+                continue;
+            }
+            int slot = getSlot(openWallet);
+            if (slot < 0) {
+                slot = getFreeSlot();
+                if (slot < 0) {
+                    return false;
+                }
+                slots[slot] = openWallet;
+            }
+            long[] counts = new long[] { wallet.getKeychainSize(), getNumberOfTransactions(wallet) };
+            if (!Arrays.equals(counts, indexedCounts.get(openWallet))) {
+                clearSlot(slot);
+                indexWallet(wallet, slot);
+                indexedCounts.put(openWallet, counts);
+            }
+        }
+        return true;
+    }
+
+    private void indexWallet(Wallet wallet, int slot) {
+        long bit = 1L << slot;
+        for (ECKey key : wallet.getKeychain()) {
+            put(digest(key.getPubKeyHash()), bit);
+        }
+        for (Transaction transaction : wallet.getTransactions(true)) {
+            List<TransactionOutput> outputs = transaction.getOutputs();
+            for (int i = 0; i < outputs.size(); i++) {
+                if (outputs.get(i).isMine(wallet)) {
+                    put(digest(transaction.getHash(), i), bit);
+                }
+            }
+        }
+        // Transactions spending the same outputs as a pending transaction are double spends.
+        for (Transaction transaction : wallet.getPendingTransactions()) {
+            for (TransactionInput input : transaction.getInputs()) {
+                if (!input.isCoinBase()) {
+                    put(digest(input.getOutpoint().getHash(), input.getOutpoint().getIndex()), bit);
+                }
+            }
+        }
+    }
+
+    private static long getNumberOfTransactions(Wallet wallet) {
+        return wallet.getPoolSize(WalletTransaction.Pool.UNSPENT) + wallet.getPoolSize(WalletTransaction.Pool.SPENT)
+                + wallet.getPoolSize(WalletTransaction.Pool.PENDING) + wallet.getPoolSize(WalletTransaction.Pool.DEAD);
+    }
+
+    /**
+     * @return The key or script hash an output pays to, or null
+     */
+    private static byte[] getHash(TransactionOutput output) {
+        try {
+            Script script = output.getScriptPubKey();
+            if (script.isSentToAddress() || script.isPayToScriptHash()) {
+                return script.getPubKeyHash();
+            } else if (script.isSentToRawPubKey()) {
+                return Utils.sha256hash160(script.getPubKey());
+            }
+        } catch (ScriptException e) {
+            // Not a script a wallet can spend.
+        }
+        return null;
+    }
+
+    private static boolean containsIdentical(List<WalletData> wallets, WalletData walletData) {
+        for (WalletData loopWalletData : wallets) {
+            if (loopWalletData == walletData) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int getSlot(WalletData walletData) {
+        for (int i = 0; i < slots.length; i++) {
+            if (slots[i] == walletData) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int getFreeSlot() {
+        for (int i = 0; i < slots.length; i++) {
+            if (slots[i] == null) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static long digest(byte[] bytes) {
+        // FNV-1a, 64 bit.
+        long digest = 0xcbf29ce484222325L;
+        for (byte b : bytes) {
+            digest ^= (b & 0xff);
+            digest *= 0x100000001b3L;
+        }
+        return digest == 0 ? 1 : digest;
+    }
+
+    private static long digest(Sha256Hash transactionHash, long index) {
+        long digest = digest(transactionHash.getBytes()) ^ ((index + 1) * 0x9e3779b97f4a7c15L);
+        return digest == 0 ? 1 : digest;
+    }
+
+    private long get(long digest) {
+        int position = position(digest, digests.length);
+        while (digests[position] != 0) {
+            if (digests[position] == digest) {
+                return masks[position];
+            }
+            position = (position + 1) & (digests.length - 1);
+        }
+        return 0;
+    }
+
+    private void put(long digest, long bit) {
+        if ((numberOfEntries + 1) * 2 > digests.length) {
+            resize();
+        }
+        int position = position(digest, digests.length);
+        while (digests[position] != 0) {
+            if (digests[position] == digest) {
+                masks[position] |= bit;
+                return;
+            }
+            position = (position + 1) & (digests.length - 1);
+        }
+        digests[position] = digest;
+        masks[position] = bit;
+        numberOfEntries++;
+    }
+
+    /**
+     * Remove a wallet from every entry. Entries left with no wallet are dropped
+     * when the table is next resized.
+     */
+    private void clearSlot(int slot) {
+        long keep = ~(1L << slot);
+        for (int i = 0; i < masks.length; i++) {
+            masks[i] &= keep;
+        }
+    }
+
+    /**
+     * Rehash, dropping entries with no wallet, into a table at least twice the
+     * size of the remaining entries.
+     */
+    private void resize() {
+        int liveEntries = 0;
+        for (int i = 0; i < digests.length; i++) {
+            if (digests[i] != 0 && masks[i] != 0) {
+                liveEntries++;
+            }
+        }
+        int capacity = INITIAL_CAPACITY;
+        while (capacity < (liveEntries + 1) * 4) {
+            capacity *= 2;
+        }
+
+        long[] oldDigests = digests;
+        long[] oldMasks = masks;
+        digests = new long[capacity];
+        masks = new long[capacity];
+        numberOfEntries = 0;
+        for (int i = 0; i < oldDigests.length; i++) {
+            if (oldDigests[i] != 0 && oldMasks[i] != 0) {
+                int position = position(oldDigests[i], capacity);
+                while (digests[position] != 0) {
+                    position = (position + 1) & (capacity - 1);
+                }
+                digests[position] = oldDigests[i];
+                masks[position] = oldMasks[i];
+                numberOfEntries++;
+            }
+        }
+    }
+
+    private static int position(long digest, int capacity) {
+        return (int) (digest ^ (digest >>> 32)) & (capacity - 1);
+    }
+
+    /**
+     * @return The number of digests in the index, including any no longer
+     *         watched by a wallet
+     */
+    public synchronized int size() {
+        return numberOfEntries;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * SparkBit
+ *
+ * Copyright 2011-2014 multibit.org
+ * Copyright 2014 Coin Sciences Ltd
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.model.bitcoin;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.bitcoin.core.Sha256Hash;
+
+/**
+ * The rows of the Transactions table for one wallet, keyed by transaction hash.
+ *
+ * Building a row is expensive (values sent to and from the wallet, the
+ * description and a block store lookup for the date) so rows are only rebuilt
+ * for the transactions the wallet reports as changed. The whole cache is
+ * rebuilt when the wallet is replaced or reorganised.
+ *
+ * BitcoinModel.updateWalletTableData does the work - this class just holds the
+ * rows and records what has changed. Guarded by its own monitor, except for the
+ * changes which can be recorded from any thread.
+ */
+public class WalletTableDataCache {
+
+    private final Map<Sha256Hash, WalletTableData> rows = new LinkedHashMap<Sha256Hash, WalletTableData>();
+
+    private final TransactionChangeTracker changes = new TransactionChangeTracker();
+
+    /**
+     * Record that the row for a transaction needs rebuilding.
+     */
+    public void markTransactionChanged(Sha256Hash transactionHash) {
+        changes.markTransactionChanged(transactionHash);
+    }
+
+    /**
+     * Record that every row needs rebuilding.
+     */
+    public void markRebuildRequired() {
+        changes.markRebuildRequired();
+    }
+
+    /**
+     * @return A copy of the rows, in the order they were added
+     */
+    public synchronized ArrayList<WalletTableData> getRows() {
+        return new ArrayList<WalletTableData>(rows.values());
+    }
+
+    public synchronized WalletTableData getRow(Sha256Hash transactionHash) {
+        return rows.get(transactionHash);
+    }
+
+    synchronized int size() {
+        return rows.size();
+    }
+
+    synchronized void putRow(Sha256Hash transactionHash, WalletTableData row) {
+        rows.put(transactionHash, row);
+    }
+
+    synchronized void removeRow(Sha256Hash transactionHash) {
+        rows.remove(transactionHash);
+    }
+
+    synchronized void clear() {
+        rows.clear();
+    }
+
+    boolean takeRebuildRequired() {
+        return changes.takeRebuildRequired();
+    }
+
+    List<Sha256Hash> takeChangedTransactionHashes() {
+        return changes.takeChangedTransactionHashes();
+    }
+}
@@ -0,0 +1,596 @@
+/*
+ * SparkBit
+ *
+ * Copyright 2011-2014 multibit.org
+ * Copyright 2014 Coin Sciences Ltd
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.network;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.CacheRequest;
+import java.net.CacheResponse;
+import java.net.HttpURLConnection;
+import java.net.ResponseCache;
+import java.net.URI;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Utils;
+
+/**
+ * A cache on disk of the documents fetched over http that carry an ETag or
+ * Last-Modified header, by the asset validation of the CoinSpark library - only
+ * the requests made on a thread between beginAssetFetch and endAssetFetch use
+ * it, and every other request goes to the server as before.
+ *
+ * A cached document is never served as it is : each request is turned into a
+ * conditional GET (If-None-Match / If-Modified-Since) and the cached copy is
+ * only used if the server answers 304 Not Modified, so an unchanged document
+ * is not downloaded again and a changed one is never served stale. Any other
+ * answer is passed on to the caller, and a request that fails is answered 504
+ * Gateway Timeout, so that the caller does not fetch the document again. At
+ * most MAXIMUM_CONNECTIONS_PER_HOST conditional requests go to a host at once.
+ *
+ * Each document is kept in its own file, named by the hash of its URI, with
+ * the response headers and the SHA-256 of the content, which is checked when
+ * it is read. The least recently used files are removed beyond
+ * MAXIMUM_NUMBER_OF_DOCUMENTS.
+ */
+public class AssetDocumentCache extends ResponseCache {
+
+    private static final Logger log = LoggerFactory.getLogger(AssetDocumentCache.class);
+
+    private static final int FILE_VERSION = 1;
+
+    private static final String FILE_SUFFIX = ".cache";
+
+    public static final int MAXIMUM_NUMBER_OF_DOCUMENTS = 2000;
+
+    /**
+     * Larger documents are not cached.
+     */
+    public static final int MAXIMUM_DOCUMENT_SIZE = 1024 * 1024; // bytes
+
+    /**
+     * The most conditional requests made to one host at a time.
+     */
+    public static final int MAXIMUM_CONNECTIONS_PER_HOST = 4;
+
+    private static final String ETAG = "ETag";
+    private static final String LAST_MODIFIED = "Last-Modified";
+
+    private static class AssetFetch {
+        final int connectTimeout;
+        final int readTimeout;
+
+        AssetFetch(int connectTimeout, int readTimeout) {
+            this.connectTimeout = connectTimeout;
+            this.readTimeout = readTimeout;
+        }
+    }
+
+    private static final ThreadLocal<AssetFetch> assetFetches = new ThreadLocal<AssetFetch>();
+
+    private final File directory;
+
+    private final Map<String, Semaphore> hostPermits = new HashMap<String, Semaphore>();
+
+    private final AtomicLong numberOfNotModified = new AtomicLong(0);
+    private final AtomicLong numberOfModified = new AtomicLong(0);
+    private final AtomicLong numberOfStored = new AtomicLong(0);
+    private final AtomicLong numberOfFailed = new AtomicLong(0);
+
+    public AssetDocumentCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Use the cache for the http requests made on this thread until
+     * endAssetFetch, e.g. around the asset validation of a wallet. The
+     * ResponseCache is not told the timeouts of the connection it is asked
+     * about, so the conditional requests are made with the ones given here.
+     */
+    public static void beginAssetFetch(int connectTimeout, int readTimeout) {
+        assetFetches.set(new AssetFetch(connectTimeout, readTimeout));
+    }
+
+    public static void endAssetFetch() {
+        assetFetches.remove();
+    }
+
+    @Override
+    public CacheResponse get(URI uri, String requestMethod, Map<String, List<String>> requestHeaders) throws IOException {
+        AssetFetch assetFetch = assetFetches.get();
+        if (assetFetch == null || !isCacheable(uri, requestMethod) || hasHeader(requestHeaders, "Range")
+                || hasHeader(requestHeaders, "Authorization") || hasHeader(requestHeaders, "If-None-Match")
+                || hasHeader(requestHeaders, "If-Modified-Since")) {
+            return null;
+        }
+        File file = getFile(uri);
+        Document document = read(file);
+        if (document == null) {
+            return null;
+        }
+        String etag = getHeader(document.headers, ETAG);
+        String lastModified = getHeader(document.headers, LAST_MODIFIED);
+
+        // Whatever happens the caller gets an answer from here. Returning null would make
+        // it fetch the document again.
+        Semaphore hostPermits = getHostPermits(uri.getHost());
+        try {
+            hostPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return createGatewayTimeoutResponse();
+        }
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) uri.toURL().openConnection();
+            // Go to the server, not back to this cache.
+            connection.setUseCaches(false);
+            connection.setConnectTimeout(assetFetch.connectTimeout);
+            connection.setReadTimeout(assetFetch.readTimeout);
+            if (requestHeaders != null) {
+                for (Map.Entry<String, List<String>> entry : requestHeaders.entrySet()) {
+                    if (entry.getKey() != null && entry.getValue() != null) {
+                        for (String value : entry.getValue()) {
+                            connection.addRequestProperty(entry.getKey(), value);
+                        }
+                    }
+                }
+            }
+            if (etag != null) {
+                connection.setRequestProperty("If-None-Match", etag);
+            }
+            if (lastModified != null) {
+                connection.setRequestProperty("If-Modified-Since", lastModified);
+            }
+
+            int responseCode = connection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                drain(connection.getInputStream());
+                file.setLastModified(System.currentTimeMillis());
+                numberOfNotModified.incrementAndGet();
+                return new DocumentCacheResponse(document);
+            }
+            if (responseCode == HttpURLConnection.HTTP_OK) {
+                byte[] content = readContent(connection.getInputStream());
+                numberOfModified.incrementAndGet();
+                if (content == null) {
+                    // Too large to cache, and to pass on.
+                    deleteFile(file);
+                    return createGatewayTimeoutResponse();
+                }
+                Document changedDocument = new Document(getResponseHeaders(connection, content.length), content);
+                if (hasValidator(changedDocument.headers)) {
+                    store(file, changedDocument);
+                } else {
+                    deleteFile(file);
+                }
+                return new DocumentCacheResponse(changedDocument);
+            }
+
+            // Pass any other answer on as it is.
+            numberOfFailed.incrementAndGet();
+            if (responseCode == HttpURLConnection.HTTP_NOT_FOUND || responseCode == HttpURLConnection.HTTP_GONE) {
+                deleteFile(file);
+            }
+            byte[] errorContent = connection.getErrorStream() == null ? null : readContent(connection.getErrorStream());
+            if (errorContent == null) {
+                errorContent = new byte[0];
+            }
+            return new DocumentCacheResponse(new Document(getResponseHeaders(connection, errorContent.length), errorContent));
+        } catch (IOException e) {
+            log.debug("Revalidating " + uri + " failed. " + e.getClass().getCanonicalName() + " " + e.getMessage());
+        } catch (RuntimeException e) {
+            log.error(e.getClass().getCanonicalName() + " " + e.getMessage());
+        } finally {
+            hostPermits.release();
+        }
+        numberOfFailed.incrementAndGet();
+        return createGatewayTimeoutResponse();
+    }
+
+    @Override
+    public CacheRequest put(URI uri, URLConnection connection) throws IOException {
+        if (assetFetches.get() == null || !(connection instanceof HttpURLConnection)) {
+            return null;
+        }
+        final HttpURLConnection httpConnection = (HttpURLConnection) connection;
+        if (!isCacheable(uri, httpConnection.getRequestMethod()) || httpConnection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+            return null;
+        }
+        String cacheControl = httpConnection.getHeaderField("Cache-Control");
+        if (cacheControl != null && cacheControl.toLowerCase().contains("no-store")) {
+            return null;
+        }
+        if (httpConnection.getHeaderField(ETAG) == null && httpConnection.getHeaderField(LAST_MODIFIED) == null) {
+            return null;
+        }
+
+        final File file = getFile(uri);
+        return new CacheRequest() {
+            private boolean aborted = false;
+
+            private final ByteArrayOutputStream content = new ByteArrayOutputStream() {
+                @Override
+                public synchronized void write(byte[] bytes, int offset, int length) {
+                    if (!aborted) {
+                        super.write(bytes, offset, length);
+                        checkSize();
+                    }
+                }
+
+                @Override
+                public synchronized void write(int b) {
+                    if (!aborted) {
+                        super.write(b);
+                        checkSize();
+                    }
+                }
+
+                @Override
+                public void close() throws IOException {
+                    if (!aborted) {
+                        byte[] bytes = toByteArray();
+                        store(file, new Document(getResponseHeaders(httpConnection, bytes.length), bytes));
+                    }
+                }
+
+                private void checkSize() {
+                    if (size() > MAXIMUM_DOCUMENT_SIZE) {
+                        abort();
+                    }
+                }
+            };
+
+            @Override
+            public OutputStream getBody() throws IOException {
+                return content;
+            }
+
+            @Override
+            public void abort() {
+                aborted = true;
+                content.reset();
+            }
+        };
+    }
+
+    /**
+     * @return The number of requests answered from the cache after a 304
+     */
+    public long getNumberOfNotModified() {
+        return numberOfNotModified.get();
+    }
+
+    /**
+     * @return The number of cached documents found to have changed
+     */
+    public long getNumberOfModified() {
+        return numberOfModified.get();
+    }
+
+    public long getNumberOfStored() {
+        return numberOfStored.get();
+    }
+
+    /**
+     * @return The number of conditional requests that failed or had an answer
+     *         other than 200 or 304
+     */
+    public long getNumberOfFailed() {
+        return numberOfFailed.get();
+    }
+
+    @Override
+    public String toString() {
+        return "AssetDocumentCache [notModified=" + numberOfNotModified.get() + ", modified=" + numberOfModified.get()
+                + ", stored=" + numberOfStored.get() + ", failed=" + numberOfFailed.get() + "]";
+    }
+
+    private Semaphore getHostPermits(String host) {
+        String key = host == null ? "" : host.toLowerCase();
+        synchronized (hostPermits) {
+            Semaphore permits = hostPermits.get(key);
+            if (permits == null) {
+                permits = new Semaphore(MAXIMUM_CONNECTIONS_PER_HOST);
+                hostPermits.put(key, permits);
+            }
+            return permits;
+        }
+    }
+
+    /**
+     * @return The answer for a conditional request that could not be made, as
+     *         a cache asked for a document it cannot get answers
+     */
+    private static CacheResponse createGatewayTimeoutResponse() {
+        Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+        headers.put(null, Collections.singletonList("HTTP/1.1 504 Gateway Timeout"));
+        headers.put("Content-Length", Collections.singletonList("0"));
+        return new DocumentCacheResponse(new Document(headers, new byte[0]));
+    }
+
+    private static void deleteFile(File file) {
+        if (file.exists() && !file.delete()) {
+            log.debug("Could not delete '" + file.getAbsolutePath() + "'");
+        }
+    }
+
+    private static boolean isCacheable(URI uri, String requestMethod) {
+        // A cached https response would need the certificates of the original connection.
+        return uri != null && "http".equalsIgnoreCase(uri.getScheme()) && "GET".equalsIgnoreCase(requestMethod);
+    }
+
+    private File getFile(URI uri) {
+        byte[] uriBytes;
+        try {
+            uriBytes = uri.toString().getBytes("UTF-8");
+        } catch (IOException e) {
+            uriBytes = uri.toString().getBytes();
+        }
+        return new File(directory, Utils.bytesToHexString(Sha256Hash.create(uriBytes).getBytes()) + FILE_SUFFIX);
+    }
+
+    private static Map<String, List<String>> getResponseHeaders(HttpURLConnection connection, int contentLength) {
+        Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+        for (Map.Entry<String, List<String>> entry : connection.getHeaderFields().entrySet()) {
+            String key = entry.getKey();
+            // The content is stored as read, without the transfer encoding.
+            if (key != null
+                    && ("Transfer-Encoding".equalsIgnoreCase(key) || "Content-Length".equalsIgnoreCase(key)
+                            || "Connection".equalsIgnoreCase(key) || "Keep-Alive".equalsIgnoreCase(key))) {
+                continue;
+            }
+            headers.put(key, new ArrayList<String>(entry.getValue()));
+        }
+        headers.put("Content-Length", Collections.singletonList(Integer.toString(contentLength)));
+        return headers;
+    }
+
+    private static boolean hasValidator(Map<String, List<String>> headers) {
+        return getHeader(headers, ETAG) != null || getHeader(headers, LAST_MODIFIED) != null;
+    }
+
+    private static boolean hasHeader(Map<String, List<String>> headers, String name) {
+        return getHeader(headers, name) != null;
+    }
+
+    private static String getHeader(Map<String, List<String>> headers, String name) {
+        if (headers == null) {
+            return null;
+        }
+        for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+            if (name.equalsIgnoreCase(entry.getKey()) && entry.getValue() != null && !entry.getValue().isEmpty()) {
+                return entry.getValue().get(0);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The content, or null if it is larger than MAXIMUM_DOCUMENT_SIZE
+     */
+    private static byte[] readContent(InputStream inputStream) throws IOException {
+        try {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int length;
+            while ((length = inputStream.read(buffer)) != -1) {
+                content.write(buffer, 0, length);
+                if (content.size() > MAXIMUM_DOCUMENT_SIZE) {
+                    return null;
+                }
+            }
+            return content.toByteArray();
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    /**
+     * Read the rest of a response so that the connection can be reused.
+     */
+    private static void drain(InputStream inputStream) throws IOException {
+        if (inputStream == null) {
+            return;
+        }
+        try {
+            byte[] buffer = new byte[8192];
+            while (inputStream.read(buffer) != -1) {
+                // Discard.
+            }
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private static class Document {
+        final Map<String, List<String>> headers;
+        final byte[] content;
+
+        Document(Map<String, List<String>> headers, byte[] content) {
+            this.headers = headers;
+            this.content = content;
+        }
+    }
+
+    private static class DocumentCacheResponse extends CacheResponse {
+        private final Document document;
+
+        DocumentCacheResponse(Document document) {
+            this.document = document;
+        }
+
+        @Override
+        public Map<String, List<String>> getHeaders() throws IOException {
+            return document.headers;
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            return new ByteArrayInputStream(document.content);
+        }
+    }
+
+    /**
+     * @return The document in the file, or null if there is none or it is
+     *         not valid
+     */
+    private Document read(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream inputStream = null;
+        try {
+            inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (inputStream.readInt() != FILE_VERSION) {
+                return null;
+            }
+            Map<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+            int numberOfHeaders = inputStream.readInt();
+            for (int i = 0; i < numberOfHeaders; i++) {
+                // The status line has no name.
+                String name = inputStream.readBoolean() ? inputStream.readUTF() : null;
+                int numberOfValues = inputStream.readInt();
+                List<String> values = new ArrayList<String>();
+                for (int j = 0; j < numberOfValues; j++) {
+                    values.add(inputStream.readUTF());
+                }
+                headers.put(name, values);
+            }
+            byte[] contentHash = new byte[32];
+            inputStream.readFully(contentHash);
+            int length = inputStream.readInt();
+            if (length < 0 || length > MAXIMUM_DOCUMENT_SIZE) {
+                throw new IOException("Bad document length " + length);
+            }
+            byte[] content = new byte[length];
+            inputStream.readFully(content);
+            if (!Arrays.equals(contentHash, Sha256Hash.create(content).getBytes())) {
+                throw new IOException("Content hash mismatch");
+            }
+            return new Document(headers, content);
+        } catch (IOException e) {
+            log.debug("Ignoring cached document '" + file.getAbsolutePath() + "'. " + e.getMessage());
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                    log.error(e.getClass().getCanonicalName() + " " + e.getMessage());
+                }
+            }
+        }
+        if (!file.delete()) {
+            log.debug("Could not delete '" + file.getAbsolutePath() + "'");
+        }
+        return null;
+    }
+
+    private synchronized void store(File file, Document document) {
+        if (!directory.exists() && !directory.mkdirs()) {
+            log.error("Could not create the directory '" + directory.getAbsolutePath() + "'");
+            return;
+        }
+        File tempFile = new File(file.getAbsolutePath() + ".tmp");
+        DataOutputStream outputStream = null;
+        try {
+            outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            outputStream.writeInt(FILE_VERSION);
+            outputStream.writeInt(document.headers.size());
+            for (Map.Entry<String, List<String>> entry : document.headers.entrySet()) {
+                outputStream.writeBoolean(entry.getKey() != null);
+                if (entry.getKey() != null) {
+                    outputStream.writeUTF(entry.getKey());
+                }
+                outputStream.writeInt(entry.getValue().size());
+                for (String value : entry.getValue()) {
+                    outputStream.writeUTF(value);
+                }
+            }
+            outputStream.write(Sha256Hash.create(document.content).getBytes());
+            outputStream.writeInt(document.content.length);
+            outputStream.write(document.content);
+            outputStream.close();
+            outputStream = null;
+            if (!tempFile.renameTo(file)) {
+                file.delete();
+                tempFile.renameTo(file);
+            }
+            numberOfStored.incrementAndGet();
+        } catch (IOException e) {
+            log.error(e.getClass().getCanonicalName() + " " + e.getMessage());
+        } finally {
+            if (outputStream != null) {
+                try {
+                    outputStream.close();
+                } catch (IOException e) {
+                    log.error(e.getClass().getCanonicalName() + " " + e.getMessage());
+                }
+            }
+        }
+        removeLeastRecentlyUsed();
+    }
+
+    private synchronized void removeLeastRecentlyUsed() {
+        File[] files = directory.listFiles();
+        if (files == null || files.length <= MAXIMUM_NUMBER_OF_DOCUMENTS) {
+            return;
+        }
+        List<File> cacheFiles = new ArrayList<File>();
+        for (File file : files) {
+            if (file.getName().endsWith(FILE_SUFFIX)) {
+                cacheFiles.add(file);
+            }
+        }
+        Collections.sort(cacheFiles, new Comparator<File>() {
+            @Override
+            public int compare(File file1, File file2) {
+                return Long.compare(file1.lastModified(), file2.lastModified());
+            }
+        });
+        for (int i = 0; i < cacheFiles.size() - MAXIMUM_NUMBER_OF_DOCUMENTS; i++) {
+            if (!cacheFiles.get(i).delete()) {
+                log.debug("Could not delete '" + cacheFiles.get(i).getAbsolutePath() + "'");
+            }
+        }
+    }
+}
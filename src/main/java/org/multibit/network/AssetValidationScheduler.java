@@ -0,0 +1,490 @@
+/*
+ * SparkBit
+ *
+ * Copyright 2011-2014 multibit.org
+ * Copyright 2014 Coin Sciences Ltd
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.network;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.coinspark.wallet.CSAsset;
+import org.coinspark.wallet.CSEvent;
+import org.coinspark.wallet.CSEventBus;
+import org.coinspark.wallet.CSEventType;
+import org.multibit.controller.bitcoin.BitcoinController;
+import org.multibit.model.bitcoin.AssetBalanceLedger;
+import org.multibit.model.bitcoin.WalletData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.PeerGroup;
+import com.google.bitcoin.core.Wallet;
+import com.google.common.eventbus.Subscribe;
+
+/**
+ * Validates the CoinSpark assets and recalculates the asset balances of each
+ * wallet when an asset is due a check or the balances are due a
+ * recalculation, rather than sweeping every wallet on a timer.
+ *
+ * The assets of a wallet are validated when a new asset is inserted or an
+ * asset is refreshed, and otherwise at the earliest next check time of its
+ * assets :
+ *   - assets never validated are due at once
+ *   - assets that failed validation back off with the number of failures
+ *   - valid assets are revalidated REVALIDATION_INTERVAL after their last check
+ * Transaction changes do not validate the assets - the AssetBalanceLedger
+ * keeps the balances up to date and says when it wants calculateBalances run.
+ *
+ * The validations run on a bounded pool. A wallet is only ever queued once so
+ * a slow or failing wallet does not hold up the others.
+ */
+public class AssetValidationScheduler {
+
+    private static final Logger log = LoggerFactory.getLogger(AssetValidationScheduler.class);
+
+    /**
+     * How often the wallets are checked for being due.
+     */
+    public static final int CHECK_INTERVAL = 5; // seconds
+
+    public static final int MAXIMUM_NUMBER_OF_VALIDATION_THREADS = 4;
+
+    /**
+     * How soon an asset not yet validated, or that failed validation for the
+     * first time, is retried. This doubles with each failure.
+     */
+    public static final long RETRY_INTERVAL = 15 * 1000; // ms
+
+    public static final long MAXIMUM_RETRY_INTERVAL = 60 * 60 * 1000; // ms
+
+    public static final long REVALIDATION_INTERVAL = 60 * 60 * 1000; // ms
+
+    /**
+     * Timeouts of the conditional requests AssetDocumentCache makes for the
+     * asset documents.
+     */
+    public static final int ASSET_FETCH_CONNECT_TIMEOUT = 10000; // ms
+    public static final int ASSET_FETCH_READ_TIMEOUT = 20000; // ms
+
+    private final BitcoinController bitcoinController;
+
+    private final ScheduledExecutorService checkExecutorService;
+
+    private final ThreadPoolExecutor validationExecutorService;
+
+    /**
+     * When each wallet is next due. A wallet not in the map is due now, and a
+     * wallet being validated is not due until the validation is done.
+     */
+    private final Map<WalletData, Long> nextCheckTimes = new IdentityHashMap<WalletData, Long>();
+
+    /**
+     * When the assets of each wallet were last validated. Guarded by
+     * nextCheckTimes.
+     */
+    private final Map<WalletData, Long> assetValidationTimes = new IdentityHashMap<WalletData, Long>();
+
+    /**
+     * The wallets with a new or refreshed asset to validate. Guarded by
+     * nextCheckTimes.
+     */
+    private final Set<WalletData> assetValidationRequests = Collections.newSetFromMap(new IdentityHashMap<WalletData, Boolean>());
+
+    /**
+     * The wallets queued for validation or being validated.
+     */
+    private final Set<WalletData> queuedWallets = Collections.newSetFromMap(new IdentityHashMap<WalletData, Boolean>());
+
+    private final AtomicLong numberOfValidations = new AtomicLong(0);
+    private final AtomicLong numberOfFailedValidations = new AtomicLong(0);
+    private final AtomicLong numberOfBalanceRecalculations = new AtomicLong(0);
+    private final AtomicLong numberOfRequests = new AtomicLong(0);
+    private final AtomicLong totalValidationTime = new AtomicLong(0);
+    private final AtomicLong totalQueueTime = new AtomicLong(0);
+    private volatile long maximumValidationTime = 0;
+
+    public AssetValidationScheduler(BitcoinController bitcoinController) {
+        this.bitcoinController = bitcoinController;
+        checkExecutorService = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "AssetValidationScheduler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        validationExecutorService = new ThreadPoolExecutor(MAXIMUM_NUMBER_OF_VALIDATION_THREADS,
+                MAXIMUM_NUMBER_OF_VALIDATION_THREADS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "AssetValidation-" + threadNumber.getAndIncrement());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        validationExecutorService.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Start checking the wallets and listening for new assets.
+     */
+    public void start() {
+        CSEventBus.INSTANCE.registerAsyncSubscriber(this);
+        checkExecutorService.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    checkWallets();
+                } catch (RuntimeException e) {
+                    log.error(e.getClass().getCanonicalName() + " " + e.getMessage(), e);
+                }
+            }
+        }, CHECK_INTERVAL, CHECK_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    public void shutdown() {
+        checkExecutorService.shutdownNow();
+        validationExecutorService.shutdownNow();
+    }
+
+    /**
+     * Validate the assets of the wallet at the next check, e.g. because an
+     * asset has been inserted or refreshed.
+     */
+    public void requestValidation(WalletData perWalletModelData) {
+        if (perWalletModelData == null) {
+            return;
+        }
+        numberOfRequests.incrementAndGet();
+        synchronized (nextCheckTimes) {
+            assetValidationRequests.add(perWalletModelData);
+            nextCheckTimes.put(perWalletModelData, 0L);
+        }
+    }
+
+    /**
+     * Check the wallet at the next check, e.g. because its balances need
+     * recalculating after a reorganisation. The assets are only validated if
+     * they are due.
+     */
+    public void requestCheck(WalletData perWalletModelData) {
+        if (perWalletModelData == null) {
+            return;
+        }
+        numberOfRequests.incrementAndGet();
+        synchronized (nextCheckTimes) {
+            nextCheckTimes.put(perWalletModelData, 0L);
+        }
+    }
+
+    /**
+     * Validate the wallets holding the asset at the next check.
+     */
+    public void requestValidationOfAsset(int assetID) {
+        for (WalletData perWalletModelData : getOpenWallets()) {
+            Wallet wallet = perWalletModelData.getWallet();
+            if (wallet != null && wallet.CS.getAsset(assetID) != null) {
+                requestValidation(perWalletModelData);
+            }
+        }
+    }
+
+    @Subscribe
+    public void listen(CSEvent event) {
+        if (event.getType() == CSEventType.ASSET_INSERTED && event.getInfo() instanceof Integer) {
+            requestValidationOfAsset((Integer) event.getInfo());
+        }
+    }
+
+    /**
+     * Queue the wallets that are due.
+     */
+    void checkWallets() {
+        List<WalletData> openWallets = getOpenWallets();
+        long now = System.currentTimeMillis();
+        List<WalletData> dueWallets = new ArrayList<WalletData>();
+        synchronized (nextCheckTimes) {
+            // Forget the wallets that have been closed.
+            Iterator<WalletData> iterator = nextCheckTimes.keySet().iterator();
+            while (iterator.hasNext()) {
+                WalletData perWalletModelData = iterator.next();
+                if (!containsIdentical(openWallets, perWalletModelData)) {
+                    iterator.remove();
+                    assetValidationTimes.remove(perWalletModelData);
+                    assetValidationRequests.remove(perWalletModelData);
+                }
+            }
+            for (WalletData perWalletModelData : openWallets) {
+                Long nextCheckTime = nextCheckTimes.get(perWalletModelData);
+                // A balance read since the last check may have started updating.
+                boolean isRecalculationDue = nextCheckTime != null && nextCheckTime != Long.MAX_VALUE
+                        && perWalletModelData.getAssetBalanceLedger().isRecalculationDue(now);
+                if (perWalletModelData.getWallet() != null
+                        && (nextCheckTime == null || nextCheckTime <= now || isRecalculationDue)) {
+                    dueWallets.add(perWalletModelData);
+                }
+            }
+        }
+        for (WalletData perWalletModelData : dueWallets) {
+            queue(perWalletModelData);
+        }
+    }
+
+    private void queue(final WalletData perWalletModelData) {
+        synchronized (queuedWallets) {
+            if (!queuedWallets.add(perWalletModelData)) {
+                return;
+            }
+        }
+        final long queuedTime = System.currentTimeMillis();
+        try {
+            validationExecutorService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    totalQueueTime.addAndGet(System.currentTimeMillis() - queuedTime);
+                    try {
+                        validate(perWalletModelData);
+                    } finally {
+                        synchronized (queuedWallets) {
+                            queuedWallets.remove(perWalletModelData);
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            synchronized (queuedWallets) {
+                queuedWallets.remove(perWalletModelData);
+            }
+        }
+    }
+
+    private void validate(WalletData perWalletModelData) {
+        Wallet wallet = perWalletModelData.getWallet();
+        if (wallet == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        boolean validateAssets;
+        long assetValidationTime;
+        synchronized (nextCheckTimes) {
+            Long lastAssetValidationTime = assetValidationTimes.get(perWalletModelData);
+            assetValidationTime = lastAssetValidationTime == null ? 0 : lastAssetValidationTime;
+            validateAssets = assetValidationRequests.remove(perWalletModelData);
+            // Requests from here on leave the wallet due when the validation is done.
+            nextCheckTimes.put(perWalletModelData, Long.MAX_VALUE);
+        }
+        validateAssets = validateAssets || getNextCheckTime(wallet, assetValidationTime) <= now;
+        PeerGroup peerGroup = null;
+        if (bitcoinController.getMultiBitService() != null) {
+            peerGroup = bitcoinController.getMultiBitService().getPeerGroup();
+        }
+
+        long startTime = System.currentTimeMillis();
+        long nextCheckTime;
+        boolean isValidated = false;
+        try {
+            long nextAssetCheckTime;
+            if (validateAssets && peerGroup != null) {
+                AssetDocumentCache.beginAssetFetch(ASSET_FETCH_CONNECT_TIMEOUT, ASSET_FETCH_READ_TIMEOUT);
+                try {
+                    wallet.CS.validateAllAssets(peerGroup);
+                } finally {
+                    AssetDocumentCache.endAssetFetch();
+                }
+                isValidated = true;
+                assetValidationTime = System.currentTimeMillis();
+                nextAssetCheckTime = getNextCheckTime(wallet, assetValidationTime);
+            } else if (validateAssets) {
+                nextAssetCheckTime = System.currentTimeMillis() + RETRY_INTERVAL;
+            } else {
+                nextAssetCheckTime = getNextCheckTime(wallet, assetValidationTime);
+            }
+
+            // The balances are only recalculated when the ledger needs them to be.
+            AssetBalanceLedger assetBalanceLedger = perWalletModelData.getAssetBalanceLedger();
+            if (assetBalanceLedger.isRecalculationDue(System.currentTimeMillis())) {
+                wallet.CS.calculateBalances();
+                assetBalanceLedger.balancesRecalculated(wallet);
+                numberOfBalanceRecalculations.incrementAndGet();
+            }
+            nextCheckTime = Math.min(nextAssetCheckTime, assetBalanceLedger.getNextRecalculationTime());
+        } catch (RuntimeException e) {
+            log.error("Validating the assets of wallet '" + perWalletModelData.getWalletFilename() + "' failed. "
+                    + e.getClass().getCanonicalName() + " " + e.getMessage());
+            numberOfFailedValidations.incrementAndGet();
+            nextCheckTime = System.currentTimeMillis() + RETRY_INTERVAL;
+        }
+
+        long validationTime = System.currentTimeMillis() - startTime;
+        numberOfValidations.incrementAndGet();
+        totalValidationTime.addAndGet(validationTime);
+        if (validationTime > maximumValidationTime) {
+            maximumValidationTime = validationTime;
+        }
+
+        synchronized (nextCheckTimes) {
+            Long currentNextCheckTime = nextCheckTimes.get(perWalletModelData);
+            if (currentNextCheckTime != null && currentNextCheckTime == Long.MAX_VALUE) {
+                nextCheckTimes.put(perWalletModelData, nextCheckTime);
+            }
+            assetValidationTimes.put(perWalletModelData, assetValidationTime);
+            if (validateAssets && !isValidated) {
+                // Try again at the next check time.
+                assetValidationRequests.add(perWalletModelData);
+            }
+        }
+    }
+
+    /**
+     * @param assetValidationTime When the assets of the wallet were last
+     *            validated, or 0 if they have not been
+     * @return The earliest next check time of the assets in the wallet
+     */
+    static long getNextCheckTime(Wallet wallet, long assetValidationTime) {
+        long nextCheckTime = Long.MAX_VALUE;
+        int[] assetIDs = wallet.CS.getAssetIDs();
+        if (assetIDs != null) {
+            for (int assetID : assetIDs) {
+                CSAsset asset = wallet.CS.getAsset(assetID);
+                if (asset == null) {
+                    continue;
+                }
+                long validChecked = asset.getValidChecked() == null ? 0 : asset.getValidChecked().getTime();
+                if (asset.getAssetState() == CSAsset.CSAssetState.VALID && validChecked > 0) {
+                    nextCheckTime = Math.min(nextCheckTime, validChecked + REVALIDATION_INTERVAL);
+                } else {
+                    long lastCheckTime = Math.max(validChecked, assetValidationTime);
+                    if (lastCheckTime == 0) {
+                        // Never validated.
+                        return 0;
+                    }
+                    nextCheckTime = Math.min(nextCheckTime, lastCheckTime + getRetryInterval(asset.getValidFailures()));
+                }
+            }
+        }
+        return nextCheckTime;
+    }
+
+    static long getRetryInterval(int numberOfFailures) {
+        long retryInterval = RETRY_INTERVAL;
+        for (int i = 1; i < numberOfFailures && retryInterval < MAXIMUM_RETRY_INTERVAL; i++) {
+            retryInterval *= 2;
+        }
+        return Math.min(retryInterval, MAXIMUM_RETRY_INTERVAL);
+    }
+
+    private List<WalletData> getOpenWallets() {
+        List<WalletData> perWalletModelDataList = bitcoinController.getModel().getPerWalletModelDataList();
+        if (perWalletModelDataList != null) {
+            try {
+                return new ArrayList<WalletData>(perWalletModelDataList);
+            } catch (ConcurrentModificationException cme) {
+                // A wallet is being opened or closed - pick it up at the next check.
+            }
+        }
+        return new ArrayList<WalletData>();
+    }
+
+    private static boolean containsIdentical(List<WalletData> wallets, WalletData walletData) {
+        for (WalletData loopWalletData : wallets) {
+            if (loopWalletData == walletData) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The number of wallets waiting for a validation thread
+     */
+    public int getQueueSize() {
+        return validationExecutorService.getQueue().size();
+    }
+
+    /**
+     * @return The number of wallets being validated now
+     */
+    public int getActiveCount() {
+        return validationExecutorService.getActiveCount();
+    }
+
+    public long getNumberOfValidations() {
+        return numberOfValidations.get();
+    }
+
+    public long getNumberOfFailedValidations() {
+        return numberOfFailedValidations.get();
+    }
+
+    /**
+     * @return The number of times calculateBalances has been run
+     */
+    public long getNumberOfBalanceRecalculations() {
+        return numberOfBalanceRecalculations.get();
+    }
+
+    public long getNumberOfRequests() {
+        return numberOfRequests.get();
+    }
+
+    /**
+     * @return The average time to validate a wallet in ms
+     */
+    public long getAverageValidationTime() {
+        long validations = numberOfValidations.get();
+        return validations == 0 ? 0 : totalValidationTime.get() / validations;
+    }
+
+    /**
+     * @return The average time a wallet waits for a validation thread in ms
+     */
+    public long getAverageQueueTime() {
+        long validations = numberOfValidations.get();
+        return validations == 0 ? 0 : totalQueueTime.get() / validations;
+    }
+
+    public long getMaximumValidationTime() {
+        return maximumValidationTime;
+    }
+
+    @Override
+    public String toString() {
+        return "AssetValidationScheduler [queueSize=" + getQueueSize() + ", active=" + getActiveCount() + ", validations="
+                + numberOfValidations.get() + ", balanceRecalculations=" + numberOfBalanceRecalculations.get() + ", failed=" + numberOfFailedValidations.get() + ", requests="
+                + numberOfRequests.get() + ", averageValidationTime=" + getAverageValidationTime()
+                + " ms, maximumValidationTime=" + maximumValidationTime + " ms, averageQueueTime=" + getAverageQueueTime()
+                + " ms]";
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * SparkBit
+ *
+ * Copyright 2011-2014 multibit.org
+ * Copyright 2014 Coin Sciences Ltd
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.network;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.multibit.controller.bitcoin.BitcoinController;
+import org.multibit.model.bitcoin.WalletData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.PeerGroup;
+import com.google.bitcoin.core.Wallet;
+
+/**
+ * Recalculates the bloom filter sent to the peers.
+ *
+ * Requests for a recalculation (after keys are created or imported) are
+ * coalesced so that a burst of them gives one new filter and one resend to
+ * the peers, and only if the filter has changed.
+ *
+ * The filter is sized by bitcoinj from the combined key and script count of
+ * all the wallets at TARGET_FALSE_POSITIVE_RATE. Past about 18,000 elements
+ * the filter reaches its maximum size and the false positive rate climbs, so
+ * the filter size, the expected false positive rate and the number of
+ * irrelevant transactions the peers actually send are kept for reporting.
+ */
+public class BloomFilterManager {
+
+    private static final Logger log = LoggerFactory.getLogger(BloomFilterManager.class);
+
+    /**
+     * Requests within this time of each other give one recalculation.
+     */
+    public static final int RECALCULATION_DELAY = 500; // ms
+
+    /**
+     * The false positive rate aimed for.
+     */
+    public static final double TARGET_FALSE_POSITIVE_RATE = 0.0005;
+
+    /**
+     * Limits of a bloom filter in BIP 37.
+     */
+    public static final int MAXIMUM_FILTER_SIZE = 36000; // bytes
+    public static final int MAXIMUM_HASH_FUNCTIONS = 50;
+
+    private final BitcoinController bitcoinController;
+
+    private final ScheduledExecutorService executorService;
+
+    private final AtomicBoolean isRecalculationScheduled = new AtomicBoolean(false);
+
+    private final AtomicLong numberOfRecalculationRequests = new AtomicLong(0);
+    private final AtomicLong numberOfRecalculations = new AtomicLong(0);
+
+    private final AtomicLong numberOfTransactionsReceived = new AtomicLong(0);
+    private final AtomicLong numberOfIrrelevantTransactionsReceived = new AtomicLong(0);
+
+    private volatile int filterElementCount = 0;
+    private volatile int filterSize = 0;
+    private volatile double expectedFalsePositiveRate = 0;
+
+    /**
+     * The peer group last given TARGET_FALSE_POSITIVE_RATE - a replay can
+     * replace the peer group with a new one that has the bitcoinj default.
+     */
+    private PeerGroup targetRatePeerGroup = null;
+
+    private final Runnable recalculation = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                recalculate();
+            } catch (RuntimeException e) {
+                log.error(e.getClass().getCanonicalName() + " " + e.getMessage(), e);
+            }
+        }
+    };
+
+    public BloomFilterManager(BitcoinController bitcoinController) {
+        this.bitcoinController = bitcoinController;
+        executorService = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "BloomFilterManager");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Ask for the bloom filter to be recalculated and sent to the peers, shortly.
+     */
+    public void requestRecalculation() {
+        numberOfRecalculationRequests.incrementAndGet();
+        if (isRecalculationScheduled.compareAndSet(false, true)) {
+            try {
+                executorService.schedule(recalculation, RECALCULATION_DELAY, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException ree) {
+                isRecalculationScheduled.set(false);
+            }
+        }
+    }
+
+    /**
+     * Recalculate the bloom filter and send it to the peers if it has changed,
+     * on the calling thread, for when blocks are about to be downloaded that
+     * must be filtered with the keys added since the last recalculation.
+     */
+    public void recalculateNow() {
+        numberOfRecalculationRequests.incrementAndGet();
+        recalculate();
+    }
+
+    /**
+     * Record a transaction sent to us by a peer, relevant to a wallet or not.
+     * Irrelevant transactions are the false positives of the bloom filter.
+     */
+    public void transactionReceived(boolean isRelevant) {
+        numberOfTransactionsReceived.incrementAndGet();
+        if (!isRelevant) {
+            numberOfIrrelevantTransactionsReceived.incrementAndGet();
+        }
+    }
+
+    private synchronized void recalculate() {
+        // Requests from here on schedule another recalculation.
+        isRecalculationScheduled.set(false);
+
+        PeerGroup peerGroup = bitcoinController.getMultiBitService() == null ? null : bitcoinController.getMultiBitService()
+                .getPeerGroup();
+        if (peerGroup == null) {
+            return;
+        }
+
+        int elementCount = 0;
+        List<WalletData> perWalletModelDataList = bitcoinController.getModel().getPerWalletModelDataList();
+        if (perWalletModelDataList != null) {
+            for (WalletData perWalletModelData : perWalletModelDataList) {
+                Wallet wallet = perWalletModelData.getWallet();
+                if (wallet != null) {
+                    elementCount += wallet.getBloomFilterElementCount();
+                }
+            }
+        }
+
+        int size = getFilterSize(elementCount, TARGET_FALSE_POSITIVE_RATE);
+        filterElementCount = elementCount;
+        filterSize = size;
+        expectedFalsePositiveRate = getFalsePositiveRate(elementCount, size);
+
+        numberOfRecalculations.incrementAndGet();
+        if (peerGroup != targetRatePeerGroup) {
+            targetRatePeerGroup = peerGroup;
+            // This recalculates the filter and sends it if it has changed.
+            peerGroup.setBloomFilterFalsePositiveRate(TARGET_FALSE_POSITIVE_RATE);
+        } else {
+            peerGroup.recalculateFastCatchupAndFilter(PeerGroup.FilterRecalculateMode.SEND_IF_CHANGED);
+        }
+
+        if (expectedFalsePositiveRate > 10 * TARGET_FALSE_POSITIVE_RATE) {
+            // The filter is at its maximum size so the peers will send many irrelevant transactions.
+            log.warn("Bloom filter is full : " + toString());
+        } else {
+            log.debug(toString());
+        }
+    }
+
+    /**
+     * @return The size in bytes of the filter for elementCount elements at the
+     *         false positive rate, as BIP 37 sizes it
+     */
+    static int getFilterSize(int elementCount, double rate) {
+        double bits = -1 / (Math.pow(Math.log(2), 2)) * Math.max(1, elementCount) * Math.log(rate);
+        return (int) Math.min(bits / 8, MAXIMUM_FILTER_SIZE);
+    }
+
+    /**
+     * @return The false positive rate of a filter of size bytes holding
+     *         elementCount elements
+     */
+    static double getFalsePositiveRate(int elementCount, int size) {
+        if (elementCount <= 0 || size <= 0) {
+            return 0;
+        }
+        double bits = size * 8.0;
+        int hashFunctions = (int) Math.max(1, Math.min(bits / elementCount * Math.log(2), MAXIMUM_HASH_FUNCTIONS));
+        return Math.pow(1 - Math.exp(-hashFunctions * elementCount / bits), hashFunctions);
+    }
+
+    public int getFilterElementCount() {
+        return filterElementCount;
+    }
+
+    /**
+     * @return The filter size in bytes
+     */
+    public int getFilterSize() {
+        return filterSize;
+    }
+
+    public double getTargetFalsePositiveRate() {
+        return TARGET_FALSE_POSITIVE_RATE;
+    }
+
+    public double getExpectedFalsePositiveRate() {
+        return expectedFalsePositiveRate;
+    }
+
+    public long getNumberOfRecalculationRequests() {
+        return numberOfRecalculationRequests.get();
+    }
+
+    public long getNumberOfRecalculations() {
+        return numberOfRecalculations.get();
+    }
+
+    public long getNumberOfTransactionsReceived() {
+        return numberOfTransactionsReceived.get();
+    }
+
+    public long getNumberOfIrrelevantTransactionsReceived() {
+        return numberOfIrrelevantTransactionsReceived.get();
+    }
+
+    @Override
+    public String toString() {
+        return "BloomFilterManager [filterElementCount=" + filterElementCount + ", filterSize=" + filterSize
+                + ", targetFalsePositiveRate=" + TARGET_FALSE_POSITIVE_RATE + ", expectedFalsePositiveRate="
+                + expectedFalsePositiveRate + ", recalculations=" + numberOfRecalculations.get() + "/" + numberOfRecalculationRequests.get()
+                + " requests, irrelevantTransactions=" + numberOfIrrelevantTransactionsReceived.get() + "/"
+                + numberOfTransactionsReceived.get() + "]";
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * SparkBit
+ *
+ * Copyright 2011-2014 multibit.org
+ * Copyright 2014 Coin Sciences Ltd
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.network;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.coinspark.protocol.CoinSparkAssetRef;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.PeerGroup;
+import com.google.bitcoin.core.ProtocolException;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+
+/**
+ * The genesis transactions of the assets in the open wallets, keyed by the
+ * block height and transaction offset of the asset reference, shared by all
+ * the wallets and kept on disk so that the asset list does not need a block
+ * from the network after a restart.
+ *
+ * Only the transaction bytes and the hash and time of its block are kept, not
+ * the block. A missing transaction is fetched on a single background thread,
+ * one fetch per asset reference however many times it is asked for, and
+ * failed fetches are not retried for RETRY_INTERVAL. The least recently used
+ * entries are dropped beyond MAXIMUM_NUMBER_OF_ENTRIES.
+ *
+ * The file is : version, number of entries and then for each entry the block
+ * height, transaction offset, block hash, block time and transaction bytes.
+ */
+public class GenesisTransactionCache {
+
+    private static final Logger log = LoggerFactory.getLogger(GenesisTransactionCache.class);
+
+    private static final int FILE_VERSION = 1;
+
+    public static final int MAXIMUM_NUMBER_OF_ENTRIES = 1000;
+
+    /**
+     * Larger transactions are not cached - no genesis transaction is this big.
+     */
+    public static final int MAXIMUM_TRANSACTION_SIZE = 100000; // bytes
+
+    public static final long RETRY_INTERVAL = 60 * 1000; // ms
+
+    private static class Entry {
+        final Sha256Hash blockHash;
+        final long blockTime;
+        final byte[] transactionBytes;
+        Transaction transaction;
+
+        Entry(Sha256Hash blockHash, long blockTime, byte[] transactionBytes) {
+            this.blockHash = blockHash;
+            this.blockTime = blockTime;
+            this.transactionBytes = transactionBytes;
+        }
+    }
+
+    private final File file;
+    private final NetworkParameters networkParameters;
+
+    private final Map<Long, Entry> entries = new LinkedHashMap<Long, Entry>(16, 0.75f, true) {
+        private static final long serialVersionUID = 4810623577915024380L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+            return size() > MAXIMUM_NUMBER_OF_ENTRIES;
+        }
+    };
+
+    /**
+     * The callbacks waiting on each fetch in progress.
+     */
+    private final Map<Long, List<Runnable>> fetches = new HashMap<Long, List<Runnable>>();
+
+    private final Map<Long, Long> failureTimes = new HashMap<Long, Long>();
+
+    private final ExecutorService executorService = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "GenesisTransactionCache");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    public GenesisTransactionCache(File file, NetworkParameters networkParameters) {
+        this.file = file;
+        this.networkParameters = networkParameters;
+    }
+
+    /**
+     * @param onFetched Run on the fetching thread once the transaction has been
+     *            fetched, if it is not cached
+     * @return The genesis transaction of the asset reference, or null if it is
+     *         not cached yet, in which case it is fetched from a peer
+     */
+    public Transaction getGenesisTransaction(CoinSparkAssetRef assetRef, PeerGroup peerGroup, Runnable onFetched) {
+        final int blockHeight = (int) assetRef.getBlockNum();
+        final int offset = (int) assetRef.getTxOffset();
+        final Long key = getKey(blockHeight, offset);
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                if (entry.transaction == null) {
+                    try {
+                        entry.transaction = new Transaction(networkParameters, entry.transactionBytes);
+                    } catch (ProtocolException e) {
+                        log.error(e.getClass().getCanonicalName() + " " + e.getMessage());
+                        entries.remove(key);
+                        return null;
+                    }
+                }
+                return entry.transaction;
+            }
+
+            if (peerGroup == null) {
+                return null;
+            }
+            Long failureTime = failureTimes.get(key);
+            if (failureTime != null && System.currentTimeMillis() - failureTime < RETRY_INTERVAL) {
+                return null;
+            }
+            List<Runnable> callbacks = fetches.get(key);
+            if (callbacks != null) {
+                if (onFetched != null && !callbacks.contains(onFetched)) {
+                    callbacks.add(onFetched);
+                }
+                return null;
+            }
+            callbacks = new ArrayList<Runnable>();
+            if (onFetched != null) {
+                callbacks.add(onFetched);
+            }
+            fetches.put(key, callbacks);
+        }
+
+        final PeerGroup finalPeerGroup = peerGroup;
+        executorService.execute(new Runnable() {
+            @Override
+            public void run() {
+                fetch(key, blockHeight, offset, finalPeerGroup);
+            }
+        });
+        return null;
+    }
+
+    /**
+     * @return The time of the block the genesis transaction is in, in
+     *         milliseconds, or null if it is not cached
+     */
+    public synchronized Long getBlockTime(CoinSparkAssetRef assetRef) {
+        Entry entry = entries.get(getKey((int) assetRef.getBlockNum(), (int) assetRef.getTxOffset()));
+        return entry == null ? null : entry.blockTime;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private void fetch(Long key, int blockHeight, int offset, PeerGroup peerGroup) {
+        Transaction transaction = null;
+        Block block = null;
+        try {
+            block = peerGroup.getBlock(blockHeight);
+            if (block != null) {
+                transaction = block.getTransactionByOffset(offset);
+            }
+        } catch (RuntimeException e) {
+            log.error(e.getClass().getCanonicalName() + " " + e.getMessage());
+        }
+
+        List<Runnable> callbacks;
+        synchronized (this) {
+            callbacks = fetches.remove(key);
+            if (transaction == null) {
+                // Could be the block or header stores are being recreated, or a bogus asset reference.
+                failureTimes.put(key, System.currentTimeMillis());
+                log.debug("Could not get the transaction at offset " + offset + " in block " + blockHeight);
+                return;
+            }
+            failureTimes.remove(key);
+            byte[] transactionBytes = transaction.bitcoinSerialize();
+            if (transactionBytes.length <= MAXIMUM_TRANSACTION_SIZE) {
+                Entry entry = new Entry(block.getHash(), block.getTimeSeconds() * 1000, transactionBytes);
+                entry.transaction = transaction;
+                entries.put(key, entry);
+            }
+        }
+        save();
+
+        if (callbacks != null) {
+            for (Runnable callback : callbacks) {
+                callback.run();
+            }
+        }
+    }
+
+    public synchronized void load() {
+        if (file == null || !file.exists()) {
+            return;
+        }
+        DataInputStream inputStream = null;
+        try {
+            inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (inputStream.readInt() != FILE_VERSION) {
+                log.debug("Ignoring genesis transaction cache '" + file.getAbsolutePath() + "' of another version");
+                return;
+            }
+            int numberOfEntries = inputStream.readInt();
+            for (int i = 0; i < numberOfEntries; i++) {
+                int blockHeight = inputStream.readInt();
+                int offset = inputStream.readInt();
+                byte[] blockHash = new byte[32];
+                inputStream.readFully(blockHash);
+                long blockTime = inputStream.readLong();
+                int length = inputStream.readInt();
+                if (length < 0 || length > MAXIMUM_TRANSACTION_SIZE) {
+                    throw new IOException("Bad transaction length " + length);
+                }
+                byte[] transactionBytes = new byte[length];
+                inputStream.readFully(transactionBytes);
+                entries.put(getKey(blockHeight, offset), new Entry(new Sha256Hash(blockHash), blockTime, transactionBytes));
+            }
+        } catch (IOException e) {
+            log.error(e.getClass().getCanonicalName() + " " + e.getMessage());
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                    log.error(e.getClass().getCanonicalName() + " " + e.getMessage());
+                }
+            }
+        }
+        log.debug("Loaded " + entries.size() + " genesis transactions from '" + file.getAbsolutePath() + "'");
+    }
+
+    public synchronized void save() {
+        if (file == null) {
+            return;
+        }
+        File tempFile = new File(file.getAbsolutePath() + ".tmp");
+        DataOutputStream outputStream = null;
+        try {
+            outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            outputStream.writeInt(FILE_VERSION);
+            outputStream.writeInt(entries.size());
+            for (Map.Entry<Long, Entry> mapEntry : entries.entrySet()) {
+                Entry entry = mapEntry.getValue();
+                outputStream.writeInt((int) (mapEntry.getKey() >>> 32));
+                outputStream.writeInt((int) mapEntry.getKey().longValue());
+                outputStream.write(entry.blockHash.getBytes());
+                outputStream.writeLong(entry.blockTime);
+                outputStream.writeInt(entry.transactionBytes.length);
+                outputStream.write(entry.transactionBytes);
+            }
+            outputStream.close();
+            outputStream = null;
+            if (!tempFile.renameTo(file)) {
+                file.delete();
+                tempFile.renameTo(file);
+            }
+        } catch (IOException e) {
+            log.error(e.getClass().getCanonicalName() + " " + e.getMessage());
+        } finally {
+            if (outputStream != null) {
+                try {
+                    outputStream.close();
+                } catch (IOException e) {
+                    log.error(e.getClass().getCanonicalName() + " " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private static Long getKey(int blockHeight, int offset) {
+        return ((long) blockHeight << 32) | (offset & 0xffffffffL);
+    }
+}
@@ -20,47 +20,76 @@ package org.multibit.network;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.Map;
+import java.util.Arrays;
 
 import com.google.bitcoin.core.CheckpointManager;
 import com.google.bitcoin.core.NetworkParameters;
 import com.google.bitcoin.core.StoredBlock;
 import com.google.bitcoin.core.VerificationException;
 
+/**
+ * CheckpointManager with the checkpoints indexed by height (and time) so that
+ * lookups are a binary search. Load it once and share it - see
+ * MultiBitService.getCheckpointManager().
+ */
 public class MultiBitCheckpointManager extends CheckpointManager {
 
+    /**
+     * The checkpoint heights, ascending, with the checkpoint blocks and times
+     * in the same order.
+     */
+    private final int[] heights;
+    private final StoredBlock[] blocks;
+    private final long[] times;
+
     public MultiBitCheckpointManager(NetworkParameters params, InputStream inputStream) throws IOException {
         super(params, inputStream);
+
+        // The checkpoints are ordered by time, which is also height order.
+        int numberOfCheckpoints = checkpoints.size();
+        heights = new int[numberOfCheckpoints];
+        blocks = new StoredBlock[numberOfCheckpoints];
+        times = new long[numberOfCheckpoints];
+        int i = 0;
+        for (StoredBlock checkpoint : checkpoints.values()) {
+            if (i > 0 && checkpoint.getHeight() <= heights[i - 1]) {
+                throw new IOException("Checkpoints are not in height order at height " + checkpoint.getHeight());
+            }
+            heights[i] = checkpoint.getHeight();
+            blocks[i] = checkpoint;
+            times[i] = checkpoint.getHeader().getTimeSeconds();
+            i++;
+        }
     }
-    
+
     /**
      * Returns a {@link StoredBlock} representing the last checkpoint before the given block height, for example, normally
      * you would want to know the checkpoint before the last block the wallet had seen.
      */
     public StoredBlock getCheckpointBeforeOrAtHeight(int height) {
-        Map.Entry<Long, StoredBlock> highestCheckpointBeforeHeight = null;
-        
-        for (Map.Entry<Long, StoredBlock> loop : checkpoints.entrySet()) {
-            if (loop.getValue().getHeight() < height) {
-                // This checkpoint is before the specified height.
-                if (highestCheckpointBeforeHeight == null) {
-                    highestCheckpointBeforeHeight = loop;
-                } else {
-                    if (highestCheckpointBeforeHeight.getValue().getHeight() < loop.getValue().getHeight()) {
-                        // This entry is later.
-                        highestCheckpointBeforeHeight = loop;
-                    }
-                }
-            }
-        }
-        
-        if (highestCheckpointBeforeHeight == null) {
-            try {
-                return new StoredBlock(params.getGenesisBlock(), params.getGenesisBlock().getWork(), 0);
-            } catch (VerificationException e) {
-                e.printStackTrace();
-            }
+        int index = Arrays.binarySearch(heights, height);
+        // The last checkpoint strictly before the height.
+        int before = index >= 0 ? index - 1 : -index - 2;
+        return before >= 0 ? blocks[before] : getGenesisCheckpoint();
+    }
+
+    /**
+     * Returns a {@link StoredBlock} representing the last checkpoint at or before the given time (in seconds), or the
+     * genesis block if the time is before the first checkpoint.
+     */
+    @Override
+    public StoredBlock getCheckpointBefore(long time) {
+        int index = Arrays.binarySearch(times, time);
+        int atOrBefore = index >= 0 ? index : -index - 2;
+        return atOrBefore >= 0 ? blocks[atOrBefore] : getGenesisCheckpoint();
+    }
+
+    private StoredBlock getGenesisCheckpoint() {
+        try {
+            return new StoredBlock(params.getGenesisBlock(), params.getGenesisBlock().getWork(), 0);
+        } catch (VerificationException e) {
+            e.printStackTrace();
+            return null;
         }
-        return highestCheckpointBeforeHeight.getValue();
     }
-}
\ No newline at end of file
+}
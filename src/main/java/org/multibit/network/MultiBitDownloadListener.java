@@ -175,7 +175,12 @@ public class MultiBitDownloadListener extends DownloadListener {
      */
     @Override
     protected void doneDownload() {
-        ReplayManager.INSTANCE.taskHasCompleted(null);
+        // The replay is over whether or not there is a wallet panel to say so,
+        // as there is not when running headless.
+        ReplayTask currentReplayTask = ReplayManager.INSTANCE.getCurrentReplayTask();
+        if (currentReplayTask != null) {
+            ReplayManager.INSTANCE.taskHasCompleted(currentReplayTask.getUuid());
+        }
 
         String downloadStatusText = controller.getLocaliser().getString("multiBitDownloadListener.doneDownloadText");
      
@@ -21,23 +21,30 @@ package org.multibit.network;
 import org.multibit.controller.Controller;
 import org.multibit.controller.bitcoin.BitcoinController;
 
+import java.util.List;
+
 import com.google.bitcoin.core.BlockChain;
 import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Peer;
 import com.google.bitcoin.core.PeerGroup;
 
 
 public class MultiBitPeerGroup extends PeerGroup {
     private final Controller controller;
     private final BitcoinController bitcoinController;
-    MultiBitDownloadListener multiBitDownloadListener = null;
+    private final BlockChain blockChain;
+    private final PeerScorer peerScorer;
+    volatile MultiBitDownloadListener multiBitDownloadListener = null;
 
     public static final int MAXIMUM_NUMBER_OF_PEERS = 6;
 
         
-    public MultiBitPeerGroup(BitcoinController bitcoinController, NetworkParameters params, BlockChain chain) {
+    public MultiBitPeerGroup(BitcoinController bitcoinController, NetworkParameters params, BlockChain chain, PeerScorer peerScorer) {
         super(params, chain);
         this.bitcoinController = bitcoinController;
         this.controller = this.bitcoinController;
+        this.blockChain = chain;
+        this.peerScorer = peerScorer;
         multiBitDownloadListener = new MultiBitDownloadListener(this.bitcoinController);
 
         setMaxConnections(MAXIMUM_NUMBER_OF_PEERS);
@@ -54,6 +61,52 @@ public class MultiBitPeerGroup extends PeerGroup {
         startBlockChainDownload(multiBitDownloadListener);
     }
 
+    /**
+     * Download from the best scoring peer, falling back to the bitcoinj choice
+     * (by chain height and ping time) when no peer is suitable.
+     */
+    @Override
+    protected Peer selectDownloadPeer(List<Peer> peers) {
+        if (peerScorer != null && blockChain != null) {
+            Peer peer = peerScorer.selectDownloadPeer(peers, blockChain.getBestChainHeight());
+            if (peer != null) {
+                return peer;
+            }
+        }
+        return super.selectDownloadPeer(peers);
+    }
+
+    /**
+     * Move the block chain download off a download peer that has stalled, to
+     * the peer selectDownloadPeer picks - it skips peers that stalled recently.
+     *
+     * downloadBlockChain() would start again on the first connected peer, which
+     * may be the stalled one, and PeerGroup keeps setting the download peer to
+     * itself. It does so with selectDownloadPeer when the download peer
+     * disconnects, handing the new one the download listener, so the stalled
+     * peer is disconnected once there is a better peer to move to.
+     *
+     * @return The new download peer, or null if there is no other peer to move to
+     */
+    public Peer switchDownloadPeer(Peer stalledPeer) {
+        Peer peer = selectDownloadPeer(getConnectedPeers());
+        if (peer == null || peer == stalledPeer) {
+            return null;
+        }
+        stalledPeer.close();
+        return peer;
+    }
+
+    /**
+     * Replace the download listener with a new one, ready for a replay over the
+     * existing connections - a DownloadListener only reports the end of one download.
+     * Add any single wallet listeners to the new listener before calling downloadBlockChain().
+     */
+    public MultiBitDownloadListener resetMultiBitDownloadListener() {
+        multiBitDownloadListener = new MultiBitDownloadListener(this.bitcoinController);
+        return multiBitDownloadListener;
+    }
+
     public MultiBitDownloadListener getMultiBitDownloadListener() {
         return multiBitDownloadListener;
     }
@@ -26,7 +26,6 @@ import com.google.bitcoin.net.discovery.IrcDiscovery;
 import com.google.bitcoin.store.BlockStore;
 import com.google.bitcoin.store.BlockStoreException;
 import com.google.bitcoin.store.SPVBlockStore;
-import com.google.common.util.concurrent.ListenableFuture;
 import org.bitcoinj.wallet.Protos.Wallet.EncryptionType;
 import org.sparkbit.ApplicationDataDirectoryLocator;
 import org.sparkbit.SparkBit;
@@ -52,14 +51,14 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ResponseCache;
 import java.net.UnknownHostException;
 import java.security.SecureRandom;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import org.multibit.model.bitcoin.WalletAddressBookData;
 
@@ -87,11 +86,24 @@ public class MultiBitService {
   public static final String BLOCKCHAIN_SUFFIX = ".blockchain";
   public static final String SPV_BLOCKCHAIN_SUFFIX = ".spvchain";
   public static final String CHECKPOINTS_SUFFIX = ".checkpoints";
+  public static final String PEERS_SUFFIX = ".peers";
+  public static final String GENESIS_TRANSACTIONS_SUFFIX = ".genesis";
+  public static final String ASSET_DOCUMENTS_SUFFIX = ".documents";
+
+  /**
+   * The number of peers from the peer database added as connection candidates on start.
+   */
+  public static final int NUMBER_OF_KNOWN_PEERS_TO_TRY = 20;
   public static final String WALLET_SUFFIX = ".sparkwallet";
 
   public static final String IRC_CHANNEL_TEST = "#bitcoinTEST";
   public static final String IRC_CHANNEL_TESTNET3 = "#bitcoinTEST3";
 
+  /**
+   * How long a send waits for the first peer to answer a ping.
+   */
+  public static final int PING_TIMEOUT = 4; // seconds
+
   public Logger logger = LoggerFactory.getLogger(MultiBitService.class.getName());
 
   private MultiBitPeerGroup peerGroup;
@@ -109,6 +121,20 @@ public class MultiBitService {
 
   private SecureRandom secureRandom = new SecureRandom();
 
+  private final PeerLatencyTracker peerLatencyTracker = new PeerLatencyTracker();
+
+  private final PeerScorer peerScorer = new PeerScorer(peerLatencyTracker);
+
+  private PeerDatabase peerDatabase;
+
+  private GenesisTransactionCache genesisTransactionCache;
+
+  private AssetDocumentCache assetDocumentCache;
+
+  private final BloomFilterManager bloomFilterManager;
+
+  private final AssetValidationScheduler assetValidationScheduler;
+
   private MultiBitCheckpointManager checkpointManager;
   private String checkpointsFilename;
 
@@ -133,6 +159,8 @@ public class MultiBitService {
   public MultiBitService(BitcoinController bitcoinController) {
     this.bitcoinController = bitcoinController;
     this.controller = this.bitcoinController;
+    this.bloomFilterManager = new BloomFilterManager(bitcoinController);
+    this.assetValidationScheduler = new AssetValidationScheduler(bitcoinController);
 
     if (controller == null) {
       throw new IllegalStateException("controller cannot be null");
@@ -163,6 +191,38 @@ public class MultiBitService {
       blockChain = new MultiBitBlockChain(networkParameters, blockStore);
       log.debug("Created blockchain '" + blockChain + "' with height " + blockChain.getBestChainHeight());
 
+      // Load the peers from the last run so they can be connected to before discovery.
+      if ("".equals(controller.getApplicationDataDirectoryLocator().getApplicationDataDirectory())) {
+        peerDatabase = new PeerDatabase(new File(getFilePrefix() + PEERS_SUFFIX));
+      } else {
+        peerDatabase = new PeerDatabase(new File(controller.getApplicationDataDirectoryLocator().getApplicationDataDirectory()
+                + File.separator + getFilePrefix() + PEERS_SUFFIX));
+      }
+      peerDatabase.load();
+      peerScorer.setPeerDatabase(peerDatabase);
+
+      // The asset genesis transactions from the last run, so the asset list does not need blocks from the network.
+      if ("".equals(controller.getApplicationDataDirectoryLocator().getApplicationDataDirectory())) {
+        genesisTransactionCache = new GenesisTransactionCache(new File(getFilePrefix() + GENESIS_TRANSACTIONS_SUFFIX),
+                networkParameters);
+      } else {
+        genesisTransactionCache = new GenesisTransactionCache(new File(controller.getApplicationDataDirectoryLocator()
+                .getApplicationDataDirectory() + File.separator + getFilePrefix() + GENESIS_TRANSACTIONS_SUFFIX),
+                networkParameters);
+      }
+      genesisTransactionCache.load();
+
+      // Asset validation in the CoinSpark library fetches with HttpURLConnection, which asks the default ResponseCache.
+      if (ResponseCache.getDefault() == null) {
+        if ("".equals(controller.getApplicationDataDirectoryLocator().getApplicationDataDirectory())) {
+          assetDocumentCache = new AssetDocumentCache(new File(getFilePrefix() + ASSET_DOCUMENTS_SUFFIX));
+        } else {
+          assetDocumentCache = new AssetDocumentCache(new File(controller.getApplicationDataDirectoryLocator()
+                  .getApplicationDataDirectory() + File.separator + getFilePrefix() + ASSET_DOCUMENTS_SUFFIX));
+        }
+        ResponseCache.setDefault(assetDocumentCache);
+      }
+
 /* CoinSpark START */
       
       log.debug("Loading/ creating headerstore ...");
@@ -317,7 +377,7 @@ public class MultiBitService {
   }
 
   public void createNewPeerGroup() {
-    peerGroup = new MultiBitPeerGroup(bitcoinController, networkParameters, blockChain);
+    peerGroup = new MultiBitPeerGroup(bitcoinController, networkParameters, blockChain, peerScorer);
     peerGroup.setFastCatchupTimeSecs(0); // genesis block
     peerGroup.setUserAgent("MultiBit", controller.getLocaliser().getVersionNumber());
 
@@ -352,6 +412,14 @@ public class MultiBitService {
     }
 
     if (!peersSpecified) {
+      // Try the best peers from the last run first - the PeerGroup only uses discovery
+      // when it runs out of addresses to try.
+      if (peerDatabase != null) {
+        for (InetSocketAddress address : peerDatabase.getBestAddresses(NUMBER_OF_KNOWN_PEERS_TO_TRY)) {
+          peerGroup.addAddress(new PeerAddress(address.getAddress(), address.getPort()));
+        }
+      }
+
       // Use DNS for production, IRC for test.
       if (TESTNET3_GENESIS_HASH.equals(bitcoinController.getModel().getNetworkParameters().getGenesisBlock().getHashAsString())) {
 	//peerGroup.addPeerDiscovery(new IrcDiscovery(IRC_CHANNEL_TESTNET3));
@@ -366,6 +434,10 @@ public class MultiBitService {
     // Add the controller as a PeerEventListener.
     peerGroup.addEventListener(bitcoinController.getPeerEventListener());
 
+    // Score the peers of the new PeerGroup.
+    peerScorer.setPeerGroup(peerGroup);
+    peerGroup.addEventListener(peerScorer);
+
     // Add all existing wallets to the PeerGroup.
     if (controller != null && controller.getModel() != null) {
       List<WalletData> perWalletDataModels = bitcoinController.getModel().getPerWalletModelDataList();
@@ -381,12 +453,17 @@ public class MultiBitService {
         }
       }
     }
+
+    // Give the new PeerGroup the target false positive rate before it connects.
+    bloomFilterManager.recalculateNow();
   }
 
+  /**
+   * Recalculate the bloom filter and send it to the peers. Calls in quick succession
+   * (for example as keys are created or imported) give one recalculation.
+   */
   public void recalculateFastCatchupAndFilter() {
-    if (peerGroup != null) {
-      peerGroup.recalculateFastCatchupAndFilter(PeerGroup.FilterRecalculateMode.FORCE_SEND);
-    }
+    bloomFilterManager.requestRecalculation();
   }
 
   public static String getFilePrefix() {
@@ -564,18 +641,7 @@ public class MultiBitService {
       }
     }
 
-    // The CheckpointManager removes a week to cater for block header drift.
-    // Any date before genesis + 1 week gets adjusted accordingly.
-    Date genesisPlusOnwWeekAndASecond = new Date(MultiBitService.genesisBlockCreationDate.getTime() + (86400 * 7 + 1) * 1000);
-
-    if (dateToReplayFrom != null) {
-      if (dateToReplayFrom.getTime() < genesisPlusOnwWeekAndASecond.getTime()) {
-        dateToReplayFrom = genesisPlusOnwWeekAndASecond;
-      }
-      blockStore = createBlockStore(dateToReplayFrom, true);
-    } else {
-      blockStore = createBlockStore(genesisPlusOnwWeekAndASecond, true);
-    }
+    blockStore = createBlockStore(adjustDateToReplayFrom(dateToReplayFrom), true);
     log.debug("Blockstore is '" + blockStore + "'");
 
     log.debug("Creating blockchain ...");
@@ -594,6 +660,46 @@ public class MultiBitService {
     return blockChain.getBestChainHeight();
   }
 
+  /**
+   * Rewind the block chain to the checkpoint before the replay date, keeping the
+   * block store and the PeerGroup connections open.
+   *
+   * @param dateToReplayFrom The date to start the replay task from
+   * @return height of block chain after the rewind, or -1 if the block chain cannot be
+   *         rewound in place and should be recreated with createNewBlockStoreForReplay
+   * @throws BlockStoreException
+   */
+  public int rewindBlockChainForReplay(Date dateToReplayFrom) throws BlockStoreException {
+    if (blockChain == null || blockStore == null || checkpointManager == null || peerGroup == null
+            || !peerGroup.isRunning()) {
+      return -1;
+    }
+
+    // As CheckpointManager.checkpoint, go back a week to cater for block header drift.
+    long checkpointTime = adjustDateToReplayFrom(dateToReplayFrom).getTime() / 1000 - 86400 * 7;
+    StoredBlock checkpoint = checkpointManager.getCheckpointBefore(checkpointTime);
+    if (checkpoint == null) {
+      return -1;
+    }
+
+    log.debug("Rewinding blockchain to checkpoint at height " + checkpoint.getHeight());
+    blockChain.rewindChainHead(checkpoint);
+    return blockChain.getBestChainHeight();
+  }
+
+  /**
+   * The CheckpointManager removes a week to cater for block header drift.
+   * Any date before genesis + 1 week (or no date) gets adjusted accordingly.
+   */
+  private Date adjustDateToReplayFrom(Date dateToReplayFrom) {
+    Date genesisPlusOnwWeekAndASecond = new Date(MultiBitService.genesisBlockCreationDate.getTime() + (86400 * 7 + 1) * 1000);
+
+    if (dateToReplayFrom == null || dateToReplayFrom.getTime() < genesisPlusOnwWeekAndASecond.getTime()) {
+      return genesisPlusOnwWeekAndASecond;
+    }
+    return dateToReplayFrom;
+  }
+
   /**
    * Send bitcoins from the active wallet.
    *
@@ -610,27 +716,11 @@ public class MultiBitService {
     // Ping the peers to check the bitcoin network connection
     List<Peer> connectedPeers = peerGroup.getConnectedPeers();
     boolean atLeastOnePingWorked = false;
-    if (connectedPeers != null) {
-      for (Peer peer : connectedPeers) {
-
-        log.debug("Ping: {}", peer.getAddress().toString());
-
-        try {
-
-          ListenableFuture<Long> result = peer.ping();
-          result.get(4, TimeUnit.SECONDS);
-          atLeastOnePingWorked = true;
-          break;
-        } catch (ProtocolException e) {
-          log.warn("Peer '" + peer.getAddress().toString() + "' failed ping test. Message was " + e.getMessage());
-        } catch (InterruptedException e) {
-          log.warn("Peer '" + peer.getAddress().toString() + "' failed ping test. Message was " + e.getMessage());
-        } catch (ExecutionException e) {
-          log.warn("Peer '" + peer.getAddress().toString() + "' failed ping test. Message was " + e.getMessage());
-        } catch (TimeoutException e) {
-          log.warn("Peer '" + peer.getAddress().toString() + "' failed ping test. Message was " + e.getMessage());
-        }
-      }
+    try {
+      atLeastOnePingWorked = peerLatencyTracker.pingPeers(connectedPeers, PING_TIMEOUT, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      log.warn("Ping test was interrupted. Message was " + e.getMessage());
     }
 
     if (!atLeastOnePingWorked) {
@@ -661,6 +751,17 @@ public class MultiBitService {
       // count of seen peers, the memory pool will update the transaction confidence object, that will invoke the
       // txConfidenceListener which will in turn invoke the wallets event listener onTransactionConfidenceChanged
       // method.
+      // Hand the tx to the quickest live peer first so that it starts propagating as soon as possible.
+      Peer fastestPeer = peerLatencyTracker.getFastestPeer(peerGroup.getConnectedPeers());
+      if (fastestPeer != null) {
+        try {
+          log.debug("Sending transaction to fastest peer '" + fastestPeer.getAddress().toString() + "', average ping = "
+                  + peerLatencyTracker.getAverageRoundTripTime(fastestPeer) + " ms");
+          fastestPeer.sendMessage(sendRequest.tx);
+        } catch (RuntimeException e) {
+          log.warn("Could not send transaction to peer '" + fastestPeer.getAddress().toString() + "'. Message was " + e.getMessage());
+        }
+      }
       peerGroup.broadcastTransaction(sendRequest.tx);
 
       log.debug("Sending transaction '" + Utils.bytesToHexString(sendRequest.tx.bitcoinSerialize()) + "'");
@@ -686,6 +787,9 @@ public class MultiBitService {
         log.debug("Cannot add bitcoinController as listener to tx = " + sendTransaction.getHashAsString() + " no transactionConfidence");
       }
 
+      // The sent transaction is journalled on the save.
+      perWalletModelData.markTransactionChanged(sendTransaction.getHash());
+
       try {
         bitcoinController.getFileHandler().savePerWalletModelData(perWalletModelData, false);
       } catch (WalletSaveException wse) {
@@ -708,10 +812,10 @@ public class MultiBitService {
                 // The loopPerWalletModelData is marked as dirty.
                 if (loopPerWalletModelData.getWalletInfo() != null) {
                   synchronized (loopPerWalletModelData.getWalletInfo()) {
-                    loopPerWalletModelData.setDirty(true);
+                    loopPerWalletModelData.markTransactionChanged(sendTransaction.getHash());
                   }
                 } else {
-                  loopPerWalletModelData.setDirty(true);
+                  loopPerWalletModelData.markTransactionChanged(sendTransaction.getHash());
                 }
                 if (loopWallet.getTransaction(sendTransaction.getHash()) == null) {
                   log.debug("MultiBit adding a new pending transaction for the wallet '"
@@ -753,6 +857,37 @@ public class MultiBitService {
     return checkpointsFilename;
   }
 
+  public BloomFilterManager getBloomFilterManager() {
+    return bloomFilterManager;
+  }
+
+  public AssetValidationScheduler getAssetValidationScheduler() {
+    return assetValidationScheduler;
+  }
+
+  public PeerDatabase getPeerDatabase() {
+    return peerDatabase;
+  }
+
+  public GenesisTransactionCache getGenesisTransactionCache() {
+    return genesisTransactionCache;
+  }
+
+  /**
+   * @return The cache of asset documents, or null if another ResponseCache was installed
+   */
+  public AssetDocumentCache getAssetDocumentCache() {
+    return assetDocumentCache;
+  }
+
+  public PeerScorer getPeerScorer() {
+    return peerScorer;
+  }
+
+  public PeerLatencyTracker getPeerLatencyTracker() {
+    return peerLatencyTracker;
+  }
+
   public MultiBitCheckpointManager getCheckpointManager() {
     return checkpointManager;
   }
@@ -0,0 +1,236 @@
+/*
+ * SparkBit
+ *
+ * Copyright 2011-2014 multibit.org
+ * Copyright 2014 Coin Sciences Ltd
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.network;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The peers SparkBit has connected to, with the time of the last successful
+ * connection and the last score, kept on disk so that the next start can
+ * connect to known good peers before (or instead of) DNS discovery.
+ *
+ * The file has one peer per line : host port lastSuccessTime score
+ */
+public class PeerDatabase {
+
+    private static final Logger log = LoggerFactory.getLogger(PeerDatabase.class);
+
+    public static final int MAXIMUM_NUMBER_OF_PEERS = 200;
+
+    /**
+     * Peers not connected to for this long are forgotten.
+     */
+    public static final long MAXIMUM_AGE = 14L * 24 * 60 * 60 * 1000; // ms
+
+    private static class Entry {
+        final InetSocketAddress address;
+        long lastSuccessTime;
+        double score;
+
+        Entry(InetSocketAddress address, long lastSuccessTime, double score) {
+            this.address = address;
+            this.lastSuccessTime = lastSuccessTime;
+            this.score = score;
+        }
+    }
+
+    private final File file;
+
+    private final Map<InetSocketAddress, Entry> entries = new LinkedHashMap<InetSocketAddress, Entry>();
+
+    private boolean isDirty = false;
+
+    public PeerDatabase(File file) {
+        this.file = file;
+    }
+
+    public synchronized void recordSuccess(InetSocketAddress address) {
+        getEntry(address).lastSuccessTime = System.currentTimeMillis();
+        isDirty = true;
+    }
+
+    public synchronized void recordScore(InetSocketAddress address, double score) {
+        getEntry(address).score = score;
+        isDirty = true;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return The addresses of the best peers, best score first and then the
+     *         most recently connected
+     */
+    public synchronized List<InetSocketAddress> getBestAddresses(int maximumNumberOfAddresses) {
+        removeOldEntries();
+        List<Entry> sortedEntries = new ArrayList<Entry>(entries.values());
+        Collections.sort(sortedEntries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry entry1, Entry entry2) {
+                int result = Double.compare(entry2.score, entry1.score);
+                if (result == 0) {
+                    result = Long.compare(entry2.lastSuccessTime, entry1.lastSuccessTime);
+                }
+                return result;
+            }
+        });
+
+        List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+        for (int i = 0; i < sortedEntries.size() && i < maximumNumberOfAddresses; i++) {
+            addresses.add(sortedEntries.get(i).address);
+        }
+        return addresses;
+    }
+
+    public synchronized void load() {
+        if (file == null || !file.exists()) {
+            return;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.trim().split(" ");
+                if (fields.length < 4) {
+                    continue;
+                }
+                try {
+                    InetSocketAddress address = new InetSocketAddress(InetAddress.getByName(fields[0]),
+                            Integer.parseInt(fields[1]));
+                    entries.put(address, new Entry(address, Long.parseLong(fields[2]), Double.parseDouble(fields[3])));
+                } catch (IOException e) {
+                    log.debug("Ignoring peer '" + line + "'. " + e.getMessage());
+                } catch (NumberFormatException e) {
+                    log.debug("Ignoring peer '" + line + "'. " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            log.error(e.getClass().getCanonicalName() + " " + e.getMessage());
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    log.error(e.getClass().getCanonicalName() + " " + e.getMessage());
+                }
+            }
+        }
+        removeOldEntries();
+        log.debug("Loaded " + entries.size() + " peers from '" + file.getAbsolutePath() + "'");
+    }
+
+    /**
+     * Save the peers if they have changed since the last save.
+     */
+    public synchronized void save() {
+        if (file == null || !isDirty) {
+            return;
+        }
+        removeOldEntries();
+
+        File tempFile = new File(file.getAbsolutePath() + ".tmp");
+        BufferedWriter writer = null;
+        try {
+            writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8"));
+            for (Entry entry : entries.values()) {
+                writer.write(entry.address.getAddress().getHostAddress() + " " + entry.address.getPort() + " "
+                        + entry.lastSuccessTime + " " + Math.round(entry.score));
+                writer.newLine();
+            }
+            writer.close();
+            writer = null;
+            if (!tempFile.renameTo(file)) {
+                file.delete();
+                tempFile.renameTo(file);
+            }
+            isDirty = false;
+        } catch (IOException e) {
+            log.error(e.getClass().getCanonicalName() + " " + e.getMessage());
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    log.error(e.getClass().getCanonicalName() + " " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private Entry getEntry(InetSocketAddress address) {
+        Entry entry = entries.get(address);
+        if (entry == null) {
+            entry = new Entry(address, 0, 0);
+            entries.put(address, entry);
+            if (entries.size() > MAXIMUM_NUMBER_OF_PEERS) {
+                removeWorstEntryOtherThan(entry);
+            }
+        }
+        return entry;
+    }
+
+    private void removeOldEntries() {
+        long now = System.currentTimeMillis();
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.lastSuccessTime > 0 && now - entry.lastSuccessTime > MAXIMUM_AGE) {
+                iterator.remove();
+                isDirty = true;
+            }
+        }
+    }
+
+    private void removeWorstEntryOtherThan(Entry entryToKeep) {
+        Entry worstEntry = null;
+        for (Entry entry : entries.values()) {
+            if (entry == entryToKeep) {
+                continue;
+            }
+            if (worstEntry == null || entry.score < worstEntry.score
+                    || (entry.score == worstEntry.score && entry.lastSuccessTime < worstEntry.lastSuccessTime)) {
+                worstEntry = entry;
+            }
+        }
+        if (worstEntry != null) {
+            entries.remove(worstEntry.address);
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * SparkBit
+ *
+ * Copyright 2011-2014 multibit.org
+ * Copyright 2014 Coin Sciences Ltd
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.network;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.Peer;
+import com.google.bitcoin.core.ProtocolException;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Keeps a rolling history of ping round trip times and failures for each peer
+ * address, so that a send can ping all the peers at once, skip the peers that
+ * are known to be dead and hand the transaction to the quickest peer.
+ *
+ * The history is kept by address so it survives the peer reconnecting.
+ */
+public class PeerLatencyTracker {
+
+    private static final Logger log = LoggerFactory.getLogger(PeerLatencyTracker.class);
+
+    public static final int MAXIMUM_NUMBER_OF_PEERS_TRACKED = 200;
+
+    /**
+     * The number of failures in a row after which a peer is treated as dead.
+     */
+    public static final int CONSECUTIVE_FAILURES_BEFORE_DEAD = 2;
+
+    /**
+     * How long a dead peer is skipped for before it is pinged again.
+     */
+    public static final long DEAD_PEER_RETRY_INTERVAL = 5 * 60 * 1000; // ms
+
+    /**
+     * Weight of the latest round trip time in the rolling average.
+     */
+    private static final double ROUND_TRIP_TIME_WEIGHT = 0.3;
+
+    private static class PeerHistory {
+        double averageRoundTripTime = -1;
+        int consecutiveFailures = 0;
+        long lastFailureTime = 0;
+    }
+
+    private final Map<InetSocketAddress, PeerHistory> histories = new LinkedHashMap<InetSocketAddress, PeerHistory>(16,
+            0.75f, true) {
+        private static final long serialVersionUID = 5028311486740133922L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<InetSocketAddress, PeerHistory> eldest) {
+            return size() > MAXIMUM_NUMBER_OF_PEERS_TRACKED;
+        }
+    };
+
+    /**
+     * Ping the peers all at once and wait for the first to answer.
+     *
+     * Peers known to be dead are not pinged, unless all of them are.
+     *
+     * @return true if at least one peer answered within the timeout
+     */
+    public boolean pingPeers(List<Peer> peers, long timeout, TimeUnit unit) throws InterruptedException {
+        if (peers == null || peers.isEmpty()) {
+            return false;
+        }
+
+        List<Peer> peersToPing = new ArrayList<Peer>();
+        for (Peer peer : peers) {
+            if (isKnownDead(peer)) {
+                log.debug("Not pinging dead peer: {}", peer.getAddress().toString());
+            } else {
+                peersToPing.add(peer);
+            }
+        }
+        if (peersToPing.isEmpty()) {
+            peersToPing.addAll(peers);
+        }
+
+        final CountDownLatch firstAnswer = new CountDownLatch(1);
+        final AtomicBoolean pingWorked = new AtomicBoolean(false);
+        final AtomicInteger unansweredCount = new AtomicInteger(peersToPing.size());
+        final Set<Peer> unansweredPeers = Collections.newSetFromMap(new ConcurrentHashMap<Peer, Boolean>());
+        unansweredPeers.addAll(peersToPing);
+
+        for (final Peer peer : peersToPing) {
+            log.debug("Ping: {}", peer.getAddress().toString());
+            try {
+                ListenableFuture<Long> result = peer.ping();
+                Futures.addCallback(result, new FutureCallback<Long>() {
+                    @Override
+                    public void onSuccess(Long roundTripTime) {
+                        unansweredPeers.remove(peer);
+                        recordSuccess(peer, roundTripTime == null ? 0 : roundTripTime);
+                        pingWorked.set(true);
+                        firstAnswer.countDown();
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        log.warn("Peer '" + peer.getAddress().toString() + "' failed ping test. Message was " + t.getMessage());
+                        unansweredPeers.remove(peer);
+                        recordFailure(peer);
+                        if (unansweredCount.decrementAndGet() == 0) {
+                            firstAnswer.countDown();
+                        }
+                    }
+                });
+            } catch (ProtocolException e) {
+                log.warn("Peer '" + peer.getAddress().toString() + "' failed ping test. Message was " + e.getMessage());
+                unansweredPeers.remove(peer);
+                recordFailure(peer);
+                if (unansweredCount.decrementAndGet() == 0) {
+                    firstAnswer.countDown();
+                }
+            }
+        }
+
+        if (!firstAnswer.await(timeout, unit) || !pingWorked.get()) {
+            // No peer answered in time - the ones still outstanding count as failed.
+            for (Peer peer : unansweredPeers) {
+                log.warn("Peer '" + peer.getAddress().toString() + "' failed ping test. No answer in " + timeout + " "
+                        + unit.toString().toLowerCase());
+                recordFailure(peer);
+            }
+        }
+        return pingWorked.get();
+    }
+
+    public synchronized void recordSuccess(Peer peer, long roundTripTime) {
+        recordRoundTripTime(peer, roundTripTime);
+        getHistory(peer).consecutiveFailures = 0;
+    }
+
+    /**
+     * Add a round trip time measured elsewhere to the rolling average, leaving
+     * the failure count alone.
+     */
+    public synchronized void recordRoundTripTime(Peer peer, long roundTripTime) {
+        PeerHistory history = getHistory(peer);
+        if (history.averageRoundTripTime < 0) {
+            history.averageRoundTripTime = roundTripTime;
+        } else {
+            history.averageRoundTripTime = ROUND_TRIP_TIME_WEIGHT * roundTripTime + (1 - ROUND_TRIP_TIME_WEIGHT)
+                    * history.averageRoundTripTime;
+        }
+    }
+
+    public synchronized void recordFailure(Peer peer) {
+        PeerHistory history = getHistory(peer);
+        history.consecutiveFailures++;
+        history.lastFailureTime = System.currentTimeMillis();
+    }
+
+    /**
+     * @return true if the peer has failed repeatedly and recently
+     */
+    public synchronized boolean isKnownDead(Peer peer) {
+        PeerHistory history = histories.get(peer.getAddress().toSocketAddress());
+        return history != null && history.consecutiveFailures >= CONSECUTIVE_FAILURES_BEFORE_DEAD
+                && System.currentTimeMillis() - history.lastFailureTime < DEAD_PEER_RETRY_INTERVAL;
+    }
+
+    /**
+     * @return The rolling average round trip time in milliseconds, or -1 if unknown
+     */
+    public synchronized long getAverageRoundTripTime(Peer peer) {
+        PeerHistory history = histories.get(peer.getAddress().toSocketAddress());
+        return history == null ? -1 : Math.round(history.averageRoundTripTime);
+    }
+
+    public synchronized int getConsecutiveFailures(Peer peer) {
+        PeerHistory history = histories.get(peer.getAddress().toSocketAddress());
+        return history == null ? 0 : history.consecutiveFailures;
+    }
+
+    /**
+     * @return The live peer with the lowest average round trip time, or null if
+     *         no peer has a known round trip time
+     */
+    public Peer getFastestPeer(List<Peer> peers) {
+        if (peers == null) {
+            return null;
+        }
+        Peer fastestPeer = null;
+        long fastestRoundTripTime = Long.MAX_VALUE;
+        for (Peer peer : peers) {
+            long roundTripTime = getAverageRoundTripTime(peer);
+            if (roundTripTime >= 0 && roundTripTime < fastestRoundTripTime && !isKnownDead(peer)) {
+                fastestPeer = peer;
+                fastestRoundTripTime = roundTripTime;
+            }
+        }
+        return fastestPeer;
+    }
+
+    private PeerHistory getHistory(Peer peer) {
+        InetSocketAddress address = peer.getAddress().toSocketAddress();
+        PeerHistory history = histories.get(address);
+        if (history == null) {
+            history = new PeerHistory();
+            histories.put(address, history);
+        }
+        return history;
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * SparkBit
+ *
+ * Copyright 2011-2014 multibit.org
+ * Copyright 2014 Coin Sciences Ltd
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.network;
+
+import java.net.InetSocketAddress;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.AbstractPeerEventListener;
+import com.google.bitcoin.core.Block;
+import com.google.bitcoin.core.Peer;
+
+/**
+ * Scores peers on their ping round trip time, how quickly they deliver
+ * blocks, how often they stall a block chain download and how often they
+ * drop the connection.
+ *
+ * The scores are used to pick the download peer, to move the download to
+ * another peer when the download peer stalls, and are kept in the
+ * PeerDatabase so that good peers are tried first after a restart.
+ *
+ * Records are kept by address so that they survive the peer reconnecting.
+ */
+public class PeerScorer extends AbstractPeerEventListener {
+
+    private static final Logger log = LoggerFactory.getLogger(PeerScorer.class);
+
+    public static final int MAXIMUM_NUMBER_OF_PEERS_SCORED = 200;
+
+    /**
+     * How often the download peer is checked.
+     */
+    public static final int CHECK_INTERVAL = 10; // seconds
+
+    /**
+     * How often the good peers are saved.
+     */
+    public static final long SAVE_INTERVAL = 60 * 1000; // ms
+
+    /**
+     * The download peer has stalled if it delivers fewer blocks a second than
+     * this while there are blocks left to download.
+     */
+    public static final double MINIMUM_DOWNLOAD_RATE = 2.0; // blocks per second
+
+    /**
+     * A connection that lasts less than this counts as a dropped connection.
+     */
+    public static final long SHORT_CONNECTION_TIME = 60 * 1000; // ms
+
+    /**
+     * How long a peer that stalled the download is not picked as download peer.
+     */
+    public static final long STALLED_PEER_AVOID_TIME = 10 * 60 * 1000; // ms
+
+    /**
+     * Weight of the latest sample in the rolling download rate.
+     */
+    private static final double DOWNLOAD_RATE_WEIGHT = 0.5;
+
+    private static class PeerRecord {
+        double downloadRate = -1;
+        int blocksSinceLastCheck = 0;
+        int stalls = 0;
+        long lastStallTime = 0;
+        int droppedConnections = 0;
+        long connectedTime = 0;
+        long lastPingTime = -1;
+    }
+
+    private final PeerLatencyTracker peerLatencyTracker;
+
+    private final Map<InetSocketAddress, PeerRecord> records = new LinkedHashMap<InetSocketAddress, PeerRecord>(16, 0.75f,
+            true) {
+        private static final long serialVersionUID = -6107358226480551172L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<InetSocketAddress, PeerRecord> eldest) {
+            return size() > MAXIMUM_NUMBER_OF_PEERS_SCORED;
+        }
+    };
+
+    private final ScheduledExecutorService executorService;
+
+    private volatile MultiBitPeerGroup peerGroup;
+
+    /**
+     * The blocks left as last reported by the download peer.
+     */
+    private volatile int blocksLeft = 0;
+
+    private volatile long downloadStartedTime = 0;
+
+    private volatile PeerDatabase peerDatabase;
+
+    private long lastSaveTime = 0;
+
+    /**
+     * When the peer group was set, until the first peer connects.
+     */
+    private volatile long peerGroupSetTime = 0;
+
+    public PeerScorer(PeerLatencyTracker peerLatencyTracker) {
+        this.peerLatencyTracker = peerLatencyTracker;
+        executorService = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "PeerScorer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executorService.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    checkPeers();
+                } catch (RuntimeException e) {
+                    log.error(e.getClass().getCanonicalName() + " " + e.getMessage(), e);
+                }
+            }
+        }, CHECK_INTERVAL, CHECK_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Score the peers of this peer group (the previous peer group is dropped).
+     */
+    public void setPeerGroup(MultiBitPeerGroup peerGroup) {
+        this.peerGroup = peerGroup;
+        blocksLeft = 0;
+        peerGroupSetTime = System.currentTimeMillis();
+    }
+
+    @Override
+    public void onPeerConnected(Peer peer, int peerCount) {
+        long setTime = peerGroupSetTime;
+        if (setTime > 0) {
+            peerGroupSetTime = 0;
+            log.debug("First peer '" + peer.getAddress() + "' connected in " + (System.currentTimeMillis() - setTime) + " ms");
+        }
+        synchronized (this) {
+            getRecord(peer).connectedTime = System.currentTimeMillis();
+        }
+        PeerDatabase database = peerDatabase;
+        if (database != null) {
+            database.recordSuccess(peer.getAddress().toSocketAddress());
+        }
+    }
+
+    @Override
+    public void onPeerDisconnected(Peer peer, int peerCount) {
+        if (peer == null) {
+            return;
+        }
+        synchronized (this) {
+            PeerRecord record = getRecord(peer);
+            if (record.connectedTime > 0 && System.currentTimeMillis() - record.connectedTime < SHORT_CONNECTION_TIME) {
+                record.droppedConnections++;
+            }
+            record.connectedTime = 0;
+        }
+    }
+
+    @Override
+    public void onChainDownloadStarted(Peer peer, int blocksLeft) {
+        this.blocksLeft = blocksLeft;
+        downloadStartedTime = System.currentTimeMillis();
+    }
+
+    @Override
+    public void onBlocksDownloaded(Peer peer, Block block, int blocksLeft) {
+        this.blocksLeft = blocksLeft;
+        synchronized (this) {
+            getRecord(peer).blocksSinceLastCheck++;
+        }
+    }
+
+    /**
+     * The score is out of about 100. Fast pings and fast block delivery score
+     * highly, stalls and dropped connections lose points.
+     */
+    public synchronized double getScore(Peer peer) {
+        double score = 50;
+        long roundTripTime = peerLatencyTracker.getAverageRoundTripTime(peer);
+        if (roundTripTime >= 0) {
+            // Lose a point for every 20 ms of ping.
+            score -= Math.min(50, roundTripTime / 20.0);
+        }
+        PeerRecord record = records.get(peer.getAddress().toSocketAddress());
+        if (record != null) {
+            if (record.downloadRate > 0) {
+                score += Math.min(50, record.downloadRate / 4);
+            }
+            score -= 20 * record.stalls;
+            score -= 10 * record.droppedConnections;
+        }
+        if (peerLatencyTracker.isKnownDead(peer)) {
+            score -= 100;
+        }
+        return score;
+    }
+
+    /**
+     * Pick the download peer - the best scoring peer that has the blocks we
+     * want and has not stalled recently.
+     *
+     * @return The peer to download from, or null if none is suitable
+     */
+    public Peer selectDownloadPeer(List<Peer> peers, long chainHeight) {
+        Peer bestPeer = null;
+        double bestScore = -Double.MAX_VALUE;
+        for (Peer peer : peers) {
+            if (peer.getBestHeight() < chainHeight || hasStalledRecently(peer)) {
+                continue;
+            }
+            double score = getScore(peer);
+            if (score > bestScore) {
+                bestPeer = peer;
+                bestScore = score;
+            }
+        }
+        return bestPeer;
+    }
+
+    synchronized boolean hasStalledRecently(Peer peer) {
+        PeerRecord record = records.get(peer.getAddress().toSocketAddress());
+        return record != null && record.stalls > 0
+                && System.currentTimeMillis() - record.lastStallTime < STALLED_PEER_AVOID_TIME;
+    }
+
+    /**
+     * Update the download rates and move the download off the download peer if
+     * it has stalled.
+     */
+    void checkPeers() {
+        MultiBitPeerGroup currentPeerGroup = peerGroup;
+        if (currentPeerGroup == null) {
+            return;
+        }
+
+        List<Peer> connectedPeers = currentPeerGroup.getConnectedPeers();
+        Peer stalledPeer = checkPeers(connectedPeers, currentPeerGroup.getDownloadPeer(), System.currentTimeMillis());
+        if (stalledPeer != null && connectedPeers.size() > 1) {
+            Peer newDownloadPeer = currentPeerGroup.switchDownloadPeer(stalledPeer);
+            if (newDownloadPeer != null) {
+                log.debug("Download peer '" + stalledPeer.getAddress() + "' has stalled with " + blocksLeft
+                        + " blocks left. Switching download peer to '" + newDownloadPeer.getAddress() + "'.");
+                downloadStartedTime = System.currentTimeMillis();
+            }
+        }
+
+        PeerDatabase database = peerDatabase;
+        if (database != null) {
+            for (Peer peer : connectedPeers) {
+                database.recordScore(peer.getAddress().toSocketAddress(), getScore(peer));
+            }
+            if (System.currentTimeMillis() - lastSaveTime > SAVE_INTERVAL) {
+                lastSaveTime = System.currentTimeMillis();
+                database.save();
+            }
+        }
+    }
+
+    /**
+     * Update the download rates of the connected peers over the last
+     * CHECK_INTERVAL.
+     *
+     * @return The download peer if it has stalled, otherwise null
+     */
+    Peer checkPeers(List<Peer> connectedPeers, Peer downloadPeer, long now) {
+        boolean hasStalled = false;
+        synchronized (this) {
+            for (Peer peer : connectedPeers) {
+                PeerRecord record = getRecord(peer);
+
+                // The peer group's own pings - only a new one is a sample, and it is
+                // not an answer to one of our pings so the failure count is left alone.
+                long lastPingTime = peer.getLastPingTime();
+                if (lastPingTime >= 0 && lastPingTime < Long.MAX_VALUE && lastPingTime != record.lastPingTime) {
+                    record.lastPingTime = lastPingTime;
+                    peerLatencyTracker.recordRoundTripTime(peer, lastPingTime);
+                }
+
+                double rate = record.blocksSinceLastCheck / (double) CHECK_INTERVAL;
+                record.blocksSinceLastCheck = 0;
+                if (peer == downloadPeer && blocksLeft > 0) {
+                    record.downloadRate = record.downloadRate < 0 ? rate : DOWNLOAD_RATE_WEIGHT * rate
+                            + (1 - DOWNLOAD_RATE_WEIGHT) * record.downloadRate;
+                    if (rate < MINIMUM_DOWNLOAD_RATE && now - downloadStartedTime > CHECK_INTERVAL * 1000) {
+                        record.stalls++;
+                        record.lastStallTime = now;
+                        hasStalled = true;
+                    }
+                }
+            }
+        }
+        return hasStalled ? downloadPeer : null;
+    }
+
+    /**
+     * Remember the peers connected to, with their scores, in this database.
+     */
+    public void setPeerDatabase(PeerDatabase peerDatabase) {
+        this.peerDatabase = peerDatabase;
+    }
+
+    private PeerRecord getRecord(Peer peer) {
+        InetSocketAddress address = peer.getAddress().toSocketAddress();
+        PeerRecord record = records.get(address);
+        if (record == null) {
+            record = new PeerRecord();
+            records.put(address, record);
+        }
+        return record;
+    }
+}
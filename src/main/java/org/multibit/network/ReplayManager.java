@@ -18,7 +18,6 @@
  */
 package org.multibit.network;
 
-import com.google.bitcoin.core.CheckpointManager;
 import com.google.bitcoin.core.PeerGroup;
 import com.google.bitcoin.core.StoredBlock;
 import com.google.bitcoin.store.BlockStoreException;
@@ -31,12 +30,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.swing.*;
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.text.DateFormat;
 import java.util.*;
-import java.util.Timer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
 
 
 /**
@@ -46,13 +44,16 @@ import java.util.Timer;
  * date wallet is opened 4) Encrypted wallets are opened when the user has used
  * an older version of MultiBit that does not understand them (they then get out
  * of date).
+ *
+ * Replays run one at a time on the ReplayManager thread. The tasks waiting when
+ * a replay starts are merged into a single pass from the earliest start, and a
+ * task offered while a replay is running joins it if the replay has not yet got
+ * past the task's start height.
  */
 public enum ReplayManager {
   INSTANCE;
 
   private static final Logger log = LoggerFactory.getLogger(ReplayManager.class);
-  private ReplayManagerTimerTask replayManagerTimerTask;
-  private Timer replayManagerTimer;
 
   /**
    * The actual chain height prior to any replay
@@ -60,12 +61,43 @@ public enum ReplayManager {
    */
   private int actualLastChainHeight;
 
-  private static final int REPLAY_MANAGER_DELAY_TIME = 0; // ms
-  private static final int REPLAY_MANAGER_REPEAT_TIME = 333; // ms
-
   private BitcoinController controller;
 
-  private final Queue<ReplayTask> replayTaskQueue = new LinkedList<ReplayTask>();
+  /**
+   * The replay tasks waiting to start. All the waiting tasks are merged into
+   * one replay from the earliest of their start heights when the next replay starts.
+   */
+  private final LinkedBlockingQueue<ReplayTask> waitingReplayTaskQueue = new LinkedBlockingQueue<ReplayTask>();
+
+  /**
+   * Guards currentReplayTask and currentReplayTaskCompleted.
+   */
+  private final Object currentReplayTaskLock = new Object();
+
+  private ReplayTask currentReplayTask;
+
+  private CountDownLatch currentReplayTaskCompleted;
+
+  /**
+   * The thread that runs the replay tasks one after the other.
+   */
+  private Thread replayThread;
+
+  /**
+   * Starts a replay task, after which the replay thread waits for taskHasCompleted.
+   */
+  interface ReplayStarter {
+    void startReplay(ReplayTask replayTask) throws IOException, BlockStoreException;
+  }
+
+  private final ReplayStarter syncWalletReplayStarter = new ReplayStarter() {
+    @Override
+    public void startReplay(ReplayTask replayTask) throws IOException, BlockStoreException {
+      syncWallet(replayTask);
+    }
+  };
+
+  private volatile ReplayStarter replayStarter = syncWalletReplayStarter;
 
   private static boolean regularDownloadIsRunning = false;
 
@@ -74,11 +106,103 @@ public enum ReplayManager {
     this.controller = controller;
 
     if (clearQueue) {
-      replayTaskQueue.clear();
+      waitingReplayTaskQueue.clear();
+    }
+    synchronized (currentReplayTaskLock) {
+      if (replayThread == null || !replayThread.isAlive()) {
+        replayThread = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            runReplayTasks();
+          }
+        }, "ReplayManager");
+        replayThread.setDaemon(true);
+        replayThread.start();
+      }
+    }
+  }
+
+  /**
+   * Run the replay tasks as they arrive, waiting for each to complete before
+   * starting the next.
+   */
+  private void runReplayTasks() {
+    while (true) {
+      ReplayTask replayTask;
+      try {
+        replayTask = waitingReplayTaskQueue.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+
+      CountDownLatch replayTaskCompleted = new CountDownLatch(1);
+      synchronized (currentReplayTaskLock) {
+        // Anything else waiting is done in the same pass.
+        List<ReplayTask> replayTasks = new ArrayList<ReplayTask>();
+        replayTasks.add(replayTask);
+        waitingReplayTaskQueue.drainTo(replayTasks);
+        if (replayTasks.size() > 1) {
+          replayTask = mergeReplayTasks(replayTasks);
+        }
+        currentReplayTask = replayTask;
+        currentReplayTaskCompleted = replayTaskCompleted;
+      }
+
+      try {
+        replayStarter.startReplay(replayTask);
+        replayTaskCompleted.await();
+        log.debug("ReplayTask " + replayTask.toString() + " has completed.");
+      } catch (IOException ioe) {
+        log.error(ioe.getClass().getCanonicalName() + " " + ioe.getMessage());
+        clearBusy(replayTask);
+      } catch (BlockStoreException bse) {
+        log.error(bse.getClass().getCanonicalName() + " " + bse.getMessage());
+        clearBusy(replayTask);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } finally {
+        synchronized (currentReplayTaskLock) {
+          currentReplayTask = null;
+          currentReplayTaskCompleted = null;
+        }
+      }
     }
-    replayManagerTimerTask = new ReplayManagerTimerTask(controller, replayTaskQueue);
-    replayManagerTimer = new Timer();
-    replayManagerTimer.scheduleAtFixedRate(replayManagerTimerTask, REPLAY_MANAGER_DELAY_TIME, REPLAY_MANAGER_REPEAT_TIME);
+  }
+
+  /**
+   * Merge replay tasks into one replay from the earliest start of them all.
+   */
+  private ReplayTask mergeReplayTasks(List<ReplayTask> replayTasks) {
+    Date startDate = null;
+    boolean isFromGenesis = false;
+    int startHeight = Integer.MAX_VALUE;
+    for (ReplayTask replayTask : replayTasks) {
+      if (replayTask.getStartDate() == null) {
+        isFromGenesis = true;
+      } else if (startDate == null || replayTask.getStartDate().before(startDate)) {
+        startDate = replayTask.getStartDate();
+      }
+      if (startHeight != ReplayTask.UNKNOWN_START_HEIGHT) {
+        if (replayTask.getStartHeight() == ReplayTask.UNKNOWN_START_HEIGHT) {
+          startHeight = ReplayTask.UNKNOWN_START_HEIGHT;
+        } else {
+          startHeight = Math.min(startHeight, replayTask.getStartHeight());
+        }
+      }
+    }
+
+    ReplayTask mergedReplayTask = new ReplayTask(new ArrayList<WalletData>(), isFromGenesis ? null : startDate, startHeight);
+    for (ReplayTask replayTask : replayTasks) {
+      if (replayTask.getPerWalletModelDataToReplay() != null) {
+        for (WalletData perWalletModelData : replayTask.getPerWalletModelDataToReplay()) {
+          mergedReplayTask.addPerWalletModelDataToReplay(perWalletModelData);
+        }
+      }
+    }
+    log.debug("Merged " + replayTasks.size() + " replay tasks into " + mergedReplayTask.toString());
+    return mergedReplayTask;
   }
 
   /**
@@ -112,10 +236,6 @@ public enum ReplayManager {
 
     log.debug("Starting replay of blockchain from date = '" + dateToReplayFrom);
 
-    // Reset UI to zero peers.
-    controller.getPeerEventListener().onPeerDisconnected(null, 0);
-
-    // Restart peerGroup and download rest of blockchain.
     Message message;
     if (dateToReplayFrom != null) {
       message = new Message(controller.getLocaliser().getString(
@@ -130,13 +250,42 @@ public enum ReplayManager {
     }
     MessageManager.INSTANCE.addMessage(message);
 
+    // Rewind the blockchain and download the rest of it over the existing connections.
+    PeerGroup peerGroup = controller.getMultiBitService().getPeerGroup();
+    if (peerGroup instanceof MultiBitPeerGroup) {
+      int newChainHeightAfterRewind = controller.getMultiBitService().rewindBlockChainForReplay(dateToReplayFrom);
+      if (newChainHeightAfterRewind >= 0) {
+        log.debug("dateToReplayFrom = " + dateToReplayFrom + ", newChainHeightAfterRewind = " + newChainHeightAfterRewind);
+        replayTask.setStartHeight(newChainHeightAfterRewind);
+
+        // Hook up the download listeners.
+        ((MultiBitPeerGroup) peerGroup).resetMultiBitDownloadListener();
+        addDownloadListeners(perWalletModelDataList);
+
+        // The peers keep their filters, so they must have one with any keys just imported
+        // before the blocks are sent, rather than once the recalculation delay is up.
+        controller.getMultiBitService().getBloomFilterManager().recalculateNow();
+
+        log.debug("About to start  blockchain download on PeerGroup = " + peerGroup.toString());
+        peerGroup.downloadBlockChain();
+        log.debug("Blockchain download started.");
+        return;
+      }
+    }
+
+    // The blockchain cannot be rewound in place so restart peerGroup and download rest of blockchain.
     log.debug("About to restart PeerGroup.");
     message = new Message(controller.getLocaliser().getString("multiBitService.stoppingBitcoinNetworkConnection"),
             false, 0);
     MessageManager.INSTANCE.addMessage(message);
 
-    controller.getMultiBitService().getPeerGroup().stopAndWait();
-    log.debug("PeerGroup is now stopped.");
+    // Reset UI to zero peers.
+    controller.getPeerEventListener().onPeerDisconnected(null, 0);
+
+    if (peerGroup != null) {
+      peerGroup.stopAndWait();
+      log.debug("PeerGroup is now stopped.");
+    }
 
     // Reset UI to zero peers.
     controller.getPeerEventListener().onPeerDisconnected(null, 0);
@@ -154,12 +303,12 @@ public enum ReplayManager {
     addDownloadListeners(perWalletModelDataList);
 
     // Start up the PeerGroup.
-    PeerGroup peerGroup = controller.getMultiBitService().getPeerGroup();
+    peerGroup = controller.getMultiBitService().getPeerGroup();
     peerGroup.start();
     log.debug("Restarted PeerGroup = " + peerGroup.toString());
 
     log.debug("About to start  blockchain download.");
-    controller.getMultiBitService().getPeerGroup().downloadBlockChain();
+    peerGroup.downloadBlockChain();
     log.debug("Blockchain download started.");
   }
 
@@ -205,40 +354,27 @@ public enum ReplayManager {
 
     // Work out for this replay task where the blockchain will be truncated to.
     int startHeight = replayTask.getStartHeight();
-    if (startHeight == ReplayTask.UNKNOWN_START_HEIGHT) {
-      File checkpointsFile = new File(controller.getMultiBitService().getCheckpointsFilename());
-      System.out.println("ReplayManager#offerReplayTask checkpointsFile = " + checkpointsFile.getAbsolutePath());
-      if (checkpointsFile.exists() && replayTask.getStartDate() != null) {
-        FileInputStream stream = null;
-        try {
-          stream = new FileInputStream(checkpointsFile);
-          CheckpointManager checkpointManager = new CheckpointManager(controller.getModel().getNetworkParameters(), stream);
-          StoredBlock checkpoint = checkpointManager.getCheckpointBefore(replayTask.getStartDate().getTime() / 1000);
-          System.out.println("ReplayManager#offerReplayTask checkpoint = " + checkpoint);
-          if (checkpoint != null) {
-            startHeight = checkpoint.getHeight();
-            System.out.println("ReplayManager#offerReplayTask startHeight = " + startHeight);
-
-            // Store it in the replay task as it will be used for percents.
-            replayTask.setStartHeight(startHeight);
-          }
-        } catch (IOException e) {
-          log.error(e.getClass().getName() + " " + e.getMessage());
-        } finally {
-          if (stream != null) {
-            try {
-              stream.close();
-            } catch (IOException e) {
-              e.printStackTrace();
-            }
-          }
+    if (startHeight == ReplayTask.UNKNOWN_START_HEIGHT && replayTask.getStartDate() != null) {
+      MultiBitCheckpointManager checkpointManager = controller.getMultiBitService().getCheckpointManager();
+      if (checkpointManager != null) {
+        StoredBlock checkpoint = checkpointManager.getCheckpointBefore(replayTask.getStartDate().getTime() / 1000);
+        log.debug("ReplayManager#offerReplayTask checkpoint = " + checkpoint);
+        if (checkpoint != null) {
+          startHeight = checkpoint.getHeight();
+
+          // Store it in the replay task as it will be used for percents.
+          replayTask.setStartHeight(startHeight);
         }
-
       }
     }
     log.debug("Actual replayTask offered = " + replayTask.toString());
-    synchronized (replayTaskQueue) {
-      replayTaskQueue.offer(replayTask);
+    synchronized (currentReplayTaskLock) {
+      if (canJoinCurrentReplayTask(startHeight)) {
+        joinCurrentReplayTask(replayTask, startHeight);
+        return true;
+      }
+
+      waitingReplayTaskQueue.offer(replayTask);
       String waitingText = "singleWalletPanel.waiting.text";
       String waitingVerb = "singleWalletPanel.waiting.verb";
 
@@ -260,6 +396,47 @@ public enum ReplayManager {
     return true;
   }
 
+  /**
+   * A replay starting at startHeight can join the running replay if that
+   * started no later and has not yet got past startHeight - every wallet is
+   * on the chain so sees every block of the running replay.
+   * Must be called holding currentReplayTaskLock.
+   */
+  private boolean canJoinCurrentReplayTask(int startHeight) {
+    if (currentReplayTask == null || startHeight == ReplayTask.UNKNOWN_START_HEIGHT
+            || currentReplayTask.getStartHeight() == ReplayTask.UNKNOWN_START_HEIGHT
+            || controller.getMultiBitService().getChain() == null) {
+      return false;
+    }
+    return startHeight >= currentReplayTask.getStartHeight()
+            && startHeight >= controller.getMultiBitService().getChain().getBestChainHeight();
+  }
+
+  /**
+   * Add the wallets of a replay task to the running replay.
+   * Must be called holding currentReplayTaskLock.
+   */
+  private void joinCurrentReplayTask(ReplayTask replayTask, int startHeight) {
+    log.debug("ReplayTask " + replayTask.toString() + " is joining the running " + currentReplayTask.toString());
+    List<WalletData> joiningPerWalletModelDataList = new ArrayList<WalletData>();
+    for (WalletData perWalletModelData : replayTask.getPerWalletModelDataToReplay()) {
+      if (perWalletModelData != null && currentReplayTask.addPerWalletModelDataToReplay(perWalletModelData)) {
+        perWalletModelData.setBusy(true);
+        perWalletModelData.setBusyTaskKey("multiBitDownloadListener.downloadingText");
+        perWalletModelData.setBusyTaskVerbKey("multiBitDownloadListener.downloadingTextShort");
+        perWalletModelData.setReplayTaskUUID(currentReplayTask.getUuid());
+
+        // As above, so a restart replays from the required startHeight.
+        perWalletModelData.getWallet().setLastBlockSeenHeight(startHeight);
+        perWalletModelData.getWallet().setLastBlockSeenHash(null);
+        perWalletModelData.setDirty(true);
+        joiningPerWalletModelDataList.add(perWalletModelData);
+      }
+    }
+    addDownloadListeners(joiningPerWalletModelDataList);
+    controller.fireWalletBusyChange(true);
+  }
+
   /**
    * Called by the downloadlistener when the synchronise completes.
    *
@@ -268,8 +445,13 @@ public enum ReplayManager {
   public void taskHasCompleted(UUID replayTaskUUID) {
     log.debug("ReplayTask with UUID " + replayTaskUUID + " has completed.");
     // Check the UUID matches the current task.
-    ReplayTask currentTask = replayTaskQueue.peek();
-    if (currentTask == null) {
+    ReplayTask currentTask;
+    CountDownLatch currentTaskCompleted;
+    synchronized (currentReplayTaskLock) {
+      currentTask = currentReplayTask;
+      currentTaskCompleted = currentReplayTaskCompleted;
+    }
+    if (currentTask == null || currentTaskCompleted == null) {
       return;
     } else {
       // Not relevant - ignore.
@@ -278,69 +460,73 @@ public enum ReplayManager {
       }
     }
 
-    // Tell the ReplayTimerTask that we are cleaning up.
-    replayManagerTimerTask.currentTaskIsTidyingUp(true);
-
     try {
-      if (currentTask != null) {
-        // This task is complete. Inform the UI.
-        List<WalletData> perWalletModelDataList = currentTask.getPerWalletModelDataToReplay();
-        if (perWalletModelDataList != null) {
-          for (WalletData perWalletModelData : perWalletModelDataList) {
-            perWalletModelData.setBusyTaskVerbKey(null);
-            perWalletModelData.setBusyTaskKey(null);
-            perWalletModelData.setBusy(false);
-            perWalletModelData.setReplayTaskUUID(null);
-          }
-        }
-        // TODO - does not look quite right.
-        controller.fireWalletBusyChange(false);
-      }
+      // This task is complete. Inform the UI.
+      clearBusy(currentTask);
     } finally {
-      // No longer tidying up.
-      replayManagerTimerTask.currentTaskIsTidyingUp(false);
-
       // Everything is completed - clear to start the next task.
-      replayManagerTimerTask.currentTaskHasCompleted();
+      currentTaskCompleted.countDown();
     }
   }
 
-  public ReplayTask getCurrentReplayTask() {
-    synchronized (replayTaskQueue) {
-      if (replayTaskQueue.isEmpty()) {
-        return null;
-      } else {
-        return replayTaskQueue.peek();
+  private void clearBusy(ReplayTask replayTask) {
+    List<WalletData> perWalletModelDataList = replayTask.getPerWalletModelDataToReplay();
+    if (perWalletModelDataList != null) {
+      for (WalletData perWalletModelData : perWalletModelDataList) {
+        perWalletModelData.setBusyTaskVerbKey(null);
+        perWalletModelData.setBusyTaskKey(null);
+        perWalletModelData.setBusy(false);
+        perWalletModelData.setReplayTaskUUID(null);
       }
     }
+    // TODO - does not look quite right.
+    controller.fireWalletBusyChange(false);
   }
 
   /**
-   * See if there is a waiting replay task for a perWalletModelData
+   * Set how replay tasks are started - for testing without a network.
+   *
+   * @param replayStarter The ReplayStarter to use, or null to sync the wallets
+   */
+  void setReplayStarter(ReplayStarter replayStarter) {
+    this.replayStarter = replayStarter == null ? syncWalletReplayStarter : replayStarter;
+  }
+
+  public ReplayTask getCurrentReplayTask() {
+    synchronized (currentReplayTaskLock) {
+      return currentReplayTask;
+    }
+  }
+
+  /**
+   * See if there is a running or waiting replay task for a perWalletModelData
    *
    * @param perWalletModelData
-   * @return the waiting ReplayTask or null if there is not one.
+   * @return the ReplayTask or null if there is not one.
    */
-  @SuppressWarnings("unchecked")
   public ReplayTask getWaitingReplayTask(WalletData perWalletModelData) {
-    synchronized (replayTaskQueue) {
-      if (replayTaskQueue.isEmpty()) {
-        return null;
-      } else {
-        for (ReplayTask replayTask : (List<ReplayTask>) replayTaskQueue) {
-          List<WalletData> list = replayTask.getPerWalletModelDataToReplay();
-          if (list != null) {
-            for (WalletData item : list) {
-              if (perWalletModelData.getWalletFilename().equals(item.getWalletFilename())) {
-                return replayTask;
-              }
-            }
-          }
+    ReplayTask currentTask = getCurrentReplayTask();
+    if (currentTask != null && containsWallet(currentTask, perWalletModelData)) {
+      return currentTask;
+    }
+    for (ReplayTask replayTask : waitingReplayTaskQueue) {
+      if (containsWallet(replayTask, perWalletModelData)) {
+        return replayTask;
+      }
+    }
+    return null;
+  }
 
+  private boolean containsWallet(ReplayTask replayTask, WalletData perWalletModelData) {
+    List<WalletData> list = replayTask.getPerWalletModelDataToReplay();
+    if (list != null) {
+      for (WalletData item : list) {
+        if (perWalletModelData.getWalletFilename().equals(item.getWalletFilename())) {
+          return true;
         }
-        return null;
       }
     }
+    return false;
   }
 
   /**
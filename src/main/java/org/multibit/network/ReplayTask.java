@@ -21,6 +21,7 @@ package org.multibit.network;
 import java.util.Date;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.multibit.message.Message;
 import org.multibit.model.bitcoin.WalletData;
@@ -33,7 +34,7 @@ public class ReplayTask {
     
     public static final int UNKNOWN_START_HEIGHT = -1;
 
-    private final List<WalletData> perWalletModelDataToReplay;
+    private final CopyOnWriteArrayList<WalletData> perWalletModelDataToReplay;
     
     /**
      * The start date of the replay task.
@@ -56,7 +57,9 @@ public class ReplayTask {
     private long percentComplete;
        
     public ReplayTask( List<WalletData> perWalletModelDataToReplay, Date startDate, int startHeight) {
-        this.perWalletModelDataToReplay = perWalletModelDataToReplay;
+        // Copied as wallets can join the replay while it is running.
+        this.perWalletModelDataToReplay = perWalletModelDataToReplay == null ? null
+                : new CopyOnWriteArrayList<WalletData>(perWalletModelDataToReplay);
         this.startDate = startDate;
         this.startHeight = startHeight;
         this.percentComplete = Message.NOT_RELEVANT_PERCENTAGE_COMPLETE;
@@ -67,6 +70,26 @@ public class ReplayTask {
         return perWalletModelDataToReplay;
     }
 
+    /**
+     * Add a wallet to the replay, if it is not already in it.
+     *
+     * @param perWalletModelData
+     * @return true if the wallet was added
+     */
+    public boolean addPerWalletModelDataToReplay(WalletData perWalletModelData) {
+        if (perWalletModelDataToReplay == null || perWalletModelData == null) {
+            return false;
+        }
+        for (WalletData loopPerWalletModelData : perWalletModelDataToReplay) {
+            if (loopPerWalletModelData == perWalletModelData
+                    || (loopPerWalletModelData.getWalletFilename() != null && loopPerWalletModelData.getWalletFilename().equals(
+                            perWalletModelData.getWalletFilename()))) {
+                return false;
+            }
+        }
+        return perWalletModelDataToReplay.addIfAbsent(perWalletModelData);
+    }
+
     public Date getStartDate() {
         return startDate;
     }
@@ -70,10 +70,14 @@ public interface ViewSystem extends WalletEventListener {
     public void setOnlineStatus(StatusEnum statusEnum);
    
     /**
-     * Notification that a block has been downloaded.
-     * (this is typically called from a peer thread)
+     * Notification that blocks have been downloaded.
+     * (blocks are reported in batches, at most every 250 ms, from a background thread)
+     *
+     * @param numberOfBlocks The number of blocks downloaded since the last notification
+     * @param fromHeight The first chain height covered, or -1 if not known
+     * @param toHeight The chain height now, or -1 if not known
      */
-    public void blockDownloaded();
+    public void blocksDownloaded(int numberOfBlocks, int fromHeight, int toHeight);
  
     /**
      * Set the help context to display.
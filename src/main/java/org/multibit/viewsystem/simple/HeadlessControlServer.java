@@ -0,0 +1,203 @@
+/*
+ * SparkBit
+ *
+ * Copyright 2011-2014 multibit.org
+ * Copyright 2014 Coin Sciences Ltd
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.viewsystem.simple;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.multibit.controller.bitcoin.BitcoinController;
+import org.multibit.model.bitcoin.WalletData;
+import org.multibit.network.AssetValidationScheduler;
+import org.multibit.network.MultiBitService;
+import org.multibit.viewsystem.swing.action.ExitAction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.Wallet;
+
+/**
+ * A control socket for headless mode, listening on the loopback interface
+ * only. Each connection sends one command line and gets the answer back as
+ * key=value lines followed by a blank line.
+ *
+ * The commands are :
+ *   status  - the network status, chain height and peer count
+ *   wallets - one line for each open wallet
+ *   stop    - save the wallets and exit
+ */
+public class HeadlessControlServer implements Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(HeadlessControlServer.class);
+
+    public static final int DEFAULT_PORT = 38335;
+
+    /**
+     * How long a connection may take to send its command.
+     */
+    private static final int READ_TIMEOUT = 5000; // ms
+
+    private final BitcoinController bitcoinController;
+    private final HeadlessViewSystem headlessViewSystem;
+    private final int port;
+
+    private ServerSocket serverSocket;
+
+    private final long startTime = System.currentTimeMillis();
+
+    public HeadlessControlServer(BitcoinController bitcoinController, HeadlessViewSystem headlessViewSystem, int port) {
+        this.bitcoinController = bitcoinController;
+        this.headlessViewSystem = headlessViewSystem;
+        this.port = port;
+    }
+
+    /**
+     * Open the control socket and answer commands on a daemon thread.
+     */
+    public void start() throws IOException {
+        serverSocket = new ServerSocket(port, 10, InetAddress.getByName("127.0.0.1"));
+        Thread thread = new Thread(this, "HeadlessControlServer");
+        thread.setDaemon(true);
+        thread.start();
+        log.info("event=controlServerStarted port=" + port);
+    }
+
+    @Override
+    public void run() {
+        while (!serverSocket.isClosed()) {
+            Socket socket = null;
+            try {
+                socket = serverSocket.accept();
+                socket.setSoTimeout(READ_TIMEOUT);
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+                PrintWriter writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+                String command = reader.readLine();
+                boolean stop = false;
+                if (command != null) {
+                    command = command.trim().toLowerCase();
+                    if ("status".equals(command)) {
+                        for (String line : getStatus()) {
+                            writer.println(line);
+                        }
+                    } else if ("wallets".equals(command)) {
+                        for (String line : getWallets()) {
+                            writer.println(line);
+                        }
+                    } else if ("stop".equals(command)) {
+                        writer.println("stopping=true");
+                        stop = true;
+                    } else {
+                        writer.println("error=unknown command '" + command + "'");
+                    }
+                }
+                writer.println();
+                writer.flush();
+                if (stop) {
+                    stop();
+                }
+            } catch (SocketTimeoutException ste) {
+                log.debug("Control connection timed out");
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    log.error(e.getClass().getCanonicalName() + " " + e.getMessage());
+                }
+            } catch (RuntimeException e) {
+                log.error(e.getClass().getCanonicalName() + " " + e.getMessage(), e);
+            } finally {
+                if (socket != null) {
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                        log.error(e.getClass().getCanonicalName() + " " + e.getMessage());
+                    }
+                }
+            }
+        }
+    }
+
+    List<String> getStatus() {
+        List<String> lines = new ArrayList<String>();
+        lines.add("status=" + headlessViewSystem.getStatus());
+        MultiBitService multiBitService = bitcoinController.getMultiBitService();
+        if (multiBitService != null) {
+            if (multiBitService.getChain() != null) {
+                lines.add("chainHeight=" + multiBitService.getChain().getBestChainHeight());
+            }
+            if (multiBitService.getPeerGroup() != null) {
+                lines.add("peers=" + multiBitService.getPeerGroup().numConnectedPeers());
+            }
+        }
+        lines.add("blocksDownloaded=" + headlessViewSystem.getNumberOfBlocksDownloaded());
+        if (multiBitService != null) {
+            AssetValidationScheduler assetValidationScheduler = multiBitService.getAssetValidationScheduler();
+            lines.add("assetValidationQueue=" + assetValidationScheduler.getQueueSize());
+            lines.add("assetValidations=" + assetValidationScheduler.getNumberOfValidations());
+            lines.add("assetValidationAverageTime=" + assetValidationScheduler.getAverageValidationTime());
+            if (multiBitService.getAssetDocumentCache() != null) {
+                lines.add("assetDocumentsNotModified=" + multiBitService.getAssetDocumentCache().getNumberOfNotModified());
+                lines.add("assetDocumentsModified=" + multiBitService.getAssetDocumentCache().getNumberOfModified());
+                lines.add("assetDocumentsFailed=" + multiBitService.getAssetDocumentCache().getNumberOfFailed());
+            }
+        }
+        List<WalletData> perWalletModelDataList = bitcoinController.getModel().getPerWalletModelDataList();
+        lines.add("wallets=" + (perWalletModelDataList == null ? 0 : perWalletModelDataList.size()));
+        Runtime runtime = Runtime.getRuntime();
+        lines.add("heapUsed=" + (runtime.totalMemory() - runtime.freeMemory()));
+        lines.add("heapMax=" + runtime.maxMemory());
+        lines.add("uptime=" + (System.currentTimeMillis() - startTime) / 1000);
+        return lines;
+    }
+
+    List<String> getWallets() {
+        List<String> lines = new ArrayList<String>();
+        List<WalletData> perWalletModelDataList = bitcoinController.getModel().getPerWalletModelDataList();
+        if (perWalletModelDataList != null) {
+            for (WalletData perWalletModelData : perWalletModelDataList) {
+                Wallet wallet = perWalletModelData.getWallet();
+                if (wallet == null) {
+                    continue;
+                }
+                lines.add("wallet=" + perWalletModelData.getWalletFilename() + " balance=" + wallet.getBalance()
+                        + " estimatedBalance=" + wallet.getBalance(Wallet.BalanceType.ESTIMATED) + " lastBlockSeenHeight="
+                        + wallet.getLastBlockSeenHeight() + " busy=" + perWalletModelData.isBusy());
+            }
+        }
+        return lines;
+    }
+
+    private void stop() {
+        log.info("event=stopRequested");
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            log.error(e.getClass().getCanonicalName() + " " + e.getMessage());
+        }
+        ExitAction exitAction = new ExitAction(bitcoinController, null);
+        exitAction.setBitcoinController(bitcoinController);
+        exitAction.actionPerformed(null);
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * SparkBit
+ *
+ * Copyright 2011-2014 multibit.org
+ * Copyright 2014 Coin Sciences Ltd
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.viewsystem.simple;
+
+import java.math.BigInteger;
+import java.util.List;
+
+import org.multibit.controller.bitcoin.BitcoinController;
+import org.multibit.model.bitcoin.WalletData;
+import org.multibit.model.core.StatusEnum;
+import org.multibit.viewsystem.DisplayHint;
+import org.multibit.viewsystem.View;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.script.Script;
+
+/**
+ * The view system used when SparkBit runs with --headless. There is no user
+ * interface - wallet and network events are logged, one line per event with
+ * key=value fields so that they can be parsed, and the state is kept for the
+ * HeadlessControlServer to report.
+ */
+public class HeadlessViewSystem extends SimpleViewSystem {
+
+    private static final Logger log = LoggerFactory.getLogger(HeadlessViewSystem.class);
+
+    private final BitcoinController bitcoinController;
+
+    private volatile StatusEnum status = StatusEnum.CONNECTING;
+
+    private volatile int lastDownloadedHeight = -1;
+
+    public HeadlessViewSystem(BitcoinController bitcoinController) {
+        this.bitcoinController = bitcoinController;
+    }
+
+    @Override
+    public void onCoinsReceived(Wallet wallet, Transaction transaction, BigInteger prevBalance, BigInteger newBalance) {
+        log.info("event=coinsReceived wallet=" + getWalletFilename(wallet) + " tx=" + transaction.getHashAsString()
+                + " prevBalance=" + prevBalance + " newBalance=" + newBalance);
+    }
+
+    @Override
+    public void onCoinsSent(Wallet wallet, Transaction transaction, BigInteger prevBalance, BigInteger newBalance) {
+        log.info("event=coinsSent wallet=" + getWalletFilename(wallet) + " tx=" + transaction.getHashAsString()
+                + " prevBalance=" + prevBalance + " newBalance=" + newBalance);
+    }
+
+    @Override
+    public void onReorganize(Wallet wallet) {
+        log.info("event=reorganize wallet=" + getWalletFilename(wallet));
+    }
+
+    @Override
+    public void onTransactionConfidenceChanged(Wallet wallet, Transaction transaction) {
+        if (log.isDebugEnabled()) {
+            log.debug("event=confidenceChanged wallet=" + getWalletFilename(wallet) + " tx=" + transaction.getHashAsString()
+                    + " confidence=" + transaction.getConfidence().getConfidenceType());
+        }
+    }
+
+    @Override
+    public void onWalletChanged(Wallet wallet) {
+        if (log.isDebugEnabled()) {
+            log.debug("event=walletChanged wallet=" + getWalletFilename(wallet));
+        }
+    }
+
+    @Override
+    public void onKeysAdded(Wallet wallet, List<ECKey> keys) {
+        log.info("event=keysAdded wallet=" + getWalletFilename(wallet) + " count=" + (keys == null ? 0 : keys.size()));
+    }
+
+    @Override
+    public void onScriptsAdded(Wallet wallet, List<Script> scripts) {
+        log.info("event=scriptsAdded wallet=" + getWalletFilename(wallet) + " count=" + (scripts == null ? 0 : scripts.size()));
+    }
+
+    @Override
+    public void fireFilesHaveBeenChangedByAnotherProcess(WalletData perWalletModelData) {
+        log.warn("event=filesChangedByAnotherProcess wallet="
+                + (perWalletModelData == null ? null : perWalletModelData.getWalletFilename()));
+    }
+
+    @Override
+    public void setOnlineStatus(StatusEnum statusEnum) {
+        if (statusEnum != status) {
+            log.info("event=onlineStatus status=" + statusEnum);
+        }
+        status = statusEnum;
+        online = StatusEnum.ONLINE == statusEnum;
+    }
+
+    @Override
+    public void blocksDownloaded(int numberOfBlocks, int fromHeight, int toHeight) {
+        super.blocksDownloaded(numberOfBlocks, fromHeight, toHeight);
+        lastDownloadedHeight = toHeight;
+        if (log.isDebugEnabled()) {
+            log.debug("event=blocksDownloaded count=" + numberOfBlocks + " fromHeight=" + fromHeight + " toHeight=" + toHeight);
+        }
+    }
+
+    @Override
+    public void displayView(View viewToDisplay) {
+    }
+
+    @Override
+    public void fireDataChangedUpdateNow(DisplayHint displayHint) {
+    }
+
+    @Override
+    public void fireDataChangedUpdateLater(DisplayHint displayHint) {
+    }
+
+    @Override
+    public void setHelpContext(String helpContextToDisplay) {
+    }
+
+    @Override
+    public void recreateAllViews(boolean initUI, View initialView) {
+    }
+
+    public StatusEnum getStatus() {
+        return status;
+    }
+
+    /**
+     * @return The height of the last block downloaded, or -1 if none has been
+     */
+    public int getLastDownloadedHeight() {
+        return lastDownloadedHeight;
+    }
+
+    private String getWalletFilename(Wallet wallet) {
+        if (wallet != null && bitcoinController.getModel() != null) {
+            List<WalletData> perWalletModelDataList = bitcoinController.getModel().getPerWalletModelDataList();
+            if (perWalletModelDataList != null) {
+                for (WalletData perWalletModelData : perWalletModelDataList) {
+                    if (perWalletModelData.getWallet() == wallet) {
+                        return perWalletModelData.getWalletFilename();
+                    }
+                }
+            }
+        }
+        return null;
+    }
+}
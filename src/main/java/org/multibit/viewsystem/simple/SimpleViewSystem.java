@@ -99,8 +99,8 @@ public class SimpleViewSystem implements ViewSystem {
     }
 
     @Override
-    public void blockDownloaded() {
-        numberOfBlocksDownloaded++;
+    public void blocksDownloaded(int numberOfBlocks, int fromHeight, int toHeight) {
+        numberOfBlocksDownloaded += numberOfBlocks;
     }
 
     @Override
@@ -20,11 +20,8 @@ package org.multibit.viewsystem.swing;
 
 import org.multibit.controller.Controller;
 import org.multibit.controller.bitcoin.BitcoinController;
-import org.multibit.file.WalletSaveException;
-import org.multibit.message.Message;
-import org.multibit.message.MessageManager;
+import org.multibit.file.WalletSaveScheduler;
 import org.multibit.model.bitcoin.WalletData;
-import org.multibit.store.WalletVersionException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -32,7 +29,8 @@ import java.util.*;
 
 /**
  * TimerTask to regularly check the 'health' of MultiBit.
- * It detects whether wallet files have been changed by some external process and to save dirty files.
+ * It detects whether wallet files have been changed by some external process and makes sure dirty files
+ * are scheduled to be saved.
  * It checks the ping times of the peers to see if they are up.
  *
  * @see java.util.Timer
@@ -100,25 +98,11 @@ public class HealthCheckTimerTask extends TimerTask {
                 }
               }
 
-              // See if they are dirty - write out if so.
-              if (loopModelData.isDirty()) {
-                log.debug("Saving dirty wallet '" + loopModelData.getWalletFilename() + "'...");
-                try {
-                  bitcoinController.getFileHandler().savePerWalletModelData(loopModelData, false);
-                  log.debug("... done.");
-                } catch (WalletSaveException e) {
-                  String message = controller.getLocaliser().getString(
-                          "createNewWalletAction.walletCouldNotBeCreated",
-                          new Object[]{loopModelData.getWalletFilename(), e.getMessage()});
-                  log.error(message);
-                  MessageManager.INSTANCE.addMessage(new Message(message));
-                } catch (WalletVersionException e) {
-                  String message = controller.getLocaliser().getString(
-                          "createNewWalletAction.walletCouldNotBeCreated",
-                          new Object[]{loopModelData.getWalletFilename(), e.getMessage()});
-                  log.error(message);
-                  MessageManager.INSTANCE.addMessage(new Message(message));
-                }
+              // Dirty wallets are saved by the WalletSaveScheduler as they change.
+              // Pick up any changes it was not told about.
+              if (loopModelData.isDirty() && !WalletSaveScheduler.INSTANCE.isSavePending(loopModelData)) {
+                log.debug("Scheduling save of dirty wallet '" + loopModelData.getWalletFilename() + "'");
+                WalletSaveScheduler.INSTANCE.walletChanged(loopModelData, loopModelData.isOnlyLastBlockSeenDirty());
               }
             }
           }
@@ -36,6 +36,7 @@ import org.multibit.controller.exchange.ExchangeController;
 import org.multibit.exchange.TickerTimerTask;
 import org.multibit.message.Message;
 import org.multibit.message.MessageManager;
+import org.multibit.model.bitcoin.AssetChangeSummaryCache;
 import org.multibit.model.bitcoin.WalletBusyListener;
 import org.multibit.model.bitcoin.WalletData;
 import org.multibit.model.core.StatusEnum;
@@ -254,15 +255,6 @@ public class MultiBitFrame extends JFrame implements ViewSystem, ApplicationList
 
     private static FireDataChangedTimerTask fireDataChangedTimerTask;
     
-    /* CoinSpark START */
-    /**
-     * CoinSpark timer to fire off requests to update a wallet's asset database and calculate balances.
-     */
-    private static Timer updateAssetsTimer;
-    private static UpdateAssetsTimerTask updateAssetsTimerTask;
-    //public static final int UPDATE_ASSETS_INTERVAL_TIME = 1000*15; // 15 seconds
-    /* CoinSpark END */
-    
     @SuppressWarnings("deprecation")
     public MultiBitFrame(CoreController coreController, BitcoinController bitcoinController, ExchangeController exchangeController, GenericApplication application, View initialView) {
         this.coreController = coreController;
@@ -369,13 +361,6 @@ public class MultiBitFrame extends JFrame implements ViewSystem, ApplicationList
         fireDataChangedTimerTask = new FireDataChangedTimerTask(this);
         fireDataChangedTimer = new Timer();
         fireDataChangedTimer.scheduleAtFixedRate(fireDataChangedTimerTask, FIRE_DATA_CHANGED_UPDATE_LATER_DELAY_TIME, FIRE_DATA_CHANGED_UPDATE_LATER_DELAY_TIME);
-        
-        /* CoinSpark START */
-        updateAssetsTimerTask = new UpdateAssetsTimerTask(this.bitcoinController, this);
-        updateAssetsTimer = new Timer();
-        updateAssetsTimer.scheduleAtFixedRate(updateAssetsTimerTask, updateAssetsTimerTask.INTERVAL, updateAssetsTimerTask.INTERVAL);
-        // TODO: cancel the timer upon quitting application in ExitAction.
-        /* CoinSpark END */
     }
 
     public GenericApplication getApplication() {
@@ -1815,10 +1800,10 @@ public class MultiBitFrame extends JFrame implements ViewSystem, ApplicationList
 
     @Override
     /**
-     * Update due to a block being downloaded.
-     * This typically comes in from a Peer.
+     * Update due to blocks being downloaded.
+     * This comes in from the block downloaded notifier thread.
      */
-    public void blockDownloaded() {
+    public void blocksDownloaded(int numberOfBlocks, int fromHeight, int toHeight) {
         // Update transaction screen in case status icons have changed.
         if (View.TRANSACTIONS_VIEW == controller.getCurrentView()) {
             ShowTransactionsPanel.updateTransactions();
@@ -2294,18 +2279,22 @@ public class MultiBitFrame extends JFrame implements ViewSystem, ApplicationList
 
     }
   
-    /* CoinSpark START */
-    public UpdateAssetsTimerTask getUpdateAssetsTimerTask() {
-        return updateAssetsTimerTask;
-    }
-    /* CoinSpark END */
-    
     @Subscribe
     public void listen(CSEvent event) throws Exception {
 //	log.debug("Received CSEvent: Type=" + event.getType() + " , info=" + event.getInfo());
 	final CSEventType t = event.getType();
 	Object o = event.getInfo();
 	
+	// Before the tables are redrawn, so the transaction asset columns are worked out again.
+	if (t == CSEventType.ASSET_UPDATED
+		|| t == CSEventType.ASSET_INSERTED
+		|| t == CSEventType.ASSET_DELETED
+		|| t == CSEventType.ASSET_VISIBILITY_CHANGED) {
+	    AssetChangeSummaryCache.markAssetsChanged();
+	} else if (t == CSEventType.BALANCE_VALID) {
+	    AssetChangeSummaryCache.markBalancesChanged();
+	}
+	
 	if (t == CSEventType.ASSET_VALIDATION_STARTED
 		|| t == CSEventType.ASSET_VALIDATION_COMPLETED
 		|| t == CSEventType.ASSET_UPDATED
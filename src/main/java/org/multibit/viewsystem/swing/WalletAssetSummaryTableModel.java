@@ -17,7 +17,6 @@
  */
 package org.multibit.viewsystem.swing;
 
-import com.google.bitcoin.core.Block;
 import com.google.bitcoin.core.InventoryItem;
 import com.google.bitcoin.core.Sha256Hash;
 import com.google.bitcoin.core.Wallet;
@@ -26,7 +25,9 @@ import java.util.ArrayList;
 import javax.swing.ImageIcon;
 import org.coinspark.wallet.CSAsset;
 import org.multibit.controller.bitcoin.BitcoinController;
+import org.multibit.model.bitcoin.AssetBalanceLedger;
 import org.multibit.model.bitcoin.WalletAssetTableData;
+import org.multibit.network.GenesisTransactionCache;
 import org.multibit.utils.ImageLoader;
 
 //import javax.swing.Icon;
@@ -42,11 +43,8 @@ import com.google.bitcoin.core.TransactionConfidence;
 import com.google.bitcoin.core.TransactionConfidence.ConfidenceType;
 import com.google.bitcoin.core.PeerGroup;
 import java.math.BigInteger;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
 import org.coinspark.core.CSUtils;
 import org.multibit.viewsystem.swing.CSBitcoinAssetTableData;
-import java.util.concurrent.Executors;
 import javax.swing.SwingUtilities;
 import org.coinspark.protocol.CoinSparkAssetRef;
 import org.coinspark.protocol.CoinSparkGenesis;
@@ -92,12 +90,21 @@ public class WalletAssetSummaryTableModel extends WalletAssetTableModel {
 	COLUMN_EXPIRY
     };
 
-    // Cache any blocks we have to get, so we don't repeat network requests. Don't expire.
-    private ConcurrentHashMap<Integer, Block> blockCache = new ConcurrentHashMap<>();
-    private ExecutorService executorService = Executors.newSingleThreadExecutor();
-    
     private MultiBitFrame multiBitFrame;
 
+    // Redraw once a genesis transaction missing from the cache has been fetched.
+    private final Runnable genesisTransactionFetched = new Runnable() {
+	@Override
+	public void run() {
+	    SwingUtilities.invokeLater(new Runnable() {
+		@Override
+		public void run() {
+		    fireTableDataChanged();
+		}
+	    });
+	}
+    };
+
     public WalletAssetSummaryTableModel(BitcoinController bitcoinController, MultiBitFrame multiBitFrame) {
 	super(bitcoinController);
 	this.multiBitFrame = multiBitFrame;
@@ -196,12 +203,15 @@ public class WalletAssetSummaryTableModel extends WalletAssetTableModel {
 	boolean showAssetSpendableFlag = false;
 	boolean showAssetUpdatingNowFlag = false;
 	Wallet wallet = bitcoinController.getModel().getActiveWallet();
-	Wallet.CoinSpark.AssetBalance assetBalance = null;
+	BigInteger assetTotal = null;
+	BigInteger assetSpendable = null;
 	if (asset != null) {
 	    int id = asset.getAssetID();
-	    assetBalance = wallet.CS.getAssetBalance(id);
-	    showAssetSpendableFlag = (assetBalance.total.compareTo(assetBalance.spendable) != 0);
-	    showAssetUpdatingNowFlag = assetBalance.updatingNow;
+	    AssetBalanceLedger assetBalanceLedger = bitcoinController.getModel().getActivePerWalletModelData().getAssetBalanceLedger();
+	    assetTotal = assetBalanceLedger.getTotal(wallet, id);
+	    assetSpendable = assetBalanceLedger.getSpendable(wallet, id);
+	    showAssetSpendableFlag = (assetTotal.compareTo(assetSpendable) != 0);
+	    showAssetUpdatingNowFlag = assetBalanceLedger.isUpdatingNow(wallet, id);
 	}
 	
 	
@@ -276,7 +286,7 @@ public class WalletAssetSummaryTableModel extends WalletAssetTableModel {
 			s = "";
 		    }
 		} else if (asset != null && showAssetSpendableFlag) {
-			s = "(" + CSMiscUtils.getFormattedDisplayStringForRawUnits(asset, assetBalance.spendable) + " spendable)";
+			s = "(" + CSMiscUtils.getFormattedDisplayStringForRawUnits(asset, assetSpendable) + " spendable)";
 		}
 
 		// Replace asset spendable flag if new asset needs more confirmaions
@@ -407,10 +417,10 @@ public class WalletAssetSummaryTableModel extends WalletAssetTableModel {
 		    return ""; // TODO: Change to webPageJSON==null
 		}
 		
-		String displayString = CSMiscUtils.getFormattedDisplayStringForRawUnits(asset, assetBalance.total);
+		String displayString = CSMiscUtils.getFormattedDisplayStringForRawUnits(asset, assetTotal);
 
 		if (showAssetUpdatingNowFlag) {
-		    if (assetBalance.total.equals(BigInteger.ZERO)==true) {
+		    if (assetTotal.equals(BigInteger.ZERO)==true) {
 			displayString = "...";
 		    } else {
 			displayString += " + ...";
@@ -502,45 +512,12 @@ public class WalletAssetSummaryTableModel extends WalletAssetTableModel {
 		// for genesis transaction, must get the block, and get the transaction at the
 		// index mentioned in asset ref.
 		if (assetRef != null && tx == null) {
-		    final int blockIndex = (int) assetRef.getBlockNum();
-		    final PeerGroup peerGroup = pg;
-		    final WalletAssetSummaryTableModel thisModel = this;
-
-		    Block block = blockCache.get(blockIndex);
-		    if (block == null) {
-			//System.out.println("FAILED, NEED TO GET BLOCK");
-			executorService.execute(new Runnable() {
-			    @Override
-			    public void run() {
-				Block block = peerGroup.getBlock(blockIndex);
-				if (block != null) {
-				    blockCache.put(blockIndex, block);
-				    SwingUtilities.invokeLater(new Runnable() {
-					@Override
-					public void run() {
-//					System.out.println("GOT THE BLOCK SO NOW INFORMING TABLE MODEL OF CHANGE");
-					    thisModel.fireTableDataChanged();
-					}
-				    });
-				}
-				if (block == null) {
-				    /*
-				     In a situation where the .spvchain and .fbhchain were deleted, and they need to be recreated, we can get, the following error:
-				     ERROR o.coinspark.core.CSBlockHeaderStore - Cannot read block hash, header file too small: block 266131, file size 3840032 
-				     */
-				}
-				//throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
-			    }
-			});
-		    }
-		    //System.out.println("getBlock() for asset ref height " + n + " , returned: " + block);
-		    if (block != null) {
-			tx = block.getTransactionByOffset((int) assetRef.getTxOffset());
-			if (tx == null) {
-			    // FIXME: We have an asset ref, but cannot get a valid transaction using the asset-ref and checking the genesis block header datda, so this is most likely an invalid asset.
-//			    System.out.println("Asset: Cannot find transaction with offset " + (int) assetRef.getTxnOffset() + " in block " + block.getHashAsString());
-			}
+		    // Shared by all wallets and kept on disk, so this is usually answered without a network request.
+		    GenesisTransactionCache genesisTransactionCache = this.bitcoinController.getMultiBitService().getGenesisTransactionCache();
+		    if (genesisTransactionCache != null) {
+			tx = genesisTransactionCache.getGenesisTransaction(assetRef, pg, genesisTransactionFetched);
 		    }
+		    // If tx is still null with an asset ref, this is most likely an invalid asset.
 		}
 
 		int txHeight = 0;
@@ -563,6 +540,13 @@ public class WalletAssetSummaryTableModel extends WalletAssetTableModel {
 		    numConfirmations = lastHeight - txHeight + 1; // 0 means no confirmation, 1 is yes for same block.
 		    String issueString = null;
 		    Date issueDate = asset.getIssueDate();
+		    if (issueDate == null && this.bitcoinController.getMultiBitService().getGenesisTransactionCache() != null) {
+			// Fall back to the time of the genesis block.
+			Long blockTime = this.bitcoinController.getMultiBitService().getGenesisTransactionCache().getBlockTime(assetRef);
+			if (blockTime != null) {
+			    issueDate = new Date(blockTime);
+			}
+		    }
 		    String sinceString = null;
 		    if (issueDate != null) {
 			LocalDateTime issueDateTime = new DateTime(issueDate).toLocalDateTime();
@@ -28,6 +28,7 @@ import org.multibit.controller.Controller;
 import org.multibit.controller.bitcoin.BitcoinController;
 import org.multibit.exchange.CurrencyConverter;
 //import org.multibit.exchange.CurrencyInfo;
+import org.multibit.model.bitcoin.AssetBalanceLedger;
 import org.multibit.model.bitcoin.WalletAssetTableData;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -241,10 +242,10 @@ public class WalletAssetTableModel extends AbstractTableModel {
 	    }
 	    Wallet wallet = this.bitcoinController.getModel().getActiveWallet();
 	    int assetID = asset.getAssetID();
-	    Wallet.CoinSpark.AssetBalance assetBalance = wallet.CS.getAssetBalance(assetID);
-	    BigInteger x =  assetBalance.total; //wallet.CS.getUnspentAssetQuantity(assetID);
+	    AssetBalanceLedger assetBalanceLedger = this.bitcoinController.getModel().getActivePerWalletModelData().getAssetBalanceLedger();
+	    BigInteger x = assetBalanceLedger.getTotal(wallet, assetID); //wallet.CS.getUnspentAssetQuantity(assetID);
 	    String display = CSMiscUtils.getFormattedDisplayStringForRawUnits(asset, x);
-	    if (assetBalance.updatingNow) {
+	    if (assetBalanceLedger.isUpdatingNow(wallet, assetID)) {
 		if (x.intValue()==0) {
 		    display = "...";
 		} else {
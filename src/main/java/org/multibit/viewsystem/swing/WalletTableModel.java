@@ -18,13 +18,29 @@
  */
 package org.multibit.viewsystem.swing;
 
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionConfidence;
 import com.google.bitcoin.core.Wallet;
 import java.math.BigInteger;
 import java.math.BigDecimal;
+import java.text.CollationKey;
+import java.text.Collator;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import javax.swing.SwingUtilities;
 import javax.swing.table.AbstractTableModel;
 
 import org.joda.money.Money;
@@ -32,8 +48,9 @@ import org.multibit.controller.Controller;
 import org.multibit.controller.bitcoin.BitcoinController;
 import org.multibit.exchange.CurrencyConverter;
 import org.multibit.exchange.CurrencyInfo;
+import org.multibit.model.bitcoin.AssetChangeSummaryCache;
+import org.multibit.model.bitcoin.WalletData;
 import org.multibit.model.bitcoin.WalletTableData;
-import org.multibit.utils.CSMiscUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -58,7 +75,43 @@ public class WalletTableModel extends AbstractTableModel {
 
     private ArrayList<String> headers;
 
-    private ArrayList<WalletTableData> walletData;
+    /**
+     * The rows, in display order. Only replaced or changed on the Swing thread.
+     */
+    private List<WalletTableData> walletData = new ArrayList<WalletTableData>();
+
+    /**
+     * What the status column showed for each row when the rows were last published, so
+     * that only the rows whose status has changed are updated. Only used on the Swing thread.
+     */
+    private Map<Sha256Hash, Long> rowStatusKeys = new HashMap<Sha256Hash, Long>();
+
+    /**
+     * AssetChangeSummaryCache's asset and balance state versions when the rows were last published.
+     */
+    private long publishedAssetStateVersion = -1;
+    private long publishedBalanceStateVersion = -1;
+
+    /**
+     * The wallet the rows were created from.
+     */
+    private WalletData perWalletModelData;
+
+    /**
+     * The column the rows are sorted on, or -1 for wallet order.
+     */
+    private int sortColumn;
+    private boolean sortAscending = false;
+
+    /**
+     * Rows are created and sorted on this thread and handed to the Swing thread when done.
+     */
+    private final ExecutorService refreshExecutor;
+
+    /**
+     * Counts refresh requests so that a refresh overtaken by a later one is dropped.
+     */
+    private final AtomicInteger refreshRequestCount = new AtomicInteger(0);
 
     private final Controller controller;
     private final BitcoinController bitcoinController;
@@ -69,7 +122,19 @@ public class WalletTableModel extends AbstractTableModel {
 
         createHeaders();
 
-        walletData = this.bitcoinController.getModel().createWalletTableData(this.bitcoinController, this.bitcoinController.getModel().getActiveWalletFilename());
+        // Newest first.
+        sortColumn = getColumnIndex("date");
+
+        refreshExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "WalletTableModel");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        recreateWalletData();
     }
     
     // Find model index for a column
@@ -178,12 +243,14 @@ public class WalletTableModel extends AbstractTableModel {
 	case "walletTransactionTableColumn.descriptionOfAssetChanges":
 	{
 	    Wallet wallet = this.bitcoinController.getModel().getActiveWallet();
-	    return CSMiscUtils.getDescriptionOfTransactionAssetChanges(wallet, walletDataRow.getTransaction());
+	    return this.bitcoinController.getModel().getActivePerWalletModelData().getAssetChangeSummaryCache()
+		    .getDescriptionOfAssetChanges(wallet, walletDataRow);
 	}
         case "walletTransactionTableColumn.assetAmount":
 	{
 	    Wallet wallet = this.bitcoinController.getModel().getActiveWallet();
-	    return walletDataRow.getFormattedAssetDebitCredit(wallet);
+	    return this.bitcoinController.getModel().getActivePerWalletModelData().getAssetChangeSummaryCache()
+		    .getFormattedAssetDebitCredit(wallet, walletDataRow);
 	}
 //            long x = walletDataRow.getGenesisQuantity();
 //            return x;
@@ -214,10 +281,318 @@ public class WalletTableModel extends AbstractTableModel {
         throw new UnsupportedOperationException();
     }
 
+    /**
+     * Recreate all the rows as the underlying wallet has changed. The rows are
+     * recreated and sorted in the background and the table updated when done.
+     */
     public void recreateWalletData() {
-        // Recreate the wallet data as the underlying wallet has changed.
-        walletData = this.bitcoinController.getModel().createActiveWalletData(this.bitcoinController);
-        fireTableDataChanged();
+        WalletData activePerWalletModelData = this.bitcoinController.getModel().getActivePerWalletModelData();
+        if (activePerWalletModelData != null) {
+            activePerWalletModelData.getWalletTableDataCache().markRebuildRequired();
+        }
+        refresh(activePerWalletModelData);
+    }
+
+    /**
+     * Update the rows of the transactions that have changed since the last
+     * update. Rows that keep their place are updated in place so the table keeps
+     * its selection.
+     */
+    public void updateWalletData() {
+        refresh(this.bitcoinController.getModel().getActivePerWalletModelData());
+    }
+
+    /**
+     * @return The column the rows are sorted on, or -1 if they are not sorted
+     */
+    public int getSortColumn() {
+        return sortColumn;
+    }
+
+    public boolean isSortAscending() {
+        return sortAscending;
+    }
+
+    /**
+     * Sort the rows on a column. The rows are sorted in the background.
+     *
+     * @param sortColumn The column, or -1 for wallet order
+     * @param sortAscending
+     */
+    public void setSort(int sortColumn, boolean sortAscending) {
+        this.sortColumn = sortColumn;
+        this.sortAscending = sortAscending;
+        refresh(perWalletModelData);
+    }
+
+    private void refresh(final WalletData refreshPerWalletModelData) {
+        final int refreshRequest = refreshRequestCount.incrementAndGet();
+        final int refreshSortColumn = sortColumn;
+        final boolean refreshSortAscending = sortAscending;
+
+        refreshExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (refreshRequest != refreshRequestCount.get()) {
+                    // A later refresh is queued.
+                    return;
+                }
+                try {
+                    final List<WalletTableData> newWalletData = createSortedWalletData(refreshPerWalletModelData, refreshSortColumn,
+                            refreshSortAscending);
+                    SwingUtilities.invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (refreshRequest == refreshRequestCount.get()) {
+                                publish(refreshPerWalletModelData, newWalletData);
+                            }
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    log.error(e.getClass().getCanonicalName() + " " + e.getMessage(), e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Create the rows and sort them. Runs on the refresh thread.
+     */
+    private List<WalletTableData> createSortedWalletData(WalletData refreshPerWalletModelData, int refreshSortColumn,
+            boolean refreshSortAscending) {
+        long startTime = System.currentTimeMillis();
+        List<WalletTableData> rows = this.bitcoinController.getModel().createWalletTableData(this.bitcoinController,
+                refreshPerWalletModelData);
+        if (refreshSortColumn < 0 || refreshSortColumn >= COLUMN_HEADER_KEYS.length) {
+            return rows;
+        }
+
+        // Work out each sort key once, rather than on every comparison.
+        Wallet wallet = refreshPerWalletModelData == null ? null : refreshPerWalletModelData.getWallet();
+        String name = COLUMN_HEADER_KEYS[refreshSortColumn];
+        Collator collator = Collator.getInstance(controller.getLocaliser().getLocale());
+        List<SortableRow> sortableRows = new ArrayList<SortableRow>(rows.size());
+        for (WalletTableData row : rows) {
+            SortableRow sortableRow = new SortableRow(row);
+            switch (name) {
+            case "walletTransactionTableColumn.status":
+                sortableRow.key = createStatusSortKey(row.getTransaction());
+                break;
+            case "walletTransactionTableColumn.date":
+                Date date = row.getDate();
+                // Missing dates sort as the latest.
+                sortableRow.key = (date == null || date.getTime() == 0) ? Long.MAX_VALUE : date.getTime();
+                break;
+            case "walletTransactionTableColumn.description":
+                sortableRow.textKey = collator.getCollationKey(row.getDescription() == null ? "" : row.getDescription());
+                break;
+            case "walletTransactionTableColumn.descriptionOfAssetChanges":
+                sortableRow.textKey = collator.getCollationKey(refreshPerWalletModelData == null ? ""
+                        : refreshPerWalletModelData.getAssetChangeSummaryCache().getDescriptionOfAssetChanges(wallet, row));
+                break;
+            default:
+                break;
+            }
+            sortableRows.add(sortableRow);
+        }
+
+        Comparator<SortableRow> comparator = new Comparator<SortableRow>() {
+            @Override
+            public int compare(SortableRow o1, SortableRow o2) {
+                if (o1.textKey != null && o2.textKey != null) {
+                    return o1.textKey.compareTo(o2.textKey);
+                }
+                return o1.key < o2.key ? -1 : (o1.key == o2.key ? 0 : 1);
+            }
+        };
+        Collections.sort(sortableRows, refreshSortAscending ? comparator : Collections.reverseOrder(comparator));
+
+        List<WalletTableData> sortedRows = new ArrayList<WalletTableData>(sortableRows.size());
+        for (SortableRow sortableRow : sortableRows) {
+            sortedRows.add(sortableRow.walletTableData);
+        }
+        log.debug("Created and sorted " + sortedRows.size() + " transaction rows in " + (System.currentTimeMillis() - startTime) + " ms");
+        return sortedRows;
+    }
+
+    /**
+     * Sort key for the status column: dead, then unconfirmed, then by the number of confirmations.
+     */
+    private long createStatusSortKey(Transaction transaction) {
+        if (transaction == null || transaction.getConfidence() == null) {
+            return 0;
+        }
+        TransactionConfidence confidence = transaction.getConfidence();
+        switch (confidence.getConfidenceType()) {
+        case DEAD:
+            return -1;
+        case BUILDING:
+            return confidence.getDepthInBlocks();
+        default:
+            return 0;
+        }
+    }
+
+    /**
+     * Show new rows. Runs on the Swing thread.
+     *
+     * If the rows already shown are still in the same order, the new rows are
+     * inserted one by one and the rest updated in place, which keeps the
+     * selection and the scroll position. Otherwise the whole table is changed.
+     */
+    private void publish(WalletData newPerWalletModelData, List<WalletTableData> newWalletData) {
+        boolean isSameWallet = newPerWalletModelData == perWalletModelData;
+        perWalletModelData = newPerWalletModelData;
+
+        int[] insertedRows = isSameWallet ? findInsertedRows(walletData, newWalletData) : null;
+        if (insertedRows == null) {
+            walletData = newWalletData;
+            updateRowStatusKeys();
+            publishedAssetStateVersion = AssetChangeSummaryCache.getAssetStateVersion();
+            publishedBalanceStateVersion = AssetChangeSummaryCache.getBalanceStateVersion();
+            fireTableDataChanged();
+            return;
+        }
+
+        Map<WalletTableData, Boolean> oldRows = new IdentityHashMap<WalletTableData, Boolean>();
+        for (WalletTableData oldRow : walletData) {
+            oldRows.put(oldRow, Boolean.TRUE);
+        }
+
+        // Insert the new rows in order, keeping the rows consistent with each event.
+        List<WalletTableData> workingWalletData = new ArrayList<WalletTableData>(walletData);
+        walletData = workingWalletData;
+        for (int insertedRow : insertedRows) {
+            workingWalletData.add(insertedRow, newWalletData.get(insertedRow));
+            fireTableRowsInserted(insertedRow, insertedRow);
+        }
+
+        // Update only the existing rows that show something new : a row replaced by the
+        // cache has new data, and the status icon is read straight from the transaction.
+        boolean isAssetStateChanged = publishedAssetStateVersion != AssetChangeSummaryCache.getAssetStateVersion();
+        boolean isBalanceStateChanged = publishedBalanceStateVersion != AssetChangeSummaryCache.getBalanceStateVersion();
+        AssetChangeSummaryCache assetChangeSummaryCache = perWalletModelData == null ? null : perWalletModelData
+                .getAssetChangeSummaryCache();
+        Map<Sha256Hash, Long> oldRowStatusKeys = rowStatusKeys;
+        walletData = newWalletData;
+        updateRowStatusKeys();
+        publishedAssetStateVersion = AssetChangeSummaryCache.getAssetStateVersion();
+        publishedBalanceStateVersion = AssetChangeSummaryCache.getBalanceStateVersion();
+
+        int firstChangedRow = -1;
+        for (int i = 0; i <= walletData.size(); i++) {
+            boolean isChanged = false;
+            if (i < walletData.size()) {
+                WalletTableData row = walletData.get(i);
+                Sha256Hash transactionHash = getTransactionHash(row);
+                Long oldRowStatusKey = oldRowStatusKeys.get(transactionHash);
+                boolean isInserted = oldRowStatusKey == null;
+                isChanged = !isInserted && (isAssetStateChanged || !oldRows.containsKey(row)
+                        || !oldRowStatusKey.equals(rowStatusKeys.get(transactionHash))
+                        || (isBalanceStateChanged && assetChangeSummaryCache != null && assetChangeSummaryCache
+                                .isProvisional(transactionHash)));
+            }
+            if (isChanged && firstChangedRow < 0) {
+                firstChangedRow = i;
+            } else if (!isChanged && firstChangedRow >= 0) {
+                fireTableRowsUpdated(firstChangedRow, i - 1);
+                firstChangedRow = -1;
+            }
+        }
+    }
+
+    /**
+     * Work out the status key of each row. Runs on the Swing thread.
+     */
+    private void updateRowStatusKeys() {
+        int bestChainHeight = -1;
+        if (bitcoinController.getMultiBitService() != null && bitcoinController.getMultiBitService().getChain() != null) {
+            bestChainHeight = bitcoinController.getMultiBitService().getChain().getBestChainHeight();
+        }
+        Map<Sha256Hash, Long> newRowStatusKeys = new HashMap<Sha256Hash, Long>(walletData.size() * 2);
+        for (WalletTableData row : walletData) {
+            newRowStatusKeys.put(getTransactionHash(row), createRowStatusKey(row.getTransaction(), bestChainHeight));
+        }
+        rowStatusKeys = newRowStatusKeys;
+    }
+
+    /**
+     * Key for what the status column shows for a transaction : the confidence type, the
+     * number of blocks embedded up to the point the icon stops changing, and the number of
+     * peers an unconfirmed transaction has been seen by. Matches ShowTransactionsPanel's renderer.
+     */
+    private long createRowStatusKey(Transaction transaction, int bestChainHeight) {
+        if (transaction == null || transaction.getConfidence() == null) {
+            return -1;
+        }
+        TransactionConfidence confidence = transaction.getConfidence();
+        long detail = 0;
+        switch (confidence.getConfidenceType()) {
+        case BUILDING:
+            int numberOfBlocksEmbedded = bestChainHeight - confidence.getAppearedAtChainHeight() + 1;
+            if (transaction.isCoinBase()) {
+                numberOfBlocksEmbedded = numberOfBlocksEmbedded / 20;
+            }
+            detail = Math.max(0, Math.min(numberOfBlocksEmbedded, 6));
+            break;
+        case PENDING:
+            detail = confidence.getBroadcastByCount();
+            break;
+        default:
+            break;
+        }
+        return ((long) confidence.getConfidenceType().ordinal() << 32) | detail;
+    }
+
+    /**
+     * @return The indexes in newRows of the rows that are not in oldRows, or
+     *         null if any of oldRows has been removed or moved
+     */
+    private int[] findInsertedRows(List<WalletTableData> oldRows, List<WalletTableData> newRows) {
+        if (newRows.size() < oldRows.size()) {
+            return null;
+        }
+        Map<Sha256Hash, Integer> newRowIndexes = new HashMap<Sha256Hash, Integer>(newRows.size() * 2);
+        for (int i = 0; i < newRows.size(); i++) {
+            newRowIndexes.put(getTransactionHash(newRows.get(i)), i);
+        }
+
+        boolean[] isOldRow = new boolean[newRows.size()];
+        int previousIndex = -1;
+        for (WalletTableData oldRow : oldRows) {
+            Integer newIndex = newRowIndexes.get(getTransactionHash(oldRow));
+            if (newIndex == null || newIndex <= previousIndex) {
+                return null;
+            }
+            isOldRow[newIndex] = true;
+            previousIndex = newIndex;
+        }
+
+        int[] insertedRows = new int[newRows.size() - oldRows.size()];
+        int numberOfInsertedRows = 0;
+        for (int i = 0; i < isOldRow.length; i++) {
+            if (!isOldRow[i]) {
+                insertedRows[numberOfInsertedRows++] = i;
+            }
+        }
+        return insertedRows;
+    }
+
+    private Sha256Hash getTransactionHash(WalletTableData row) {
+        return row.getTransaction() == null ? null : row.getTransaction().getHash();
+    }
+
+    /**
+     * A row with its sort key worked out.
+     */
+    private static class SortableRow {
+        final WalletTableData walletTableData;
+        long key;
+        CollationKey textKey;
+
+        SortableRow(WalletTableData walletTableData) {
+            this.walletTableData = walletTableData;
+        }
     }
 
     public void createHeaders() {
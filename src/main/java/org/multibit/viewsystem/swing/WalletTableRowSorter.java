@@ -0,0 +1,128 @@
+/*
+ * SparkBit
+ *
+ * Copyright 2011-2014 multibit.org
+ * Copyright 2014 Coin Sciences Ltd
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.viewsystem.swing;
+
+import java.util.Collections;
+import java.util.List;
+
+import javax.swing.RowSorter;
+import javax.swing.SortOrder;
+
+/**
+ * RowSorter for the Transactions table. The WalletTableModel sorts its rows
+ * itself, off the Swing thread, so the view order is the model order - this
+ * class just passes the header clicks on to the model and tells the header
+ * which way the rows are sorted.
+ */
+public class WalletTableRowSorter extends RowSorter<WalletTableModel> {
+
+    private final WalletTableModel walletTableModel;
+
+    public WalletTableRowSorter(WalletTableModel walletTableModel) {
+        this.walletTableModel = walletTableModel;
+    }
+
+    @Override
+    public WalletTableModel getModel() {
+        return walletTableModel;
+    }
+
+    @Override
+    public void toggleSortOrder(int column) {
+        if (column == walletTableModel.getSortColumn()) {
+            walletTableModel.setSort(column, !walletTableModel.isSortAscending());
+        } else {
+            walletTableModel.setSort(column, true);
+        }
+        fireSortOrderChanged();
+    }
+
+    @Override
+    public int convertRowIndexToModel(int index) {
+        checkRowIndex(index);
+        return index;
+    }
+
+    @Override
+    public int convertRowIndexToView(int index) {
+        checkRowIndex(index);
+        return index;
+    }
+
+    @Override
+    public void setSortKeys(List<? extends SortKey> keys) {
+        if (keys == null || keys.isEmpty()) {
+            walletTableModel.setSort(-1, true);
+        } else {
+            SortKey sortKey = keys.get(0);
+            walletTableModel.setSort(sortKey.getColumn(), sortKey.getSortOrder() != SortOrder.DESCENDING);
+        }
+        fireSortOrderChanged();
+    }
+
+    @Override
+    public List<? extends SortKey> getSortKeys() {
+        int sortColumn = walletTableModel.getSortColumn();
+        if (sortColumn < 0) {
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(new SortKey(sortColumn, walletTableModel.isSortAscending() ? SortOrder.ASCENDING
+                : SortOrder.DESCENDING));
+    }
+
+    @Override
+    public int getViewRowCount() {
+        return walletTableModel.getRowCount();
+    }
+
+    @Override
+    public int getModelRowCount() {
+        return walletTableModel.getRowCount();
+    }
+
+    @Override
+    public void modelStructureChanged() {
+    }
+
+    @Override
+    public void allRowsChanged() {
+    }
+
+    @Override
+    public void rowsInserted(int firstRow, int endRow) {
+    }
+
+    @Override
+    public void rowsDeleted(int firstRow, int endRow) {
+    }
+
+    @Override
+    public void rowsUpdated(int firstRow, int endRow) {
+    }
+
+    @Override
+    public void rowsUpdated(int firstRow, int endRow, int column) {
+    }
+
+    private void checkRowIndex(int index) {
+        if (index < 0 || index >= walletTableModel.getRowCount()) {
+            throw new IndexOutOfBoundsException("Invalid index");
+        }
+    }
+}
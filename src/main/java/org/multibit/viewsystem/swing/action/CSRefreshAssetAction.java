@@ -70,6 +70,9 @@ public class CSRefreshAssetAction extends AbstractAction {
 	if (data != null) {
 	    CSAsset asset = data.getAsset();
 	    asset.setRefreshState();
+	    if (bitcoinController.getMultiBitService() != null) {
+		bitcoinController.getMultiBitService().getAssetValidationScheduler().requestValidationOfAsset(asset.getAssetID());
+	    }
 	    //JOptionPane.showMessageDialog(dataView, "Asset details will be verified, will take between 15 to 30 seconds.");
 	    
 	    // We want main asset panel to refresh, since there isn't an event fired on manual reset.
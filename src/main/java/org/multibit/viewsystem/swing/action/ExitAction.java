@@ -26,7 +26,9 @@ import org.multibit.controller.bitcoin.BitcoinController;
 import org.multibit.controller.core.CoreController;
 import org.multibit.file.BackupManager;
 import org.multibit.file.FileHandler;
+import org.multibit.file.Shredder;
 import org.multibit.file.WalletSaveException;
+import org.multibit.file.WalletSaveScheduler;
 import org.multibit.message.Message;
 import org.multibit.message.MessageManager;
 import org.multibit.model.bitcoin.WalletData;
@@ -40,7 +42,6 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.util.List;
-import org.multibit.viewsystem.swing.UpdateAssetsTimerTask;
 
 /**
  * Exit the application.
@@ -51,10 +52,15 @@ public class ExitAction extends AbstractExitAction {
     
     private static final int MAXIMUM_TIME_TO_WAIT_FOR_HEALTH_CHECK_TASK = 10000; // ms
     private static final int TIME_TO_WAIT = 200; // ms
+    private static final int MAXIMUM_TIME_TO_WAIT_FOR_SHREDDER = 30000; // ms
+    private static final int MAXIMUM_TIME_TO_WAIT_FOR_SCHEDULED_SAVES = 30000; // ms
 
     private final MultiBitFrame mainFrame;
     private static final Logger log = LoggerFactory.getLogger(ExitAction.class);
 
+    private static final Object shutdownLock = new Object();
+    private static boolean isShutDown = false;
+
     private CoreController coreController = null;
     private BitcoinController bitcoinController = null;
 
@@ -80,6 +86,31 @@ public class ExitAction extends AbstractExitAction {
 
     @Override
     public void actionPerformed(ActionEvent arg0) {
+        shutdown();
+        System.exit(0);
+    }
+
+    /**
+     * Stop the network, close the block store and save the wallets, without
+     * exiting, so that a shutdown hook can do the same as the Exit menu.
+     *
+     * The shutdown is done once. A later call waits for it to finish and
+     * returns.
+     */
+    public void shutdown() {
+        synchronized (shutdownLock) {
+            if (isShutDown) {
+                return;
+            }
+            try {
+                shutdownOnce();
+            } finally {
+                isShutDown = true;
+            }
+        }
+    }
+
+    private void shutdownOnce() {
         String shuttingDownTitle = bitcoinController.getLocaliser().getString("multiBitFrame.title.shuttingDown");
 
         if (mainFrame != null) {
@@ -113,16 +144,12 @@ public class ExitAction extends AbstractExitAction {
                     }
                 }
             }
-            
-            /* CoinSpark START */
-            UpdateAssetsTimerTask updateAssetsTimerTask = mainFrame.getUpdateAssetsTimerTask();
-            if (updateAssetsTimerTask != null) {
-                updateAssetsTimerTask.cancel();
-            }
-            /* CoinSpark END */
         }
         
         if (bitcoinController != null && bitcoinController.getMultiBitService() != null) {
+            // Stop validating assets.
+            bitcoinController.getMultiBitService().getAssetValidationScheduler().shutdown();
+
             // Stop the peer group so that blocks are notified to wallets correctly.
             if (bitcoinController.getMultiBitService().getPeerGroup() != null) {
                 log.debug("Closing Bitcoin network connection...");
@@ -130,6 +157,11 @@ public class ExitAction extends AbstractExitAction {
                 log.debug("PeerGroup is now stopped.");
             }
 
+            // Remember the peers for the next start.
+            if (bitcoinController.getMultiBitService().getPeerDatabase() != null) {
+                bitcoinController.getMultiBitService().getPeerDatabase().save();
+            }
+
             // Close down the blockstore.
             BlockStore blockStore = bitcoinController.getMultiBitService().getBlockStore();
             if (blockStore != null) {
@@ -146,6 +178,9 @@ public class ExitAction extends AbstractExitAction {
             }
         }
 
+        // Let any scheduled saves in progress finish - the wallets are all saved below.
+        WalletSaveScheduler.INSTANCE.shutdown(MAXIMUM_TIME_TO_WAIT_FOR_SCHEDULED_SAVES);
+
         if (bitcoinController != null) {
             // Save all the wallets and put their filenames in the user preferences.
             List<WalletData> perWalletModelDataList = bitcoinController.getModel().getPerWalletModelDataList();
@@ -171,6 +206,10 @@ public class ExitAction extends AbstractExitAction {
                                 });
                             }
                         }
+                        // Fold any journalled changes into the wallet file on the way out.
+                        if (loopPerWalletModelData.getWalletJournal() != null && loopPerWalletModelData.getWalletJournal().hasEntries()) {
+                            loopPerWalletModelData.setDirty(true);
+                        }
                         bitcoinController.getFileHandler().savePerWalletModelData(loopPerWalletModelData, false);
                     } catch (WalletSaveException wse) {
                         log.error(wse.getClass().getCanonicalName() + " " + wse.getMessage());
@@ -196,6 +235,10 @@ public class ExitAction extends AbstractExitAction {
             FileHandler.writeUserPreferences(bitcoinController);
         }
 
+        // Finish shredding any old wallet files queued by the saves.
+        log.debug("Waiting for " + Shredder.INSTANCE.getQueueDepth() + " files to be shredded ...");
+        Shredder.INSTANCE.drain(MAXIMUM_TIME_TO_WAIT_FOR_SHREDDER);
+
         log.debug("Shutting down Bitcoin URI checker ...");
         ApplicationInstanceManager.shutdownSocket();
 
@@ -207,7 +250,5 @@ public class ExitAction extends AbstractExitAction {
         if (mainFrame != null) {
             mainFrame.dispose();
         }
-
-        System.exit(0);
     }
 }
@@ -305,6 +305,8 @@ public class OpenWalletAction extends AbstractAction {
                     WalletInfoData walletInfo = perWalletModelData.getWalletInfo();
                     log.debug("Cleaning wallet '" + selectedWalletFilenameFinal + "' of spam ...");
                     perWalletModelData.getWallet().cleanup();
+                    // Transactions removed by the cleanup cannot be journalled.
+                    perWalletModelData.setDirty(true);
                     walletInfo.put(BitcoinModel.WALLET_CLEANED_OF_SPAM, Boolean.TRUE.toString());
                     bitcoinController.getFileHandler().savePerWalletModelData(perWalletModelData, false);
                     log.debug("done.");
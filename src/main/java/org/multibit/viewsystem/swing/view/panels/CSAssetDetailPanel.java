@@ -22,6 +22,7 @@ import java.math.BigInteger;
 import org.multibit.viewsystem.swing.view.components.SwingLink;
 
 import org.multibit.controller.bitcoin.BitcoinController;
+import org.multibit.model.bitcoin.AssetBalanceLedger;
 import org.coinspark.wallet.CSAsset;
 import org.coinspark.core.CSUtils;
 
@@ -259,10 +260,10 @@ public class CSAssetDetailPanel extends javax.swing.JPanel {
 	if (visible) {
 	    Wallet wallet = this.bitcoinController.getModel().getActiveWallet();
 	    int assetID = asset.getAssetID();
-	    Wallet.CoinSpark.AssetBalance assetBalance = wallet.CS.getAssetBalance(assetID);
-	    BigInteger x =  assetBalance.total;
+	    AssetBalanceLedger assetBalanceLedger = this.bitcoinController.getModel().getActivePerWalletModelData().getAssetBalanceLedger();
+	    BigInteger x = assetBalanceLedger.getTotal(wallet, assetID);
 	    String display = CSMiscUtils.getFormattedDisplayStringForRawUnits(asset, x);
-	    if (assetBalance.updatingNow) {
+	    if (assetBalanceLedger.isUpdatingNow(wallet, assetID)) {
 		if (x.intValue()==0) {
 		    display = "...";
 		} else {
@@ -1553,7 +1553,7 @@ public class CSShowAssetsPanel extends JPanel implements Viewable {
 		Wallet wallet = bitcoinController.getModel().getActiveWallet();
 		int assetID = asset.getAssetID();
 //		BigInteger x = wallet.CS.getUnspentAssetQuantity(assetID);
-		BigInteger x = wallet.CS.getAssetBalance(assetID).total; 
+		BigInteger x = bitcoinController.getModel().getActivePerWalletModelData().getAssetBalanceLedger().getTotal(wallet, assetID);
 
 		boolean canDelete = x.equals(BigInteger.ZERO);
 		deleteAssetButton.setEnabled(canDelete);
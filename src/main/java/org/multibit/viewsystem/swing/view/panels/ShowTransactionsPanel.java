@@ -38,6 +38,7 @@ import org.multibit.viewsystem.swing.ColorAndFontConstants;
 import org.multibit.viewsystem.swing.MultiBitFrame;
 import org.multibit.viewsystem.swing.UpdateTransactionsTimerTask;
 import org.multibit.viewsystem.swing.WalletTableModel;
+import org.multibit.viewsystem.swing.WalletTableRowSorter;
 import org.multibit.viewsystem.swing.action.ExportTransactionsSubmitAction;
 import org.multibit.viewsystem.swing.action.HelpContextAction;
 import org.multibit.viewsystem.swing.view.components.FontSizer;
@@ -49,6 +50,8 @@ import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
+import javax.swing.event.TableModelEvent;
+import javax.swing.event.TableModelListener;
 import javax.swing.table.*;
 import javax.swing.text.*;
 import java.awt.*;
@@ -73,7 +76,7 @@ public class ShowTransactionsPanel extends JPanel implements Viewable {
     private JTable table;
     private WalletTableModel walletTableModel;
 
-    private TableRowSorter<TableModel> rowSorter;
+    private WalletTableRowSorter rowSorter;
 
     private static final String SPACER = "   "; // 3 spaces
 
@@ -359,50 +362,26 @@ public class ShowTransactionsPanel extends JPanel implements Viewable {
 //	    table.getColumnModel().getColumn(4).setCellRenderer(new TrailingJustifiedNumericRenderer());
 //	}
 
-	// Row sorter.
-	rowSorter = new TableRowSorter<TableModel>(table.getModel());
+	// Row sorter - the model sorts the rows (by date descending to start with) off the Swing thread.
+	rowSorter = new WalletTableRowSorter(walletTableModel);
 	table.setRowSorter(rowSorter);
 
-	// Sort by date descending.
-	int dateColumnIndex = walletTableModel.getColumnIndex("date");
-	
-	List<TableRowSorter.SortKey> sortKeys = new ArrayList<TableRowSorter.SortKey>();
-	sortKeys.add(new TableRowSorter.SortKey(dateColumnIndex, SortOrder.DESCENDING));
-	rowSorter.setSortKeys(sortKeys);
-	Comparator<Date> comparator = new Comparator<Date>() {
+	// Changing all the rows loses the selection, so put it back.
+	walletTableModel.addTableModelListener(new TableModelListener() {
 	    @Override
-	    public int compare(Date o1, Date o2) {
-		if (o1 == null) {
-		    if (o2 == null) {
-			return 0;
-		    } else {
-			return 1;
-		    }
-		} else {
-		    if (o2 == null) {
-			return -1;
-		    }
-		}
-		long n1 = o1.getTime();
-		long n2 = o2.getTime();
-		if (n1 == 0) {
-		    // Object 1 has missing date.
-		    return 1;
-		}
-		if (n2 == 0) {
-		    // Object 2 has missing date.
-		    return -1;
-		}
-		if (n1 < n2) {
-		    return -1;
-		} else if (n1 > n2) {
-		    return 1;
-		} else {
-		    return 0;
+	    public void tableChanged(TableModelEvent e) {
+		if (e.getType() == TableModelEvent.UPDATE && e.getLastRow() == Integer.MAX_VALUE) {
+		    SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+			    if (selectedRow > -1 && selectedRow < table.getRowCount()) {
+				table.setRowSelectionInterval(selectedRow, selectedRow);
+			    }
+			}
+		    });
 		}
 	    }
-	};
-	rowSorter.setComparator(dateColumnIndex, comparator);
+	});
 
 	/*
 	Comparator<String> comparatorNumber = new Comparator<String>() {
@@ -630,10 +609,10 @@ public class ShowTransactionsPanel extends JPanel implements Viewable {
 //	DecimalAlignRenderer decimalAlignRenderer = new DecimalAlignRenderer();
 //	table.getColumnModel().getColumn(3).setCellRenderer(decimalAlignRenderer);
 
-	walletTableModel.recreateWalletData();
-
-	if (selectedRow > -1 && selectedRow < table.getRowCount()) {
-	    table.setRowSelectionInterval(selectedRow, selectedRow);
+	if (displayHint == DisplayHint.WALLET_TRANSACTIONS_HAVE_CHANGED) {
+	    walletTableModel.updateWalletData();
+	} else {
+	    walletTableModel.recreateWalletData();
 	}
     }
 
@@ -30,6 +30,7 @@ import org.multibit.exchange.CurrencyConverter;
 import org.multibit.file.BackupManager;
 import org.multibit.file.FileHandler;
 import org.multibit.file.WalletLoadException;
+import org.multibit.file.WalletSaveScheduler;
 import org.multibit.message.Message;
 import org.multibit.message.MessageManager;
 import org.multibit.model.bitcoin.BitcoinModel;
@@ -46,6 +47,8 @@ import org.multibit.platform.listener.GenericOpenURIEvent;
 import org.multibit.store.WalletVersionException;
 import org.multibit.viewsystem.DisplayHint;
 import org.multibit.viewsystem.ViewSystem;
+import org.multibit.viewsystem.simple.HeadlessControlServer;
+import org.multibit.viewsystem.simple.HeadlessViewSystem;
 import org.multibit.viewsystem.swing.ColorAndFontConstants;
 import org.multibit.viewsystem.swing.MultiBitFrame;
 import org.multibit.viewsystem.swing.action.ExitAction;
@@ -64,6 +67,8 @@ import java.net.URISyntaxException;
 import java.net.URLEncoder;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Main MultiBit entry class.
@@ -74,6 +79,8 @@ public final class SparkBit {
 
     private static final Logger log = LoggerFactory.getLogger(SparkBit.class);
 
+    private static final int MAXIMUM_NUMBER_OF_WALLET_LOADING_THREADS = 4;
+
     private static Controller controller = null;
 
     private static CoreController coreController = null;
@@ -82,6 +89,21 @@ public final class SparkBit {
 
     private static String rememberedRawBitcoinURI;
 
+    /**
+     * Run without a user interface, tracking the wallets and logging their events.
+     */
+    public static final String HEADLESS_ARGUMENT = "--headless";
+
+    /**
+     * The number of idle http connections kept alive per host (the Java default is 5).
+     */
+    private static final int HTTP_MAXIMUM_CONNECTIONS_PER_HOST = 16;
+
+    /**
+     * The port of the headless control socket, e.g. --control-port=38335
+     */
+    public static final String CONTROL_PORT_ARGUMENT = "--control-port=";
+
     /**
      * Utility class should not have a public constructor
      */
@@ -91,7 +113,8 @@ public final class SparkBit {
     /**
      * Start MultiBit user interface.
      *
-     * @param args String encoding of arguments ([0]= Bitcoin URI)
+     * @param args String encoding of arguments ([0]= Bitcoin URI), optionally with
+     *            --headless and --control-port=N
      */
     @SuppressWarnings("deprecation")
     public static void main(String args[]) {
@@ -101,6 +124,27 @@ public final class SparkBit {
             log.debug(String.format("%s = %s", e.getKey(), e.getValue()));
         }
 
+        // Pick out the headless options - what is left is the Bitcoin URI.
+        boolean headless = false;
+        int controlPort = HeadlessControlServer.DEFAULT_PORT;
+        List<String> otherArgs = new ArrayList<String>();
+        if (args != null) {
+            for (String arg : args) {
+                if (HEADLESS_ARGUMENT.equals(arg)) {
+                    headless = true;
+                } else if (arg != null && arg.startsWith(CONTROL_PORT_ARGUMENT)) {
+                    try {
+                        controlPort = Integer.parseInt(arg.substring(CONTROL_PORT_ARGUMENT.length()));
+                    } catch (NumberFormatException nfe) {
+                        log.error("Ignoring '" + arg + "'. " + nfe.getMessage());
+                    }
+                } else {
+                    otherArgs.add(arg);
+                }
+            }
+            args = otherArgs.toArray(new String[otherArgs.size()]);
+        }
+
         ViewSystem swingViewSystem = null;
         // Enclosing try to enable graceful closure for unexpected errors.
         try {
@@ -111,6 +155,16 @@ public final class SparkBit {
 
                 // Fix for version.txt not visible for Java 7
                 System.setProperty ("jsse.enableSNIExtension", "false");
+
+                // Keep more idle connections alive per host for reuse, for validating many assets from the
+                // same issuer. This does not limit the connections open at once.
+                if (System.getProperty("http.maxConnections") == null) {
+                    System.setProperty("http.maxConnections", "" + HTTP_MAXIMUM_CONNECTIONS_PER_HOST);
+                }
+
+                if (headless) {
+                    System.setProperty("java.awt.headless", "true");
+                }
             } catch (SecurityException se) {
                 log.error(se.getClass().getName() + " " + se.getMessage());
             }
@@ -126,13 +180,16 @@ public final class SparkBit {
             bitcoinController = new BitcoinController(coreController);
             exchangeController = new ExchangeController(coreController);
 
-            log.info("Configuring native event handling");
-            GenericApplicationSpecification specification = new GenericApplicationSpecification();
-            specification.getOpenURIEventListeners().add(coreController);
-            specification.getPreferencesEventListeners().add(coreController);
-            specification.getAboutEventListeners().add(coreController);
-            specification.getQuitEventListeners().add(coreController);
-            GenericApplication genericApplication = GenericApplicationFactory.INSTANCE.buildGenericApplication(specification);
+            GenericApplication genericApplication = null;
+            if (!headless) {
+                log.info("Configuring native event handling");
+                GenericApplicationSpecification specification = new GenericApplicationSpecification();
+                specification.getOpenURIEventListeners().add(coreController);
+                specification.getPreferencesEventListeners().add(coreController);
+                specification.getAboutEventListeners().add(coreController);
+                specification.getQuitEventListeners().add(coreController);
+                genericApplication = GenericApplicationFactory.INSTANCE.buildGenericApplication(specification);
+            }
 
             log.info("Checking to see if this is the primary MultiBit instance");
             String rawURI = null;
@@ -209,44 +266,54 @@ public final class SparkBit {
             // Initialise replay manager.
             ReplayManager.INSTANCE.initialise(bitcoinController, false);
 
-            log.debug("Setting look and feel");
-            try {
-                String lookAndFeel = userPreferences.getProperty(CoreModel.LOOK_AND_FEEL);
+            // Initialise the wallet save scheduler.
+            WalletSaveScheduler.INSTANCE.initialise(bitcoinController);
 
-                // If not set on Windows use 'Windows' L&F as system can be rendered as metal.
-                if ((lookAndFeel == null || lookAndFeel.equals("")) && System.getProperty("os.name").startsWith("Win")) {
-                    lookAndFeel = "Windows";
-                    userPreferences.setProperty(CoreModel.LOOK_AND_FEEL, lookAndFeel);
-                }
+            if (!headless) {
+                log.debug("Setting look and feel");
+                try {
+                    String lookAndFeel = userPreferences.getProperty(CoreModel.LOOK_AND_FEEL);
 
-                if (lookAndFeel != null && !lookAndFeel.equals("")) {
-                    for (LookAndFeelInfo info : UIManager.getInstalledLookAndFeels()) {
-                        if (lookAndFeel.equalsIgnoreCase(info.getName())) {
-                            UIManager.setLookAndFeel(info.getClassName());
-                            break;
+                    // If not set on Windows use 'Windows' L&F as system can be rendered as metal.
+                    if ((lookAndFeel == null || lookAndFeel.equals("")) && System.getProperty("os.name").startsWith("Win")) {
+                        lookAndFeel = "Windows";
+                        userPreferences.setProperty(CoreModel.LOOK_AND_FEEL, lookAndFeel);
+                    }
+
+                    if (lookAndFeel != null && !lookAndFeel.equals("")) {
+                        for (LookAndFeelInfo info : UIManager.getInstalledLookAndFeels()) {
+                            if (lookAndFeel.equalsIgnoreCase(info.getName())) {
+                                UIManager.setLookAndFeel(info.getClassName());
+                                break;
+                            }
                         }
+                    } else {
+                        UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
                     }
-                } else {
-                    UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
+                } catch (UnsupportedLookAndFeelException e) {
+                    // Carry on.
+                } catch (ClassNotFoundException e) {
+                    // Carry on.
+                } catch (InstantiationException e) {
+                    // Carry on.
+                } catch (IllegalAccessException e) {
+                    // Carry on.
                 }
-            } catch (UnsupportedLookAndFeelException e) {
-                // Carry on.
-            } catch (ClassNotFoundException e) {
-                // Carry on.
-            } catch (InstantiationException e) {
-                // Carry on.
-            } catch (IllegalAccessException e) {
-                // Carry on.
-            }
 
-            // Initialise singletons.
-            ColorAndFontConstants.init();
-            FontSizer.INSTANCE.initialise(controller);
+                // Initialise singletons.
+                ColorAndFontConstants.init();
+                FontSizer.INSTANCE.initialise(controller);
+            }
 //            CurrencyConverter.INSTANCE.initialise(finalController);
 
-            // This is when the GUI is first displayed to the user.
-            log.debug("Creating user interface with initial view : " + controller.getCurrentView());
-            swingViewSystem = new MultiBitFrame(coreController, bitcoinController, exchangeController, genericApplication, controller.getCurrentView());
+            if (headless) {
+                log.debug("Running headless");
+                swingViewSystem = new HeadlessViewSystem(bitcoinController);
+            } else {
+                // This is when the GUI is first displayed to the user.
+                log.debug("Creating user interface with initial view : " + controller.getCurrentView());
+                swingViewSystem = new MultiBitFrame(coreController, bitcoinController, exchangeController, genericApplication, controller.getCurrentView());
+            }
 
             log.debug("Registering with controller");
             coreController.registerViewSystem(swingViewSystem);
@@ -268,6 +335,9 @@ public final class SparkBit {
             MultiBitService multiBitService = new MultiBitService(bitcoinController);
             bitcoinController.setMultiBitService(multiBitService);
 
+            // Validate the assets of the wallets as they are loaded and change.
+            multiBitService.getAssetValidationScheduler().start();
+
             log.debug("Locating wallets");
             // Find the active wallet filename in the multibit.properties.
             String activeWalletFilename = userPreferences.getProperty(BitcoinModel.ACTIVE_WALLET_FILENAME);
@@ -318,6 +388,8 @@ public final class SparkBit {
                         if (!Boolean.TRUE.toString().equalsIgnoreCase(walletCleanedOfSpam)) {
                           log.debug("Cleaning wallet '" + activeWalletFilename + "' of spam ...");
                           perWalletModelDataList.get(0).getWallet().cleanup();
+                          // Transactions removed by the cleanup cannot be journalled.
+                          perWalletModelDataList.get(0).setDirty(true);
                           walletInfo.put(BitcoinModel.WALLET_CLEANED_OF_SPAM, Boolean.TRUE.toString());
                           bitcoinController.getFileHandler().savePerWalletModelData(perWalletModelDataList.get(0), false);
                           log.debug("done.");
@@ -370,6 +442,7 @@ public final class SparkBit {
                     controller.fireDataChangedUpdateNow();
                 }
             } else {
+                ExecutorService walletLoadingExecutor = null;
                 try {
                     List<String> walletFilenamesToLoad = new ArrayList<String>();
                     try {
@@ -452,9 +525,20 @@ public final class SparkBit {
                     if (actualOrderToLoad.size() > 0) {
                         boolean thereWasAnErrorLoadingTheWallet = false;
 
-                        ((MultiBitFrame) swingViewSystem).setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+                        if (swingViewSystem instanceof MultiBitFrame) {
+                            ((MultiBitFrame) swingViewSystem).setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+                        }
+
+                        // Read the wallets in parallel. They are still added in order below.
+                        long startOfWalletLoadingTime = System.currentTimeMillis();
+                        int numberOfWalletLoadingThreads = Math.max(1, Math.min(MAXIMUM_NUMBER_OF_WALLET_LOADING_THREADS, Math.min(
+                                actualOrderToLoad.size(), Runtime.getRuntime().availableProcessors())));
+                        walletLoadingExecutor = Executors.newFixedThreadPool(numberOfWalletLoadingThreads);
+                        bitcoinController.getFileHandler().preloadWallets(actualOrderToLoad, walletLoadingExecutor);
+
                         for (String actualOrder : actualOrderToLoad) {
                             log.debug("Loading wallet from '{}'", actualOrder);
+                            long startOfThisWalletLoadingTime = System.currentTimeMillis();
                             Message message = new Message(controller.getLocaliser().getString("multiBit.openingWallet",
                                     new Object[] { actualOrder }));
                             message.setShowInStatusBar(false);
@@ -468,6 +552,14 @@ public final class SparkBit {
                                 if (activeWalletFilename != null && activeWalletFilename.equals(actualOrder)) {
                                     perWalletModelData = bitcoinController.addWalletFromFilename(actualOrder);
                                     bitcoinController.getModel().setActiveWalletByFilename(actualOrder);
+
+                                    // Show the active wallet without waiting for the rest.
+                                    if (swingViewSystem instanceof MultiBitFrame
+                                            && !actualOrder.equals(actualOrderToLoad.get(actualOrderToLoad.size() - 1))) {
+                                        ((MultiBitFrame) swingViewSystem).getWalletsView().initUI();
+                                        ((MultiBitFrame) swingViewSystem).getWalletsView().displayView(DisplayHint.COMPLETE_REDRAW);
+                                        controller.fireDataChangedUpdateNow();
+                                    }
                                 } else {
                                     perWalletModelData = bitcoinController.addWalletFromFilename(actualOrder);
                                 }
@@ -482,6 +574,8 @@ public final class SparkBit {
                                 if (!Boolean.TRUE.toString().equalsIgnoreCase(walletCleanedOfSpam)) {
                                     log.debug("Cleaning wallet '" + activeWalletFilename + "' of spam ...");
                                     perWalletModelData.getWallet().cleanup();
+                                    // Transactions removed by the cleanup cannot be journalled.
+                                    perWalletModelData.setDirty(true);
                                     walletInfo.put(BitcoinModel.WALLET_CLEANED_OF_SPAM, Boolean.TRUE.toString());
                                     bitcoinController.getFileHandler().savePerWalletModelData(perWalletModelData, false);
                                     log.debug("done.");
@@ -522,6 +616,9 @@ public final class SparkBit {
                                 thereWasAnErrorLoadingTheWallet = true;
                             }
 
+                            log.info("Loading wallet '" + actualOrder + "' took "
+                                    + (System.currentTimeMillis() - startOfThisWalletLoadingTime) + " ms");
+
                             if (thereWasAnErrorLoadingTheWallet) {
                                 WalletData loopData = bitcoinController.getModel().getPerWalletModelDataByWalletFilename(actualOrder);
                                 if (loopData != null) {
@@ -532,17 +629,24 @@ public final class SparkBit {
                                 }
                             }
                         }
+                        log.info("Loading " + actualOrderToLoad.size() + " wallets on " + numberOfWalletLoadingThreads
+                                + " threads took " + (System.currentTimeMillis() - startOfWalletLoadingTime) + " ms");
                     }
                 } catch (NumberFormatException nfe) {
                     // Carry on.
                 } finally {
+                    if (walletLoadingExecutor != null) {
+                        walletLoadingExecutor.shutdown();
+                    }
                     if (swingViewSystem instanceof MultiBitFrame) {
                         ((MultiBitFrame) swingViewSystem).getWalletsView().initUI();
                         ((MultiBitFrame) swingViewSystem).getWalletsView().displayView(DisplayHint.COMPLETE_REDRAW);
                     }
                     controller.fireDataChangedUpdateNow();
 
-                    ((MultiBitFrame) swingViewSystem).setCursor(Cursor.getPredefinedCursor(Cursor.DEFAULT_CURSOR));
+                    if (swingViewSystem instanceof MultiBitFrame) {
+                        ((MultiBitFrame) swingViewSystem).setCursor(Cursor.getPredefinedCursor(Cursor.DEFAULT_CURSOR));
+                    }
                 }
             }
 
@@ -563,9 +667,13 @@ public final class SparkBit {
             // Check for any pending URI operations.
             bitcoinController.handleOpenURI(rememberedRawBitcoinURI);
 
-            // Check to see if there is a new version.
-            AlertManager.INSTANCE.initialise(bitcoinController, (MultiBitFrame) swingViewSystem);
-            AlertManager.INSTANCE.checkVersion();
+            if (swingViewSystem instanceof MultiBitFrame) {
+                // Check to see if there is a new version.
+                AlertManager.INSTANCE.initialise(bitcoinController, (MultiBitFrame) swingViewSystem);
+                AlertManager.INSTANCE.checkVersion();
+            } else {
+                startHeadless((HeadlessViewSystem) swingViewSystem, controlPort);
+            }
 
             log.debug("Downloading blockchain");
             if (useFastCatchup) {
@@ -655,12 +763,37 @@ public final class SparkBit {
 
             // Try saving any dirty wallets.
             if (controller != null) {
-                ExitAction exitAction = new ExitAction(controller, (MultiBitFrame)swingViewSystem);
+                ExitAction exitAction = new ExitAction(controller,
+                        swingViewSystem instanceof MultiBitFrame ? (MultiBitFrame) swingViewSystem : null);
+                exitAction.setBitcoinController(bitcoinController);
                 exitAction.actionPerformed(null);
             }
         }
     }
 
+    /**
+     * Open the control socket and make sure the wallets are saved if the JVM is
+     * stopped without the 'stop' command.
+     */
+    private static void startHeadless(HeadlessViewSystem headlessViewSystem, int controlPort) {
+        try {
+            new HeadlessControlServer(bitcoinController, headlessViewSystem, controlPort).start();
+        } catch (IOException e) {
+            log.error("Could not open the control socket on port " + controlPort + ". " + e.getClass().getCanonicalName() + " "
+                    + e.getMessage());
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread("HeadlessShutdown") {
+            @Override
+            public void run() {
+                // The same as the Exit menu, without the exit. After a 'stop' this has already been done.
+                ExitAction exitAction = new ExitAction(bitcoinController, null);
+                exitAction.setBitcoinController(bitcoinController);
+                exitAction.shutdown();
+            }
+        });
+    }
+
     static void processCommandLineURI(BitcoinController controller, String rawURI) {
         try {
             // Attempt to detect if the command line URI is valid.
@@ -0,0 +1,163 @@
+/*
+ * SparkBit
+ *
+ * Copyright 2011-2014 multibit.org
+ * Copyright 2014 Coin Sciences Ltd
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.bitcoin.core.ECKey;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.core.TransactionInput;
+import com.google.bitcoin.core.TransactionOutPoint;
+import com.google.bitcoin.core.TransactionOutput;
+import com.google.bitcoin.core.Wallet;
+import com.google.bitcoin.wallet.WalletTransaction;
+
+/**
+ * Reads wallets of 1,000 and 10,000 transactions (and 100,000 with
+ * -Dsparkbit.benchmark.large=true, which needs a larger heap) as FileHandler
+ * reads them, from a single buffer, and through a FileInputStream opened once
+ * to check for a serialised wallet and again to parse it, as FileHandler used
+ * to. The time each read and parse takes is logged.
+ *
+ * Only run with -Dsparkbit.benchmark=true.
+ */
+public class ReadWalletFileBenchmarkTest {
+
+    private static final Logger log = LoggerFactory.getLogger(ReadWalletFileBenchmarkTest.class);
+
+    private static final int NUMBER_OF_READS = 5;
+
+    private static final NetworkParameters NETWORK_PARAMETERS = NetworkParameters.prodNet();
+
+    @Test
+    public void testReadWalletFile() throws Exception {
+        if (!Boolean.getBoolean("sparkbit.benchmark")) {
+            return;
+        }
+        benchmark(1000);
+        benchmark(10000);
+        if (Boolean.getBoolean("sparkbit.benchmark.large")) {
+            benchmark(100000);
+        }
+    }
+
+    private void benchmark(int numberOfTransactions) throws Exception {
+        File walletFile = createWalletFile(numberOfTransactions);
+        try {
+            // Once each way first so both are timed from a warm page cache.
+            readAsBefore(walletFile, numberOfTransactions);
+            read(walletFile, numberOfTransactions);
+
+            long streamTime = 0;
+            long bufferTime = 0;
+            for (int i = 0; i < NUMBER_OF_READS; i++) {
+                streamTime += readAsBefore(walletFile, numberOfTransactions);
+                bufferTime += read(walletFile, numberOfTransactions);
+            }
+            log.info("Wallet of " + numberOfTransactions + " transactions (" + walletFile.length() + " bytes) : stream "
+                    + streamTime / NUMBER_OF_READS + " ms, buffer " + bufferTime / NUMBER_OF_READS + " ms");
+        } finally {
+            walletFile.delete();
+        }
+    }
+
+    /**
+     * @return The time to read and parse the wallet as FileHandler does, in
+     *         milliseconds
+     */
+    private long read(File walletFile, int numberOfTransactions) throws Exception {
+        long startTime = System.currentTimeMillis();
+        ByteBuffer walletBytes = FileHandler.readWalletFile(walletFile);
+        assertNotNull(walletBytes);
+        assertEquals(walletFile.length(), walletBytes.remaining());
+        Wallet wallet = Wallet.loadFromFileStream(new ByteBufferInputStream(walletBytes));
+        long time = System.currentTimeMillis() - startTime;
+        assertEquals(numberOfTransactions, wallet.getTransactions(true).size());
+        return time;
+    }
+
+    /**
+     * @return The time to read and parse the wallet through a FileInputStream,
+     *         in milliseconds
+     */
+    private long readAsBefore(File walletFile, int numberOfTransactions) throws Exception {
+        long startTime = System.currentTimeMillis();
+        InputStream stream = new BufferedInputStream(new FileInputStream(walletFile));
+        try {
+            // The check for a serialised wallet.
+            stream.read();
+            stream.read();
+        } finally {
+            stream.close();
+        }
+        Wallet wallet;
+        stream = new BufferedInputStream(new FileInputStream(walletFile));
+        try {
+            wallet = Wallet.loadFromFileStream(stream);
+        } finally {
+            stream.close();
+        }
+        long time = System.currentTimeMillis() - startTime;
+        assertEquals(numberOfTransactions, wallet.getTransactions(true).size());
+        return time;
+    }
+
+    private static File createWalletFile(int numberOfTransactions) throws Exception {
+        Random random = new Random(numberOfTransactions);
+        Wallet wallet = new Wallet(NETWORK_PARAMETERS);
+        ECKey key = new ECKey();
+        wallet.addKey(key);
+        for (int i = 0; i < numberOfTransactions; i++) {
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            Transaction transaction = new Transaction(NETWORK_PARAMETERS);
+            transaction.addInput(new TransactionInput(NETWORK_PARAMETERS, transaction, new byte[0], new TransactionOutPoint(
+                    NETWORK_PARAMETERS, 0, new Sha256Hash(hash))));
+            transaction.addOutput(new TransactionOutput(NETWORK_PARAMETERS, transaction, BigInteger.valueOf(10000 + i), key
+                    .toAddress(NETWORK_PARAMETERS)));
+            transaction.getConfidence().setAppearedAtChainHeight(i + 1);
+            wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, transaction));
+        }
+
+        File walletFile = File.createTempFile("ReadWalletFileBenchmarkTest", ".wallet");
+        FileOutputStream fileOutputStream = new FileOutputStream(walletFile);
+        try {
+            wallet.saveToFileStream(fileOutputStream);
+        } finally {
+            fileOutputStream.close();
+        }
+        return walletFile;
+    }
+}
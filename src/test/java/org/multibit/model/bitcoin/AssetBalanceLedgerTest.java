@@ -0,0 +1,96 @@
+/*
+ * SparkBit
+ *
+ * Copyright 2011-2014 multibit.org
+ * Copyright 2014 Coin Sciences Ltd
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.model.bitcoin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.google.bitcoin.core.Sha256Hash;
+
+/**
+ * When AssetBalanceLedger has the balance database recalculated.
+ */
+public class AssetBalanceLedgerTest {
+
+    @Test
+    public void testRecalculationAfterRebuild() throws Exception {
+        AssetBalanceLedger assetBalanceLedger = new AssetBalanceLedger();
+        assertTrue(assetBalanceLedger.isRecalculationDue(System.currentTimeMillis()));
+
+        long startTime = System.currentTimeMillis();
+        assetBalanceLedger.balancesRecalculated(null);
+        long endTime = System.currentTimeMillis();
+        assertBetween(startTime + AssetBalanceLedger.CONSISTENCY_CHECK_INTERVAL, endTime
+                + AssetBalanceLedger.CONSISTENCY_CHECK_INTERVAL, assetBalanceLedger.getNextRecalculationTime());
+        assertFalse(assetBalanceLedger.isRecalculationDue(endTime));
+    }
+
+    @Test
+    public void testChangedTransactionIsRecalculatedSoon() throws Exception {
+        AssetBalanceLedger assetBalanceLedger = new AssetBalanceLedger();
+        long startTime = System.currentTimeMillis();
+        assetBalanceLedger.balancesRecalculated(null);
+        long endTime = System.currentTimeMillis();
+
+        // Its quantities may not be known until the balance database is recalculated.
+        assetBalanceLedger.markTransactionChanged(Sha256Hash.create(new byte[] { 1 }));
+        assertBetween(startTime + AssetBalanceLedger.UPDATING_RECALCULATION_INTERVAL, endTime
+                + AssetBalanceLedger.UPDATING_RECALCULATION_INTERVAL, assetBalanceLedger.getNextRecalculationTime());
+        assertTrue(assetBalanceLedger.isRecalculationDue(endTime + AssetBalanceLedger.UPDATING_RECALCULATION_INTERVAL));
+
+        assetBalanceLedger.markRebuildRequired();
+        assertEquals(0, assetBalanceLedger.getNextRecalculationTime());
+    }
+
+    @Test
+    public void testHasUnknownQuantity() throws Exception {
+        Map<Integer, BigInteger> receiveMap = new HashMap<Integer, BigInteger>();
+        Map<Integer, BigInteger> sendMap = new HashMap<Integer, BigInteger>();
+        assertFalse(AssetBalanceLedger.hasUnknownQuantity(receiveMap, sendMap));
+
+        // Bitcoin is not an asset.
+        receiveMap.put(0, BigInteger.ZERO);
+        sendMap.put(0, null);
+        receiveMap.put(7, BigInteger.valueOf(100));
+        sendMap.put(7, BigInteger.valueOf(40));
+        assertFalse(AssetBalanceLedger.hasUnknownQuantity(receiveMap, sendMap));
+
+        receiveMap.put(8, BigInteger.ZERO);
+        assertTrue(AssetBalanceLedger.hasUnknownQuantity(receiveMap, sendMap));
+        receiveMap.put(8, null);
+        assertTrue(AssetBalanceLedger.hasUnknownQuantity(receiveMap, sendMap));
+
+        receiveMap.remove(8);
+        sendMap.put(9, BigInteger.ZERO);
+        assertFalse(AssetBalanceLedger.hasUnknownQuantity(receiveMap, sendMap));
+        sendMap.put(9, null);
+        assertTrue(AssetBalanceLedger.hasUnknownQuantity(receiveMap, sendMap));
+    }
+
+    private static void assertBetween(long minimum, long maximum, long actual) {
+        assertTrue(actual + " is not between " + minimum + " and " + maximum, actual >= minimum && actual <= maximum);
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * SparkBit
+ *
+ * Copyright 2011-2014 multibit.org
+ * Copyright 2014 Coin Sciences Ltd
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.ResponseCache;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * AssetDocumentCache against a stub http server on the loopback address that
+ * serves asset documents with an ETag, as an asset issuer's web server does.
+ *
+ * The documents are fetched as the asset validation fetches them, and the
+ * number of assets validated per second is logged for the first validation,
+ * which downloads every document, and for a revalidation, which is answered
+ * 304 Not Modified from the cache.
+ */
+public class AssetDocumentCacheTest {
+
+    private static final Logger log = LoggerFactory.getLogger(AssetDocumentCacheTest.class);
+
+    private static final int NUMBER_OF_ASSETS = 200;
+
+    private static final int DOCUMENT_SIZE = 64 * 1024; // bytes
+
+    private static final int TIMEOUT = 5000; // ms
+
+    private HttpServer server;
+    private String baseUrl;
+
+    private final ConcurrentMap<String, byte[]> documents = new ConcurrentHashMap<String, byte[]>();
+    private final ConcurrentMap<String, Integer> errorResponseCodes = new ConcurrentHashMap<String, Integer>();
+    private final ConcurrentMap<String, AtomicInteger> requestCounts = new ConcurrentHashMap<String, AtomicInteger>();
+    private final AtomicLong bytesSent = new AtomicLong(0);
+
+    private File directory;
+    private AssetDocumentCache assetDocumentCache;
+
+    @Before
+    public void setUp() throws Exception {
+        Random random = new Random(1);
+        for (int i = 0; i < NUMBER_OF_ASSETS; i++) {
+            byte[] document = new byte[DOCUMENT_SIZE];
+            random.nextBytes(document);
+            documents.put("/asset/" + i, document);
+        }
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 50);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serve(exchange);
+            }
+        });
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+
+        directory = File.createTempFile("AssetDocumentCacheTest", "");
+        directory.delete();
+        assetDocumentCache = new AssetDocumentCache(directory);
+        ResponseCache.setDefault(assetDocumentCache);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ResponseCache.setDefault(null);
+        AssetDocumentCache.endAssetFetch();
+        if (server != null) {
+            server.stop(0);
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @Test
+    public void testAssetsValidatedPerSecond() throws Exception {
+        AssetDocumentCache.beginAssetFetch(TIMEOUT, TIMEOUT);
+
+        long startTime = System.nanoTime();
+        validateAllAssets();
+        long validationTime = System.nanoTime() - startTime;
+        long validationBytesSent = bytesSent.getAndSet(0);
+        assertEquals(NUMBER_OF_ASSETS, assetDocumentCache.getNumberOfStored());
+
+        startTime = System.nanoTime();
+        validateAllAssets();
+        long revalidationTime = System.nanoTime() - startTime;
+        assertEquals(NUMBER_OF_ASSETS, assetDocumentCache.getNumberOfNotModified());
+        assertEquals(0, bytesSent.get());
+        assertEquals(2, requestCounts.get("/asset/0").get());
+
+        log.info("Assets validated per second : first validation " + getRate(validationTime) + " ("
+                + validationBytesSent + " bytes), revalidation " + getRate(revalidationTime) + " (" + bytesSent.get()
+                + " bytes)");
+    }
+
+    @Test
+    public void testChangedDocument() throws Exception {
+        AssetDocumentCache.beginAssetFetch(TIMEOUT, TIMEOUT);
+        fetch("/asset/0");
+
+        byte[] changedDocument = new byte[100];
+        Arrays.fill(changedDocument, (byte) 7);
+        documents.put("/asset/0", changedDocument);
+        assertTrue(Arrays.equals(changedDocument, fetch("/asset/0")));
+        assertEquals(1, assetDocumentCache.getNumberOfModified());
+        assertTrue(Arrays.equals(changedDocument, fetch("/asset/0")));
+        assertEquals(1, assetDocumentCache.getNumberOfNotModified());
+    }
+
+    @Test
+    public void testErrorIsNotFetchedTwice() throws Exception {
+        AssetDocumentCache.beginAssetFetch(TIMEOUT, TIMEOUT);
+        fetch("/asset/0");
+
+        errorResponseCodes.put("/asset/0", HttpURLConnection.HTTP_INTERNAL_ERROR);
+        HttpURLConnection connection = open("/asset/0");
+        assertEquals(HttpURLConnection.HTTP_INTERNAL_ERROR, connection.getResponseCode());
+        connection.disconnect();
+        assertEquals(2, requestCounts.get("/asset/0").get());
+        assertEquals(1, assetDocumentCache.getNumberOfFailed());
+    }
+
+    @Test
+    public void testUnreachableServer() throws Exception {
+        AssetDocumentCache.beginAssetFetch(TIMEOUT, TIMEOUT);
+        fetch("/asset/0");
+
+        server.stop(0);
+        server = null;
+        HttpURLConnection connection = open("/asset/0");
+        assertEquals(HttpURLConnection.HTTP_GATEWAY_TIMEOUT, connection.getResponseCode());
+        connection.disconnect();
+        assertEquals(1, assetDocumentCache.getNumberOfFailed());
+    }
+
+    @Test
+    public void testOnlyAssetFetchesAreCached() throws Exception {
+        fetch("/asset/0");
+        fetch("/asset/0");
+        assertEquals(0, assetDocumentCache.getNumberOfStored());
+        assertEquals(0, assetDocumentCache.getNumberOfNotModified());
+        assertEquals(2, requestCounts.get("/asset/0").get());
+    }
+
+    private void validateAllAssets() throws IOException {
+        for (int i = 0; i < NUMBER_OF_ASSETS; i++) {
+            assertTrue(Arrays.equals(documents.get("/asset/" + i), fetch("/asset/" + i)));
+        }
+    }
+
+    private static long getRate(long time) {
+        return Math.round(NUMBER_OF_ASSETS / (time / 1e9));
+    }
+
+    private HttpURLConnection open(String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+        connection.setConnectTimeout(TIMEOUT);
+        connection.setReadTimeout(TIMEOUT);
+        return connection;
+    }
+
+    private byte[] fetch(String path) throws IOException {
+        HttpURLConnection connection = open(path);
+        assertEquals(HttpURLConnection.HTTP_OK, connection.getResponseCode());
+        InputStream inputStream = connection.getInputStream();
+        try {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int length;
+            while ((length = inputStream.read(buffer)) != -1) {
+                content.write(buffer, 0, length);
+            }
+            return content.toByteArray();
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            AtomicInteger requestCount = requestCounts.putIfAbsent(path, new AtomicInteger(1));
+            if (requestCount != null) {
+                requestCount.incrementAndGet();
+            }
+
+            byte[] document = documents.get(path);
+            Integer errorResponseCode = errorResponseCodes.get(path);
+            if (document == null || errorResponseCode != null) {
+                exchange.sendResponseHeaders(errorResponseCode == null ? HttpURLConnection.HTTP_NOT_FOUND
+                        : errorResponseCode, -1);
+                return;
+            }
+
+            String etag = "\"" + Arrays.hashCode(document) + "\"";
+            exchange.getResponseHeaders().set("ETag", etag);
+            if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.sendResponseHeaders(HttpURLConnection.HTTP_NOT_MODIFIED, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, document.length);
+            OutputStream outputStream = exchange.getResponseBody();
+            outputStream.write(document);
+            outputStream.close();
+            bytesSent.addAndGet(document.length);
+        } finally {
+            exchange.close();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * SparkBit
+ *
+ * Copyright 2011-2014 multibit.org
+ * Copyright 2014 Coin Sciences Ltd
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * The bloom filter sizes and false positive rates BloomFilterManager reports.
+ */
+public class BloomFilterManagerTest {
+
+    private static final double TARGET = BloomFilterManager.TARGET_FALSE_POSITIVE_RATE;
+
+    @Test
+    public void testFilterSize() throws Exception {
+        // 1000 elements at 0.0005 need about 15,820 bits.
+        assertEquals(1977, BloomFilterManager.getFilterSize(1000, TARGET));
+        assertEquals(2 * BloomFilterManager.getFilterSize(1000, TARGET), BloomFilterManager.getFilterSize(2000, TARGET), 1);
+        assertTrue(BloomFilterManager.getFilterSize(1000, 0.01) < BloomFilterManager.getFilterSize(1000, TARGET));
+
+        // An empty filter is sized for one element.
+        assertEquals(BloomFilterManager.getFilterSize(1, TARGET), BloomFilterManager.getFilterSize(0, TARGET));
+
+        assertEquals(BloomFilterManager.MAXIMUM_FILTER_SIZE, BloomFilterManager.getFilterSize(100000, TARGET));
+    }
+
+    @Test
+    public void testFalsePositiveRate() throws Exception {
+        assertEquals(0, BloomFilterManager.getFalsePositiveRate(0, 1000), 0);
+        assertEquals(0, BloomFilterManager.getFalsePositiveRate(1000, 0), 0);
+
+        // A filter sized for the target rate has about the target rate.
+        for (int elementCount : new int[] { 10, 1000, 10000 }) {
+            double rate = BloomFilterManager.getFalsePositiveRate(elementCount,
+                    BloomFilterManager.getFilterSize(elementCount, TARGET));
+            assertTrue(elementCount + " elements : " + rate, rate > TARGET / 2 && rate < TARGET * 2);
+        }
+
+        // Past the maximum size the rate climbs.
+        double fullRate = BloomFilterManager.getFalsePositiveRate(50000,
+                BloomFilterManager.getFilterSize(50000, TARGET));
+        assertTrue(fullRate > 10 * TARGET);
+        assertTrue(BloomFilterManager.getFalsePositiveRate(100000, BloomFilterManager.MAXIMUM_FILTER_SIZE) > fullRate);
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * SparkBit
+ *
+ * Copyright 2011-2014 multibit.org
+ * Copyright 2014 Coin Sciences Ltd
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.network;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * PeerDatabase saving, loading and ordering the peers connected to.
+ *
+ * The good peers score as peers that deliver blocks quickly, the stalled
+ * peers as peers that stall the download.
+ */
+public class PeerDatabaseTest {
+
+    private static final int NUMBER_OF_GOOD_PEERS = 2;
+    private static final int NUMBER_OF_STALLED_PEERS = 6;
+
+    private final List<InetSocketAddress> goodPeers = new ArrayList<InetSocketAddress>();
+    private final List<InetSocketAddress> stalledPeers = new ArrayList<InetSocketAddress>();
+
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("PeerDatabaseTest", ".peers");
+        file.delete();
+
+        for (int i = 0; i < NUMBER_OF_GOOD_PEERS; i++) {
+            goodPeers.add(createAddress(0, i + 1));
+        }
+        for (int i = 0; i < NUMBER_OF_STALLED_PEERS; i++) {
+            stalledPeers.add(createAddress(1, i + 1));
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        file.delete();
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        PeerDatabase peerDatabase = createPeerDatabase();
+        peerDatabase.save();
+
+        PeerDatabase loadedPeerDatabase = new PeerDatabase(file);
+        loadedPeerDatabase.load();
+        assertEquals(NUMBER_OF_GOOD_PEERS + NUMBER_OF_STALLED_PEERS, loadedPeerDatabase.size());
+        assertEquals(peerDatabase.getBestAddresses(PeerDatabase.MAXIMUM_NUMBER_OF_PEERS),
+                loadedPeerDatabase.getBestAddresses(PeerDatabase.MAXIMUM_NUMBER_OF_PEERS));
+    }
+
+    @Test
+    public void testLoadForgetsOldPeers() throws Exception {
+        long now = System.currentTimeMillis();
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write("127.0.0.1 8333 " + now + " 60\n");
+            writer.write("127.0.0.2 8333 " + (now - PeerDatabase.MAXIMUM_AGE - 1000) + " 90\n");
+            writer.write("not a peer\n");
+        } finally {
+            writer.close();
+        }
+
+        PeerDatabase peerDatabase = new PeerDatabase(file);
+        peerDatabase.load();
+        assertEquals(1, peerDatabase.size());
+        assertEquals(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 8333), peerDatabase.getBestAddresses(10)
+                .get(0));
+    }
+
+    @Test
+    public void testBestAddressesOrder() throws Exception {
+        PeerDatabase peerDatabase = createPeerDatabase();
+        List<InetSocketAddress> bestAddresses = peerDatabase.getBestAddresses(PeerDatabase.MAXIMUM_NUMBER_OF_PEERS);
+
+        // The good peers score higher, and the later of them connected more recently.
+        assertEquals(goodPeers.get(1), bestAddresses.get(0));
+        assertEquals(goodPeers.get(0), bestAddresses.get(1));
+        for (int i = 0; i < NUMBER_OF_STALLED_PEERS; i++) {
+            assertEquals(stalledPeers.get(NUMBER_OF_STALLED_PEERS - 1 - i), bestAddresses.get(NUMBER_OF_GOOD_PEERS + i));
+        }
+
+        assertEquals(3, peerDatabase.getBestAddresses(3).size());
+    }
+
+    /**
+     * Record a connection to each of the stalled peers and then to each of the
+     * good peers, scoring them as PeerScorer would.
+     */
+    private PeerDatabase createPeerDatabase() throws InterruptedException {
+        PeerDatabase peerDatabase = new PeerDatabase(file);
+        for (InetSocketAddress address : stalledPeers) {
+            peerDatabase.recordSuccess(address);
+            peerDatabase.recordScore(address, 10);
+            // So that the success times differ.
+            Thread.sleep(2);
+        }
+        for (InetSocketAddress address : goodPeers) {
+            peerDatabase.recordSuccess(address);
+            peerDatabase.recordScore(address, 80);
+            Thread.sleep(2);
+        }
+        return peerDatabase;
+    }
+
+    private static InetSocketAddress createAddress(int subnet, int host) throws IOException {
+        return new InetSocketAddress(InetAddress.getByAddress(new byte[] { 10, 0, (byte) subnet, (byte) host }), 8333);
+    }
+}
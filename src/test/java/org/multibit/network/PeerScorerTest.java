@@ -0,0 +1,119 @@
+/*
+ * SparkBit
+ *
+ * Copyright 2011-2014 multibit.org
+ * Copyright 2014 Coin Sciences Ltd
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.bitcoin.core.AbstractBlockChain;
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Peer;
+import com.google.bitcoin.core.PeerAddress;
+import com.google.bitcoin.core.VersionMessage;
+
+/**
+ * PeerScorer stall detection on peers that are never connected - the blocks
+ * they deliver are reported to the scorer as the peer group would.
+ */
+public class PeerScorerTest {
+
+    private static final long CHECK_INTERVAL = PeerScorer.CHECK_INTERVAL * 1000; // ms
+
+    private static final int BLOCKS_LEFT = 1000;
+
+    private PeerScorer peerScorer;
+
+    private Peer downloadPeer;
+    private Peer otherPeer;
+    private List<Peer> connectedPeers;
+
+    @Before
+    public void setUp() throws Exception {
+        peerScorer = new PeerScorer(new PeerLatencyTracker());
+        downloadPeer = createPeer(1);
+        otherPeer = createPeer(2);
+        connectedPeers = new ArrayList<Peer>();
+        connectedPeers.add(downloadPeer);
+        connectedPeers.add(otherPeer);
+    }
+
+    @Test
+    public void testFastDownloadPeerHasNotStalled() throws Exception {
+        long startTime = System.currentTimeMillis();
+        peerScorer.onChainDownloadStarted(downloadPeer, BLOCKS_LEFT);
+        downloadBlocks(downloadPeer, (int) (PeerScorer.MINIMUM_DOWNLOAD_RATE * PeerScorer.CHECK_INTERVAL) + 1);
+
+        assertNull(peerScorer.checkPeers(connectedPeers, downloadPeer, startTime + CHECK_INTERVAL + 1000));
+        assertFalse(peerScorer.hasStalledRecently(downloadPeer));
+    }
+
+    @Test
+    public void testSlowDownloadPeerHasStalled() throws Exception {
+        long startTime = System.currentTimeMillis();
+        peerScorer.onChainDownloadStarted(downloadPeer, BLOCKS_LEFT);
+        downloadBlocks(downloadPeer, 1);
+        // Blocks from other peers do not count for the download peer.
+        downloadBlocks(otherPeer, 100);
+
+        assertEquals(downloadPeer, peerScorer.checkPeers(connectedPeers, downloadPeer, startTime + CHECK_INTERVAL + 1000));
+        assertTrue(peerScorer.hasStalledRecently(downloadPeer));
+        assertFalse(peerScorer.hasStalledRecently(otherPeer));
+        assertTrue(peerScorer.getScore(downloadPeer) < peerScorer.getScore(otherPeer));
+    }
+
+    @Test
+    public void testNoStallJustAfterDownloadStarted() throws Exception {
+        long startTime = System.currentTimeMillis();
+        peerScorer.onChainDownloadStarted(downloadPeer, BLOCKS_LEFT);
+
+        assertNull(peerScorer.checkPeers(connectedPeers, downloadPeer, startTime));
+        assertFalse(peerScorer.hasStalledRecently(downloadPeer));
+    }
+
+    @Test
+    public void testNoStallWhenDownloadIsDone() throws Exception {
+        long startTime = System.currentTimeMillis();
+        peerScorer.onChainDownloadStarted(downloadPeer, 0);
+
+        assertNull(peerScorer.checkPeers(connectedPeers, downloadPeer, startTime + CHECK_INTERVAL + 1000));
+        assertFalse(peerScorer.hasStalledRecently(downloadPeer));
+    }
+
+    private void downloadBlocks(Peer peer, int numberOfBlocks) {
+        for (int i = 0; i < numberOfBlocks; i++) {
+            peerScorer.onBlocksDownloaded(peer, null, BLOCKS_LEFT - i - 1);
+        }
+    }
+
+    private static Peer createPeer(int lastByte) throws Exception {
+        NetworkParameters networkParameters = NetworkParameters.prodNet();
+        InetAddress address = InetAddress.getByAddress(new byte[] { 127, 0, 0, (byte) lastByte });
+        return new Peer(networkParameters, new VersionMessage(networkParameters, 0), (AbstractBlockChain) null,
+                new PeerAddress(address, networkParameters.getPort()));
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * SparkBit
+ *
+ * Copyright 2011-2014 multibit.org
+ * Copyright 2014 Coin Sciences Ltd
+ *
+ * Licensed under the MIT license (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://opensource.org/licenses/mit-license.php
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.multibit.network;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.multibit.controller.bitcoin.BitcoinController;
+import org.multibit.controller.core.CoreController;
+import org.multibit.model.bitcoin.WalletData;
+import org.sparkbit.Localiser;
+
+import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Wallet;
+
+/**
+ * ReplayManager running replay tasks through to completion with no wallet
+ * panels listening to the download, as when running headless.
+ *
+ * There is no network, so the replay is started by telling the download
+ * listener that the download is done, from another thread as a peer would.
+ */
+public class ReplayManagerTest {
+
+    private static final long TIMEOUT = 5000; // ms
+
+    private BitcoinController bitcoinController;
+
+    private final BlockingQueue<ReplayTask> startedReplayTasks = new LinkedBlockingQueue<ReplayTask>();
+
+    @Before
+    public void setUp() throws Exception {
+        CoreController coreController = new CoreController();
+        coreController.setLocaliser(new Localiser());
+        bitcoinController = new BitcoinController(coreController);
+        final MultiBitDownloadListener downloadListener = new MultiBitDownloadListener(bitcoinController);
+
+        ReplayManager.INSTANCE.initialise(bitcoinController, true);
+        ReplayManager.INSTANCE.setReplayStarter(new ReplayManager.ReplayStarter() {
+            @Override
+            public void startReplay(ReplayTask replayTask) {
+                startedReplayTasks.add(replayTask);
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        downloadListener.doneDownload();
+                    }
+                }, "ReplayManagerTest peer");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ReplayManager.INSTANCE.setReplayStarter(null);
+    }
+
+    @Test
+    public void testReplayTasksComplete() throws Exception {
+        WalletData firstWalletData = createWalletData("first.wallet");
+        WalletData secondWalletData = createWalletData("second.wallet");
+        ReplayTask firstReplayTask = createReplayTask(firstWalletData);
+        assertTrue(ReplayManager.INSTANCE.offerReplayTask(firstReplayTask));
+        assertEquals(firstReplayTask, startedReplayTasks.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+
+        // The second task only starts once the first has completed.
+        ReplayTask secondReplayTask = createReplayTask(secondWalletData);
+        assertTrue(ReplayManager.INSTANCE.offerReplayTask(secondReplayTask));
+        assertEquals(secondReplayTask, startedReplayTasks.poll(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertFalse(firstWalletData.isBusy());
+        assertNull(firstWalletData.getReplayTaskUUID());
+
+        long endTime = System.currentTimeMillis() + TIMEOUT;
+        while (ReplayManager.INSTANCE.getCurrentReplayTask() != null && System.currentTimeMillis() < endTime) {
+            Thread.sleep(10);
+        }
+        assertNull(ReplayManager.INSTANCE.getCurrentReplayTask());
+        assertFalse(secondWalletData.isBusy());
+    }
+
+    private WalletData createWalletData(String walletFilename) {
+        WalletData walletData = new WalletData();
+        walletData.setWallet(new Wallet(NetworkParameters.prodNet()));
+        walletData.setWalletFilename(walletFilename);
+        return walletData;
+    }
+
+    private ReplayTask createReplayTask(WalletData walletData) {
+        List<WalletData> walletDataList = new ArrayList<WalletData>();
+        walletDataList.add(walletData);
+        return new ReplayTask(walletDataList, null, ReplayTask.UNKNOWN_START_HEIGHT);
+    }
+}